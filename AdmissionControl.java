@@ -0,0 +1,283 @@
+/**
+ * This class decides which requests VerifyingServerTCP spends work on.
+ *
+ * The checks run cheapest first, so a flood of bad requests is turned away before it costs much:
+ *   1. the request line has to fit in maxFrameBytes
+ *   2. it has to be a JSON object with the fields its operation needs, it is read straight into a Request
+ *   3. its sender (id and client address) must not be in the deny cache, which holds senders that recently
+ *      sent too many bad signatures
+ *   (the server then checks the id and the RSA signature)
+ *   4. the id's token bucket for the operation's class must hold a token
+ *   5. expensive operations also need one of a fixed number of slots, so they can't pile up on the chain.
+ *      Each chain has its own slots (ChainRegistry.Chain.acquireSlot), a busy chain never holds up another
+ * Every rejection is a JSON object with "error", a "code" and, where waiting helps, "retryAfterMillis",
+ * and is counted per code.
+ */
+import com.google.gson.JsonObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class AdmissionControl {
+    //how much work an operation costs the server, each class has its own rate
+    public enum OperationClass { READ, WRITE, EXPENSIVE }
+
+    //rejection codes
+    public static final String TOO_LARGE = "TOO_LARGE";
+    public static final String MALFORMED = "MALFORMED";
+    public static final String DENIED = "DENIED";
+    public static final String BAD_SIGNATURE = "BAD_SIGNATURE";
+    public static final String RATE_LIMITED = "RATE_LIMITED";
+    public static final String BUSY = "BUSY";
+    public static final String UNKNOWN_CHAIN = "UNKNOWN_CHAIN";
+    //most ids tracked by the deny cache and the token buckets, the least recently seen are forgotten
+    private static final int MAX_TRACKED_IDS = 10000;
+
+    private final int maxFrameBytes; //longest request line accepted
+    private final int maxBadSignatures; //bad signatures from one sender before it is denied
+    private final long denyMillis; //how long a denied sender stays denied
+    private final double[] ratePerSecond; //token refill rate per operation class
+    private final double[] burst; //bucket size per operation class
+    private final ThreadLocal<RequestCodec> codecs; //request reader per handler thread, keeps its scratch buffer
+    //bad signature count and deny deadline per sender
+    private final Map<String, long[]> denyCache = new Lru<String, long[]>();
+    //token bucket per id and operation class
+    private final Map<String, TokenBucket> buckets = new Lru<String, TokenBucket>();
+    //admitted requests and rejections per code
+    private final AtomicLong admitted = new AtomicLong();
+    private final Map<String, AtomicLong> rejected = new ConcurrentHashMap<String, AtomicLong>();
+    /**
+     * constructor for the admission rules
+     * @param maxFrameBytes longest request line accepted
+     * @param maxBadSignatures bad signatures from one sender before it is denied
+     * @param denyMillis how long a denied sender stays denied
+     * @param ratePerSecond requests per second per id, indexed by OperationClass ordinal
+     * @param burst requests an idle id may send at once, indexed by OperationClass ordinal
+     */
+    public AdmissionControl(int maxFrameBytes, int maxBadSignatures, long denyMillis, double[] ratePerSecond, double[] burst)
+    {
+        this.maxFrameBytes = maxFrameBytes;
+        this.maxBadSignatures = maxBadSignatures;
+        this.denyMillis = denyMillis;
+        this.ratePerSecond = ratePerSecond.clone();
+        this.burst = burst.clone();
+        this.codecs = new ThreadLocal<RequestCodec>() {
+            @Override
+            protected RequestCodec initialValue()
+            {
+                return new RequestCodec(maxFrameBytes);
+            }
+        };
+    }
+    /**
+     * This method will get the class of an operation code
+     * @param operation operation code sent by the client
+     * return the operation's class
+     */
+    public static OperationClass classOf(String operation)
+    {
+        switch(operation)
+        {
+            case "1":
+            case "4":
+                return OperationClass.WRITE;
+            case "2":
+            case "3":
+            case "5":
+                //verify and repair walk the whole chain, export serializes it
+                return OperationClass.EXPENSIVE;
+            default:
+                return OperationClass.READ;
+        }
+    }
+    /**
+     * This method reads one request straight into a Request without ever holding more than maxFrameBytes of it
+     * @param in the client's stream, buffered by the caller
+     * @param request filled with the request's fields
+     * return the rejection, or null if the request is well formed and carries every field its operation needs
+     */
+    public JsonObject readRequest(InputStream in, Request request) throws IOException
+    {
+        try
+        {
+            if(!codecs.get().read(in, request) || !request.isComplete())
+            {
+                return reject(MALFORMED, "Malformed request", 0);
+            }
+        }
+        catch(RequestCodec.FrameTooLargeException e)
+        {
+            return reject(TOO_LARGE, "Request larger than " + maxFrameBytes + " bytes", 0);
+        }
+        return null;
+    }
+    /**
+     * This method checks the deny cache
+     * @param sender the sender the request claims to come from
+     * return the rejection, or null if the sender isn't denied
+     */
+    public JsonObject checkDenied(String sender)
+    {
+        long now = System.currentTimeMillis();
+        synchronized(denyCache)
+        {
+            long[] entry = denyCache.get(sender);
+            if(entry != null && entry[1] > now)
+            {
+                return reject(DENIED, "Too many bad signatures from this sender", entry[1] - now);
+            }
+        }
+        return null;
+    }
+    /**
+     * This method counts a bad signature against a sender and denies the sender once it has sent too many
+     * @param sender the sender the request claimed to come from
+     * return the rejection to send back
+     */
+    public JsonObject badSignature(String sender)
+    {
+        synchronized(denyCache)
+        {
+            long[] entry = denyCache.get(sender);
+            if(entry == null)
+            {
+                entry = new long[2];
+                denyCache.put(sender, entry);
+            }
+            if(++entry[0] >= maxBadSignatures)
+            {
+                entry[0] = 0;
+                entry[1] = System.currentTimeMillis() + denyMillis;
+            }
+        }
+        return reject(BAD_SIGNATURE, "Error in request!", 0);
+    }
+    /**
+     * This method takes a token from the id's bucket for the operation's class
+     * @param id the verified id
+     * @param operation operation code
+     * return the rejection, or null if the request may go ahead
+     */
+    public JsonObject checkRate(String id, String operation)
+    {
+        int c = classOf(operation).ordinal();
+        TokenBucket bucket;
+        synchronized(buckets)
+        {
+            String key = id + ":" + c;
+            bucket = buckets.get(key);
+            if(bucket == null)
+            {
+                bucket = new TokenBucket(ratePerSecond[c], burst[c]);
+                buckets.put(key, bucket);
+            }
+        }
+        long wait = bucket.take();
+        if(wait > 0)
+        {
+            return reject(RATE_LIMITED, "Too many requests, try again later", wait);
+        }
+        return null;
+    }
+    /**
+     * This method counts a request that passed every check
+     */
+    public void admitted()
+    {
+        admitted.incrementAndGet();
+    }
+    /**
+     * This method builds a structured rejection and counts it
+     * @param code rejection code
+     * @param message human readable message, shown by the client
+     * @param retryAfterMillis how long to wait before trying again, 0 if waiting won't help
+     * return the rejection
+     */
+    public JsonObject reject(String code, String message, long retryAfterMillis)
+    {
+        AtomicLong count = rejected.get(code);
+        if(count == null)
+        {
+            rejected.putIfAbsent(code, new AtomicLong());
+            count = rejected.get(code);
+        }
+        count.incrementAndGet();
+        JsonObject jsonObj = new JsonObject();
+        jsonObj.addProperty("error", message);
+        jsonObj.addProperty("code", code);
+        if(retryAfterMillis > 0)
+        {
+            jsonObj.addProperty("retryAfterMillis", retryAfterMillis);
+        }
+        return jsonObj;
+    }
+    /**
+     * This method will get the admission metrics
+     * return admitted requests and rejections per code
+     */
+    public JsonObject metrics()
+    {
+        JsonObject jsonObj = new JsonObject();
+        jsonObj.addProperty("admitted", admitted.get());
+        for(Map.Entry<String, AtomicLong> entry : rejected.entrySet())
+        {
+            jsonObj.addProperty(entry.getKey(), entry.getValue().get());
+        }
+        return jsonObj;
+    }
+
+    /**
+     * This class is a token bucket refilled continuously at a fixed rate
+     */
+    private static final class TokenBucket {
+        private final double ratePerNano; //tokens added per nanosecond
+        private final double capacity; //most tokens the bucket holds
+        private double tokens; //tokens available
+        private long lastNanos; //when tokens was last brought up to date
+
+        TokenBucket(double ratePerSecond, double capacity)
+        {
+            this.ratePerNano = ratePerSecond / 1e9;
+            this.capacity = capacity;
+            this.tokens = capacity;
+            this.lastNanos = System.nanoTime();
+        }
+        /**
+         * This method takes a token if there is one
+         * return 0 if a token was taken, otherwise milliseconds until there is one
+         */
+        synchronized long take()
+        {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - lastNanos) * ratePerNano);
+            lastNanos = now;
+            if(tokens >= 1)
+            {
+                tokens -= 1;
+                return 0;
+            }
+            return (long) Math.ceil((1 - tokens) / ratePerNano / 1e6);
+        }
+    }
+
+    /**
+     * This class is a map that forgets its least recently used entry once it holds MAX_TRACKED_IDS
+     */
+    private static final class Lru<K, V> extends LinkedHashMap<K, V> {
+        private static final long serialVersionUID = 1L;
+
+        Lru()
+        {
+            super(16, 0.75f, true);
+        }
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest)
+        {
+            return size() > MAX_TRACKED_IDS;
+        }
+    }
+}
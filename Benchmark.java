@@ -0,0 +1,363 @@
+/**
+ * This program measures how long the chain takes for operations that are hard to time from the client.
+ *
+ * Usage:
+ *   java Benchmark reorg   - time reorganizations of increasing depth
+ *   java Benchmark parse   - request parsing throughput, RequestCodec against the org.json path it replaced
+ *                            (org.json is only needed on the classpath for this benchmark)
+ *   java Benchmark hash    - mining rate of every hash backend that can run here, and the one HashBackends picks
+ *                            (add --add-modules jdk.incubator.vector to include the vector backend)
+ *   java Benchmark midstate - mining rate as the block's data grows, hashing the whole block for every nonce
+ *                            against hashing its prefix once
+ *   java Benchmark snapshot - append throughput and export/verify latency under mixed load, with readers
+ *                            holding the chain's lock as before against readers using a ChainSnapshot
+ *   java Benchmark prune    - heap and disk taken by a stored chain keeping every body, against one keeping only
+ *                            recent bodies uncompressed, and how long verifying and exporting each takes
+ */
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Timestamp;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class Benchmark {
+    //depths of the competing branches that are timed
+    private static final int[] REORG_DEPTHS = {1, 4, 16, 64, 256};
+    //sizes of the data before the nonce that mining is timed with
+    private static final int[] PAYLOAD_BYTES = {100, 1000, 10000, 100000};
+    //requests parsed per timed round, and rounds run before timing so both paths are compiled
+    private static final int PARSE_REQUESTS = 100000;
+    private static final int PARSE_WARMUP_ROUNDS = 3;
+    //blocks on the chain before the mixed load starts, how long each mode runs and the difficulty appended at
+    private static final int SNAPSHOT_BLOCKS = 20000;
+    private static final long SNAPSHOT_MILLIS = 5000;
+    private static final int SNAPSHOT_DIFFICULTY = 2;
+    //blocks on the chain whose footprint is measured, and the recent blocks keeping their bodies when pruning
+    private static final int PRUNE_BLOCKS = 50000;
+    private static final int PRUNE_HOT_BODIES = 1000;
+    /**
+     * This method picks the benchmark to run from the first argument
+     */
+    public static void main(String args[]) throws Exception
+    {
+        String which = args.length > 0 ? args[0] : "reorg";
+        if(which.equals("reorg"))
+        {
+            reorg();
+        }
+        else if(which.equals("parse"))
+        {
+            parse();
+        }
+        else if(which.equals("hash"))
+        {
+            hash();
+        }
+        else if(which.equals("midstate"))
+        {
+            midstate();
+        }
+        else if(which.equals("snapshot"))
+        {
+            snapshot();
+        }
+        else if(which.equals("prune"))
+        {
+            prune();
+        }
+        else
+        {
+            System.out.println("Unknown benchmark: " + which);
+        }
+    }
+    /**
+     * This method builds a chain, forks it depth blocks below the tip and feeds in a branch of depth + 1 blocks
+     * so the last one makes the branch heavier. The time reported is the rollback and re-application only,
+     * mining the branch is not counted
+     */
+    private static void reorg() throws Exception
+    {
+        System.out.println("depth, blocks rolled back, reorg us");
+        for(int depth : REORG_DEPTHS)
+        {
+            BlockChain bc = new BlockChain();
+            for(int i = 0; i < depth + 1; i++)
+            {
+                bc.addBlock(new Block(bc.getChainSize(), bc.getTime(), "main " + i, 1));
+            }
+            //the branch forks off right after genesis
+            Digest parent = bc.getBlockHash(0);
+            BlockChain.Accept result = null;
+            for(int i = 1; i <= depth + 1; i++)
+            {
+                Block block = new Block(i, new Timestamp(System.currentTimeMillis()), "branch " + i, 1);
+                block.setPreviousDigest(parent);
+                parent = block.proofOfWork();
+                result = bc.acceptBlock(block, parent);
+            }
+            if(result != BlockChain.Accept.REORGANIZED)
+            {
+                throw new IllegalStateException("Branch of depth " + depth + " did not win: " + result);
+            }
+            System.out.println(depth + ", " + bc.lastReorgDepth + ", " + bc.lastReorgNanos / 1000);
+        }
+    }
+    /**
+     * This method parses the same request lines with both paths and reports requests per second.
+     * The old path read the line into a String, parsed it into a JSONObject for admission, and parsed it
+     * again in checkID and in checkSign. The codec reads each line once, straight into a reused Request
+     */
+    private static void parse() throws Exception
+    {
+        byte[][] lines = requestLines(1000);
+        RequestCodec codec = new RequestCodec(64 * 1024);
+        Request request = new Request();
+        System.out.println("path, requests/s");
+        for(int round = 0; round <= PARSE_WARMUP_ROUNDS; round++)
+        {
+            long checksum = 0;
+            long start = System.nanoTime();
+            for(int i = 0; i < PARSE_REQUESTS; i++)
+            {
+                String line = readLine(new ByteArrayInputStream(lines[i % lines.length]));
+                JSONObject admitted = new JSONObject(line);
+                JSONObject forId = new JSONObject(line);
+                JSONObject forSignature = new JSONObject(line);
+                checksum += admitted.getString("operation").length() + forId.getString("keyComb").length()
+                        + forSignature.getString("signedVal").length();
+            }
+            long oldNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            for(int i = 0; i < PARSE_REQUESTS; i++)
+            {
+                if(!codec.read(new ByteArrayInputStream(lines[i % lines.length]), request))
+                {
+                    throw new IllegalStateException("Codec rejected request " + i);
+                }
+                checksum -= request.operation.length() + request.keyComb.length() + request.signedVal.length();
+            }
+            long codecNanos = System.nanoTime() - start;
+            if(checksum != 0)
+            {
+                throw new IllegalStateException("Paths disagree");
+            }
+            if(round == PARSE_WARMUP_ROUNDS)
+            {
+                System.out.println("org.json x3, " + (long) (PARSE_REQUESTS * 1e9 / oldNanos));
+                System.out.println("RequestCodec, " + (long) (PARSE_REQUESTS * 1e9 / codecNanos));
+            }
+        }
+    }
+    /**
+     * This method builds request lines shaped like the client's, with 800 bit keys and signatures
+     */
+    private static byte[][] requestLines(int count)
+    {
+        Random rnd = new Random(1);
+        byte[][] lines = new byte[count][];
+        for(int i = 0; i < count; i++)
+        {
+            Request request = new Request();
+            request.id = new BigInteger(160, rnd).toString(16);
+            request.keyComb = "65537;" + new BigInteger(800, rnd);
+            request.signedVal = new BigInteger(800, rnd).toString();
+            if(i % 4 == 0)
+            {
+                //one in four adds a block, carrying a public key as well
+                request.operation = "1";
+                request.rsa = "65537," + new BigInteger(800, rnd);
+                request.value = request.rsa;
+                request.difficulty = 2;
+            }
+            else
+            {
+                request.operation = String.valueOf(i % 3 == 0 ? 7 : 0);
+                request.value = "value";
+            }
+            lines[i] = (request.toJson() + "\n").getBytes(StandardCharsets.UTF_8);
+        }
+        return lines;
+    }
+    /**
+     * This method reads a line the way the old admission path did
+     */
+    private static String readLine(InputStream in) throws Exception
+    {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while((b = in.read()) >= 0 && b != '\n')
+        {
+            line.write(b);
+        }
+        return line.toString("UTF-8");
+    }
+    /**
+     * This method checks and times every hash backend the way HashBackends does when it picks one
+     */
+    private static void hash() throws Exception
+    {
+        System.out.println("backend, matches MessageDigest, hashes/s");
+        for(HashBackend backend : HashBackends.candidates())
+        {
+            System.out.println(HashBackends.describe(backend) + ", " + HashBackends.matchesJdk(backend) + ", " + HashBackends.hashesPerSecond(backend));
+        }
+        System.out.println("picked " + HashBackends.describe(HashBackends.select(System.getProperty("blockchain.hashBackend"))));
+    }
+    /**
+     * This method times the JDK backend with and without the prefix state for growing data
+     */
+    private static void midstate() throws Exception
+    {
+        System.out.println("payload bytes, whole message hashes/s, prefix once hashes/s");
+        for(int bytes : PAYLOAD_BYTES)
+        {
+            System.out.println(bytes + ", " + HashBackends.hashesPerSecond(new JdkHashBackend(false), bytes)
+                    + ", " + HashBackends.hashesPerSecond(new JdkHashBackend(true), bytes));
+        }
+    }
+    /**
+     * This method runs one thread appending blocks and one thread alternately verifying and exporting the chain,
+     * first with the reader holding the chain's lock, then with the reader working on snapshots
+     */
+    private static void snapshot() throws Exception
+    {
+        System.out.println("readers, appends/s, worst append wait ms, verify ms, export ms");
+        for(boolean snapshots : new boolean[] {false, true})
+        {
+            final BlockChain bc = new BlockChain();
+            bc.addBlock(new Block(0, bc.getTime(), "Genesis", 1));
+            for(int i = 1; i < SNAPSHOT_BLOCKS; i++)
+            {
+                bc.addBlock(new Block(i, bc.getTime(), "transaction " + i, 1));
+            }
+            final AtomicBoolean stop = new AtomicBoolean();
+            final long[] readerNanos = new long[2]; //time spent verifying and exporting
+            final int[] reads = new int[2]; //verifies and exports done
+            final boolean useSnapshots = snapshots;
+            Thread reader = new Thread(new Runnable() {
+                public void run()
+                {
+                    try
+                    {
+                        for(int op = 0; !stop.get(); op = 1 - op)
+                        {
+                            long start = System.nanoTime();
+                            if(useSnapshots)
+                            {
+                                ChainSnapshot snapshot = bc.snapshot();
+                                if(op == 0)
+                                {
+                                    snapshot.isValid();
+                                }
+                                else
+                                {
+                                    snapshot.toString();
+                                }
+                            }
+                            else
+                            {
+                                synchronized(bc)
+                                {
+                                    if(op == 0)
+                                    {
+                                        bc.isChainValid();
+                                    }
+                                    else
+                                    {
+                                        bc.toString();
+                                    }
+                                }
+                            }
+                            readerNanos[op] += System.nanoTime() - start;
+                            reads[op]++;
+                        }
+                    }
+                    catch(Exception e)
+                    {
+                        e.printStackTrace();
+                    }
+                }
+            });
+            reader.start();
+            int appended = 0;
+            long worstWait = 0;
+            long start = System.currentTimeMillis();
+            while(System.currentTimeMillis() - start < SNAPSHOT_MILLIS)
+            {
+                long asked = System.nanoTime();
+                synchronized(bc)
+                {
+                    worstWait = Math.max(worstWait, System.nanoTime() - asked);
+                    bc.addBlock(new Block(bc.getChainSize(), bc.getTime(), "transaction " + bc.getChainSize(), SNAPSHOT_DIFFICULTY));
+                }
+                appended++;
+            }
+            long elapsed = System.currentTimeMillis() - start;
+            stop.set(true);
+            reader.join();
+            System.out.println((snapshots ? "snapshot" : "locked") + ", " + appended * 1000L / elapsed + ", " + worstWait / 1000000
+                    + ", " + readerNanos[0] / Math.max(1, reads[0]) / 1000000 + ", " + readerNanos[1] / Math.max(1, reads[1]) / 1000000);
+        }
+    }
+    /**
+     * This method stores the same kind of chain twice, keeping every body and then only the recent ones,
+     * and reports the heap left in use, the size of the store's files and the time to verify and export
+     */
+    private static void prune() throws Exception
+    {
+        System.out.println("hot bodies, heap MB, disk KB, verify ms, export ms");
+        for(int hotBodies : new int[] {0, PRUNE_HOT_BODIES})
+        {
+            File directory = Files.createTempDirectory("prune").toFile();
+            BlockChain bc = new BlockChain();
+            bc.setRetention(hotBodies, 8);
+            ChainStore store = new ChainStore(directory, 1000, WriteAheadLog.Durability.ASYNC, 0);
+            bc.open(store);
+            bc.addBlock(new Block(0, bc.getTime(), "Genesis", 1));
+            for(int i = 1; i < PRUNE_BLOCKS; i++)
+            {
+                bc.addBlock(new Block(i, bc.getTime(), "{\"from\":\"account" + (i % 1000) + "\",\"to\":\"account" + (i * 7 % 1000)
+                        + "\",\"amount\":" + (i % 977) + ",\"memo\":\"settlement of invoice " + i + " for the monthly service contract\"}", 1));
+            }
+            long heap = usedHeap();
+            long disk = 0;
+            for(File file : directory.listFiles())
+            {
+                disk += file.length();
+            }
+            long start = System.nanoTime();
+            bc.isChainValid();
+            long verify = System.nanoTime() - start;
+            start = System.nanoTime();
+            bc.toString();
+            long export = System.nanoTime() - start;
+            store.close();
+            System.out.println(hotBodies + ", " + heap / (1 << 20) + ", " + disk / 1024 + ", " + verify / 1000000 + ", " + export / 1000000);
+            for(File file : directory.listFiles())
+            {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+    /**
+     * This method collects garbage a few times and reads how much heap is still in use
+     */
+    private static long usedHeap() throws InterruptedException
+    {
+        Runtime runtime = Runtime.getRuntime();
+        for(int i = 0; i < 3; i++)
+        {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
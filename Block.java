@@ -6,96 +6,282 @@
  * Each Block object has an index, a timestamp, a field named data, a previousHash and a nonce.
  * This class contains getter and setter for above values and a calculateHash method
  * a proofOfWork method and override Object's toString method
+ * proofOfWork can be given a MiningJob which bounds it with a deadline or cancellation and lets it resume.
+ * Hashing goes through the HashBackend chosen by HashBackends, mining hands it the constant text around the nonce.
+ *
+ * Header fields are kept compact: the timestamp is epoch milliseconds, the nonce is a long and
+ * previousHash is a Digest (four longs). Timestamp objects and hex strings are only built when asked for.
+ *
+ * A block may carry a compact proof of work target (bits, see DifficultyTarget) on top of its difficulty.
+ * Such a block's hash has to be at or below that target, and bits is appended to the hashed string.
+ * A block without one (bits 0) hashes exactly as before.
+ *
+ * The JSON and binary forms of a block are built the first time they are asked for and kept until a setter
+ * changes the block, since a block below the tip hardly ever changes.
  */
-import javax.xml.bind.DatatypeConverter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.math.BigInteger;
-import java.security.MessageDigest;
+import java.nio.charset.StandardCharsets;
 import java.sql.Timestamp;
 import java.lang.Object;
 import com.google.gson.JsonObject;
 
 public class Block extends Object{
     private int index; //the position of the block on the chain. The first block (the so called Genesis block) has an index of 0.
-    private Timestamp timestamp; //a Java Timestamp object, it holds the time of the block's creation.
+    private long timestamp; //epoch milliseconds of the block's creation.
     private String data; // a String holding the block's single transaction details.
-    private String previousHash; // the SHA256 hash of a block's parent. This is also called a hash pointer.
-    private BigInteger nonce; //a BigInteger value determined by a proof of work routine
+    private Digest previousHash; // the SHA256 hash of a block's parent. This is also called a hash pointer. null for genesis.
+    private long nonce; //a value determined by a proof of work routine
     private int difficulty; // it is an int that specifies the exact number of left most hex digits needed by a proper hash.
+    private int bits; // compact proof of work target set by retargeting, 0 when difficulty alone applies
+    //flag set on the written difficulty when a compact target follows it
+    private static final int HAS_BITS = 1 << 30;
+    private String json; // JSON form built by toString, null until asked for or after a change
+    private byte[] encoded; // binary form built by writeTo, null until asked for or after a change
+    /**
+     * This constructor leaves every field unset, it is used by views that keep their fields elsewhere
+     */
+    protected Block()
+    {
+    }
     /**
      * This is the constructor which set values for index, timestamp, data and difficulty
      */
     public Block(int index, Timestamp timestamp, String data, int difficulty)
+    {
+        this(index, timestamp.getTime(), data, difficulty);
+    }
+    /**
+     * This is the constructor which set values for index, timestamp (epoch milliseconds), data and difficulty
+     */
+    public Block(int index, long timestamp, String data, int difficulty)
     {
         setIndex(index); //Call setIndex method to initialize index
         setTimestamp(timestamp); //Call setTimestamp method to initialize timestamp
         setData(data); //Call setData method to initialize data
         setDifficulty(difficulty); //Call setDifficulty method to initialize difficulty
     }
+    /**
+     * This method will copy the block into a new ordinary Block, the chain changes copies so snapshots keep the original
+     * return a Block with the same fields
+     */
+    public Block copy()
+    {
+        Block block = new Block(getIndex(), getTimestampMillis(), getData(), getDifficulty());
+        block.setPreviousDigest(getPreviousDigest());
+        block.setNonce(getNonce());
+        block.setBits(getBits());
+        return block;
+    }
     /**
      * This method computes a hash of the concatenation of the index, timestamp, data, previousHash, nonce, and difficulty.
      * return a String holding Hexadecimal characters
      */
     public String calculateHash() throws Exception
     {
-        //Get index,timestamp, data, previousHash, nonce and difficulty using getters
-        int index = getIndex();
-        Timestamp ts = getTimestamp();
-        String data = getData();
-        String previousHash = getPreviousHash();
-        BigInteger nonce = getNonce();
-        int difficulty = getDifficulty();
-        //Construct above values into a String and prepare for hashing
-        String hash = index + "," + ts.toString() + ","  + data + ","  + previousHash + ","  + nonce.toString() + ","  + difficulty;
-        // compute the digest with SHA-256
-        MessageDigest digest = MessageDigest.getInstance("SHA-256");
-        byte[] hashByte = digest.digest(hash.getBytes("UTF-8"));
-        // Convert byte array back to String
-        String hashResult = DatatypeConverter.printHexBinary(hashByte).toLowerCase();
-        // return hashing results
-        return hashResult;
+        return calculateDigest().toString();
+    }
+    /**
+     * This method computes the same hash as calculateHash but keeps it as a Digest
+     * return the SHA-256 digest of this block
+     */
+    public Digest calculateDigest() throws Exception
+    {
+        //Construct index,timestamp, data, previousHash, nonce and difficulty into a String and prepare for hashing
+        String hash = hashPrefix() + getNonce() + hashSuffix();
+        // compute the digest with SHA-256 through the selected backend
+        return HashBackends.get().digest(hash.getBytes("UTF-8"));
+    }
+    /**
+     * This method will get the part of the hashed string before the nonce: index, timestamp, data and previousHash
+     * return the prefix, ending in a comma
+     */
+    private String hashPrefix()
+    {
+        return getIndex() + "," + getTimestamp().toString() + ","  + getData() + ","  + getPreviousHash() + ",";
+    }
+    /**
+     * This method will get the part of the hashed string after the nonce: difficulty and, for a retargeted block, its target
+     * return the suffix, starting with a comma
+     */
+    private String hashSuffix()
+    {
+        String suffix = ","  + getDifficulty();
+        //a retargeted block commits to its target as well
+        if(getBits() != 0)
+        {
+            suffix = suffix + "," + getBits();
+        }
+        return suffix;
     }
     /**
      * This method returns the nonce for this block. The nonce is a number that has been found to cause the hash
      * of this block to have the correct number of leading hexadecimal zeroes.
-     * return a BigInteger representing the nonce for this block.
+     * return a long representing the nonce for this block.
      */
-    public BigInteger getNonce()
+    public long getNonce()
     {
         return nonce;
     }
     /**
-     * This method calls calculateHash() to compute a hash of the concatenation of the index, timestamp, data,
+     * This method will set nonce
+     * @params nonce - the value proofOfWork settled on
+     */
+    public void setNonce(long nonce)
+    {
+        this.nonce = nonce;
+        changed();
+    }
+    /**
+     * This method calls calculateDigest() to compute a hash of the concatenation of the index, timestamp, data,
      * previousHash, nonce, and difficulty. If the hash has the appropriate number of leading hex zeroes,
      * it is done and returns that proper hash. If the hash does not have the appropriate number of leading hex zeroes,
      * it increments the nonce by 1 and tries again. It continues this process, burning electricity and CPU cycles,
      * until it gets lucky and finds a good hash.
-     * return a String with a hash that has the appropriate number of leading hex zeroes.
+     * return a Digest with the appropriate number of leading hex zeroes.
      */
-    public String proofOfWork() throws Exception
+    public Digest proofOfWork() throws Exception
     {
-        //set nonce to 0
-        nonce = BigInteger.ZERO;
-        //continue process until find a good hash
+        //a job without a deadline only stops when the thread is interrupted
+        return proofOfWork(new MiningJob());
+    }
+    /**
+     * This method searches for a proof of work like proofOfWork(), starting at the job's next nonce
+     * and stopping early when the job says so
+     * @param job search state, holds where a stopped search can resume
+     * return a Digest meeting this block's target, or null if the job stopped first
+     */
+    public Digest proofOfWork(MiningJob job) throws Exception
+    {
+        //a blockchain.ProofOfWork flight recorder event, committed only when a recording asks for it
+        ChainEvents.ProofOfWorkEvent event = new ChainEvents.ProofOfWorkEvent();
+        event.begin();
+        //start where the job left off, 0 for a new job
+        long start = job.getNextNonce();
+        HashBackend backend = HashBackends.get();
+        HashBackend.Search search = nonceSearch(backend);
+        long nonce = start;
+        //continue process until find a good hash or the job stops
         while(true)
         {
-            //calculate hash
-            String hash = calculateHash();
-            //get leading zeros based on difficulty
-            String leadingZeros = hash.substring(0,difficulty);
-            //generate 0s which match difficulty
-            String difficultyZeros = String.format("%0"+difficulty+"d",0);
-            //Compare 0s with difficulty if match then it will be a good hash we return hash
-            //else increment nonce by 1 repeat
-            if(leadingZeros.equals(difficultyZeros))
+            //the backend tries the next CHECK_INTERVAL nonces, stopping at the first hash at or below the target
+            long found = search.next(nonce, MiningJob.CHECK_INTERVAL);
+            if(found >= 0)
             {
-                return hash;
+                setNonce(found);
+                job.found(start, found);
+                mined(event, backend, found + 1 - start, true);
+                return calculateDigest();
             }
-            else
+            nonce += MiningJob.CHECK_INTERVAL;
+            //cancellation, deadline and interrupts are only looked at between ranges
+            if(job.shouldStop(start, nonce))
             {
-                nonce = nonce.add(BigInteger.ONE);
+                setNonce(nonce);
+                mined(event, backend, nonce - start, false);
+                return null;
             }
         }
     }
+    /**
+     * This method starts a search over the nonces of this block as it is now, for whoever mines it outside proofOfWork.
+     * The target and everything hashed around the nonce don't change while mining, so the backend gets them once
+     * @param backend the backend to search with
+     * return the search, each thread mining the block needs its own
+     */
+    public HashBackend.Search nonceSearch(HashBackend backend) throws Exception
+    {
+        return backend.search(getHashPrefix(), getHashSuffix(), getTarget());
+    }
+    /**
+     * This method will get what is hashed before the nonce, for whoever mines the block outside this JVM
+     * return the UTF-8 bytes of the prefix
+     */
+    public byte[] getHashPrefix()
+    {
+        return hashPrefix().getBytes(StandardCharsets.UTF_8);
+    }
+    /**
+     * This method will get what is hashed after the nonce, for whoever mines the block outside this JVM
+     * return the UTF-8 bytes of the suffix
+     */
+    public byte[] getHashSuffix()
+    {
+        return hashSuffix().getBytes(StandardCharsets.UTF_8);
+    }
+    /**
+     * This method will get the highest hash meeting this block's difficulty or compact target
+     * return the target
+     */
+    public Digest getTarget()
+    {
+        return DifficultyTarget.target(getDifficulty(), getBits());
+    }
+    /**
+     * This method fills in and commits the event of a proofOfWork run, if a recording wants it
+     * @param attempts nonces tried in the run
+     * @param found whether the run found a proof of work
+     */
+    private void mined(ChainEvents.ProofOfWorkEvent event, HashBackend backend, long attempts, boolean found)
+    {
+        if(event.shouldCommit())
+        {
+            event.index = getIndex();
+            event.difficulty = getDifficulty();
+            event.bits = getBits();
+            event.attempts = attempts;
+            event.found = found;
+            event.backend = backend.getName();
+            event.commit();
+        }
+    }
+    /**
+     * This method checks whether a hash meets this block's target, or has enough leading hex zeroes for its difficulty
+     * @param hash the hash to check
+     * return true when the hash is a proper proof of work
+     */
+    public boolean meetsDifficulty(Digest hash)
+    {
+        if(getBits() != 0)
+        {
+            return hash.compareTo(DifficultyTarget.target(getDifficulty(), getBits())) <= 0;
+        }
+        return hash.leadingZeroHexDigits() >= getDifficulty();
+    }
+    /**
+     * This method will get the work this block's proof of work stands for, the expected number of hashes:
+     * 16^difficulty, or 2^256 / (target + 1) for a block with a compact target
+     * return the block's work
+     */
+    public BigInteger getWork()
+    {
+        if(getBits() != 0)
+        {
+            return DifficultyTarget.work(getBits());
+        }
+        return BigInteger.ONE.shiftLeft(4 * getDifficulty());
+    }
+    /**
+     * This method will get the compact proof of work target
+     * return compact target, 0 when the difficulty alone applies
+     */
+    public int getBits()
+    {
+        return bits;
+    }
+    /**
+     * This method will set the compact proof of work target
+     * @params bits - compact target from DifficultyTarget, 0 for none
+     */
+    public void setBits(int bits)
+    {
+        this.bits = bits;
+        changed();
+    }
     /**
      * This method will get difficulty
      * return difficulty
@@ -111,6 +297,7 @@ public class Block extends Object{
     public void setDifficulty(int difficulty)
     {
         this.difficulty = difficulty;
+        changed();
     }
     /**
      * This method Overrides toString in class java.lang.Object
@@ -119,6 +306,10 @@ public class Block extends Object{
     @Override
     public String toString()
     {
+        if(json != null)
+        {
+            return json;
+        }
         //https://stackoverflow.com/questions/4683856/creating-gson-object
         JsonObject jsonObj = new JsonObject();
         jsonObj.addProperty("index",getIndex());
@@ -127,21 +318,130 @@ public class Block extends Object{
         jsonObj.addProperty("PrevHash",getPreviousHash());
         jsonObj.addProperty("nonce",getNonce());
         jsonObj.addProperty("difficulty",getDifficulty());
-        return jsonObj.toString();
+        if(getBits() != 0)
+        {
+            jsonObj.addProperty("target",Integer.toHexString(getBits()));
+        }
+        json = jsonObj.toString();
+        return json;
+    }
+    /**
+     * This method writes the block in its compact binary form:
+     * index, timestamp, difficulty (with HAS_BITS set and the compact target after it when there is one),
+     * nonce, a previousHash presence byte followed by its 32 bytes,
+     * and the length of the UTF-8 data followed by the data (-1 for no data)
+     * @param out where the block is written
+     */
+    public void writeTo(DataOutput out) throws IOException
+    {
+        if(encoded == null)
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            encode(new DataOutputStream(bytes));
+            encoded = bytes.toByteArray();
+        }
+        out.write(encoded);
+    }
+    /**
+     * This method builds the binary form written by writeTo
+     */
+    private void encode(DataOutput out) throws IOException
+    {
+        out.writeInt(getIndex());
+        out.writeLong(getTimestampMillis());
+        if(getBits() != 0)
+        {
+            out.writeInt(getDifficulty() | HAS_BITS);
+            out.writeInt(getBits());
+        }
+        else
+        {
+            out.writeInt(getDifficulty());
+        }
+        out.writeLong(getNonce());
+        Digest.write(out, getPreviousDigest());
+        String data = getData();
+        if(data == null)
+        {
+            out.writeInt(-1);
+        }
+        else
+        {
+            byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+    /**
+     * This method reads a block written by writeTo
+     * @param in where the block is read from
+     * return the block
+     */
+    public static Block readFrom(DataInput in) throws IOException
+    {
+        int index = in.readInt();
+        long timestamp = in.readLong();
+        int difficulty = in.readInt();
+        int bits = 0;
+        if((difficulty & HAS_BITS) != 0)
+        {
+            difficulty &= ~HAS_BITS;
+            bits = in.readInt();
+        }
+        long nonce = in.readLong();
+        Digest previous = Digest.read(in);
+        String data = null;
+        int length = in.readInt();
+        if(length >= 0)
+        {
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            data = new String(bytes, StandardCharsets.UTF_8);
+        }
+        Block block = new Block(index, timestamp, data, difficulty);
+        block.setNonce(nonce);
+        block.setBits(bits);
+        block.setPreviousDigest(previous);
+        return block;
+    }
+    /**
+     * This method drops the memoized JSON and binary forms, every setter calls it
+     */
+    protected void changed()
+    {
+        json = null;
+        encoded = null;
     }
     /**
      * This method will set previousHash
-     * @params previousHash - a hash pointer to this block's parent
+     * @params previousHash - a hash pointer to this block's parent, as hex
      */
     public void setPreviousHash(String previousHash)
+    {
+        setPreviousDigest(Digest.fromHex(previousHash));
+    }
+    /**
+     * This method will set previousHash
+     * @params previousHash - a hash pointer to this block's parent
+     */
+    public void setPreviousDigest(Digest previousHash)
     {
         this.previousHash = previousHash;
+        changed();
     }
     /**
      * This method will get previousHash
-     * return previousHash
+     * return previousHash as hex, "" for the genesis block
      */
     public String getPreviousHash()
+    {
+        return Digest.toHex(getPreviousDigest());
+    }
+    /**
+     * This method will get previousHash
+     * return previousHash, null for the genesis block
+     */
+    public Digest getPreviousDigest()
     {
         return previousHash;
     }
@@ -160,20 +460,38 @@ public class Block extends Object{
     public void setIndex(int index)
     {
         this.index = index;
+        changed();
     }
     /**
      * This method will set timestamp
      * @params timestamp - of when this block was created
      */
     public void setTimestamp(Timestamp timestamp)
+    {
+        setTimestamp(timestamp.getTime());
+    }
+    /**
+     * This method will set timestamp
+     * @params timestamp - epoch milliseconds of when this block was created
+     */
+    public void setTimestamp(long timestamp)
     {
         this.timestamp = timestamp;
+        changed();
     }
     /**
      * This method get current timestamp
      * return a timestamp of this block
      */
     public Timestamp getTimestamp()
+    {
+        return new Timestamp(getTimestampMillis());
+    }
+    /**
+     * This method get current timestamp
+     * return epoch milliseconds of this block
+     */
+    public long getTimestampMillis()
     {
         return timestamp;
     }
@@ -185,6 +503,14 @@ public class Block extends Object{
     {
         return  data;
     }
+    /**
+     * This method will get the commitment a header keeps for this block's data
+     * return BlockHeader.dataDigest of the data
+     */
+    public Digest getDataDigest() throws Exception
+    {
+        return BlockHeader.dataDigest(getData());
+    }
     /**
      * This method will set data
      * @params data - represents the transaction held by this block
@@ -192,5 +518,6 @@ public class Block extends Object{
     public void setData(String data)
     {
         this.data = data;
+        changed();
     }
-}
\ No newline at end of file
+}
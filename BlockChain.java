@@ -7,25 +7,343 @@
 import com.google.gson.JsonObject;
 
 import javax.xml.bind.DatatypeConverter;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.sql.Timestamp;
 import java.lang.Object;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class BlockChain extends Object{
 
+    /**
+     * This interface is told about every block that lands on the chain
+     */
+    public interface Listener {
+        void blockAppended(Block block, Digest hash) throws Exception;
+        /**
+         * This method is told when blocks from height onwards leave the chain because a heavier branch won
+         */
+        default void rolledBack(int height) throws Exception
+        {
+        }
+        /**
+         * This method is told when a block's data is replaced by corruptBlock
+         */
+        default void blockCorrupted(int index, String data)
+        {
+        }
+        /**
+         * This method is told when repair gives a block a new nonce, and so a new hash
+         */
+        default void blockRepaired(int index, long nonce, Digest hash)
+        {
+        }
+    }
+
+    /**
+     * This enum is the outcome of acceptBlock
+     */
+    public enum Accept {
+        APPENDED,     // the block extended the tip
+        REORGANIZED,  // the block completed a heavier branch which is now the chain
+        SIDE,         // the block was kept on a lighter side branch
+        KNOWN,        // the block was already known
+        ORPHAN,       // the block's parent is not known yet
+        INVALID       // the block's hash, proof of work or index is wrong
+    }
+
     //A list of BLock to imitate block chain functionality
     public List<Block> blocks;
-    // chainHash will always store the last hash value
-    public String chainHash;
+    // chainHash will always store the last hash value, null while the chain is empty
+    public Digest chainHash;
+    // hashIndex maps a block's hash (the hash pointer its child holds) to the block's position on the chain
+    public Map<Digest, Integer> hashIndex;
+    // verifiedHeight is the watermark below which every block is known to be valid
+    public int verifiedHeight;
+    // off-heap header columns backing blocks, null when blocks is an ordinary ArrayList
+    private HeaderStore headerStore;
+    // on-disk copy of the chain, null when the chain only lives in memory. awaitDurable reads it without the lock
+    private volatile ChainStore store;
+    // listeners told about every appended block
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    // totalWork is the cumulative work (sum of 16^difficulty) of the blocks on the chain
+    public BigInteger totalWork = BigInteger.ZERO;
+    // blocks known by hash that are not on the chain, and the cumulative work of the branch each one ends
+    private final Map<Digest, Block> sideBlocks = new HashMap<Digest, Block>();
+    private final Map<Digest, BigInteger> sideWork = new HashMap<Digest, BigInteger>();
+    // side blocks further than this below the tip are forgotten, and how many appends pass between two looks
+    private static final int SIDE_DEPTH = 1024;
+    private static final int SIDE_PRUNE_INTERVAL = 64;
+    // depth and duration of the most recent reorganization
+    public int lastReorgDepth;
+    public long lastReorgNanos;
+    // headers downloaded ahead of their blocks by hash, and the height they reach
+    private final Map<Digest, BlockHeader> pendingHeaders = new HashMap<Digest, BlockHeader>();
+    private int headerHeight;
+    // rule deciding each block's proof of work target, null when whoever adds a block picks its difficulty
+    private DifficultyTarget retarget;
+    // blocks per rendered page, and most pages kept rendered
+    static final int PAGE_BLOCKS = 256;
+    private static final int MAX_CACHED_PAGES = 1024;
+    // JSON of full pages of blocks, joined with commas, least recently exported dropped first.
+    // Snapshots export without the chain's lock, so the map is synchronized and each page remembers its version
+    private final Map<Integer, RenderedPage> renderedPages = Collections.synchronizedMap(new LinkedHashMap<Integer, RenderedPage>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, RenderedPage> eldest)
+        {
+            return size() > MAX_CACHED_PAGES;
+        }
+    });
+    // version of the latest write other than an append to touch each page
+    private final Map<Integer, Long> pageWrites = new ConcurrentHashMap<Integer, Long>();
+    // latest published state of the chain, see ChainSnapshot
+    private volatile ChainSnapshot head;
+    // version collecting the rows the next write changes
+    private ChainSnapshot.Version current = new ChainSnapshot.Version(0);
+    // depth of nested writes under way, the head is published when the outermost one ends
+    private int writes;
+    // number of most recent blocks whose data is kept uncompressed, 0 keeps every block's data
+    private int hotBodies;
+    // most archive segments kept inflated
+    private int coldCacheSegments = 8;
+    // archive holding the data of old blocks, null while no data has been moved there
+    private BodyArchive archive;
+    // blocks from genesis up to here had their data moved to the archive, the next segment starts here
+    private int frozenHeight;
+    // worker processes blocks are mined on, null to mine on the calling thread
+    private MiningPool miningPool;
     /**
-     * default constructor for BlockChain class which initialize blocks and chainHash
+     * default constructor for BlockChain class which initialize blocks, chainHash, hashIndex and verifiedHeight
      */
     public BlockChain()
     {
-        blocks = new ArrayList<Block>();
-        chainHash = "";
+        blocks = new BlockList();
+        chainHash = null;
+        hashIndex = new HashMap<Digest, Integer>();
+        verifiedHeight = 0;
+        publish();
+    }
+    /**
+     * constructor for a BlockChain whose blocks are kept in off-heap header columns
+     * @param headerStore empty store that will hold the chain
+     */
+    public BlockChain(HeaderStore headerStore)
+    {
+        this();
+        this.headerStore = headerStore;
+        blocks = headerStore;
+        publish();
+    }
+    /**
+     * This method will have the chain decide the proof of work target of every new block from recent block times
+     * @param retarget the retargeting rule, null to let whoever adds a block pick its difficulty
+     */
+    public void setRetarget(DifficultyTarget retarget)
+    {
+        this.retarget = retarget;
+    }
+    /**
+     * This method will get how many blocks at the bottom of the chain were mined without a compact target,
+     * which is the height retargeting was turned on at for a chain that ran without it first
+     * return index of the first block with a compact target, or the chain's size when there is none
+     */
+    public int getLegacyHeight()
+    {
+        int height = 0;
+        while(height < blocks.size() && blocks.get(height).getBits() == 0)
+        {
+            height++;
+        }
+        return height;
+    }
+    /**
+     * This method will have the chain keep only the data of its most recent blocks uncompressed.
+     * Once BodyArchive.SEGMENT_BODIES blocks lie below those, their data is compressed into the archive and
+     * only the headers, with each block's data commitment, stay with the chain. Call it before open
+     * @param hotBodies number of most recent blocks whose data stays as it is, 0 keeps every block's data
+     * @param cacheSegments most archive segments kept inflated for reads
+     */
+    public void setRetention(int hotBodies, int cacheSegments)
+    {
+        this.hotBodies = hotBodies;
+        this.coldCacheSegments = cacheSegments;
+    }
+    /**
+     * This method will have blocks mined by worker processes from now on
+     * @param miningPool the pool handing out the proof of work, null to mine on the calling thread again
+     */
+    public void setMiningPool(MiningPool miningPool)
+    {
+        this.miningPool = miningPool;
+    }
+    /**
+     * This method will get the archive holding the data of old blocks
+     * return the archive, null while no data has been moved there
+     */
+    public BodyArchive getArchive()
+    {
+        return archive;
+    }
+    /**
+     * This method will load the chain kept in a store and keep it up to date from now on
+     * @param store the store to load from and append to
+     * return number of blocks that had to be hashed while loading
+     */
+    public int open(ChainStore store) throws Exception
+    {
+        //the archive has to be open before the log refers to it
+        File coldFile = store.getColdFile();
+        if(hotBodies > 0 || coldFile.exists())
+        {
+            setArchive(new BodyArchive(coldFile, coldCacheSegments));
+        }
+        int verified = store.load(this);
+        this.store = store;
+        pruneBodies();
+        return verified;
+    }
+    /**
+     * This method will checkpoint the chain and close its store and archive, the chain must not be used afterwards.
+     * The caller holds the chain's lock
+     */
+    public void close() throws Exception
+    {
+        if(store != null)
+        {
+            //the next open starts from here instead of replaying the log
+            store.checkpoint(this);
+            store.close();
+            store = null;
+        }
+        if(archive != null)
+        {
+            archive.close();
+        }
+    }
+    /**
+     * This method will get how far the chain's log reaches, for awaitDurable. The caller holds the chain's lock
+     * return the log position after the latest write, 0 when the chain only lives in memory
+     */
+    public long getLogPosition()
+    {
+        return store != null ? store.position() : 0;
+    }
+    /**
+     * This method will wait until every write up to a position is on disk, without holding the chain's lock.
+     * Writes only log their records under the lock, so the writes made while one waits here share its force
+     * @param position a position getLogPosition returned
+     */
+    public void awaitDurable(long position) throws IOException
+    {
+        //a closed store forced everything on the way out
+        ChainStore logged = store;
+        if(logged != null && position > 0)
+        {
+            logged.awaitDurable(position);
+        }
+    }
+    /**
+     * This method will put an already mined block back on the chain without mining it again.
+     * It is used while loading a stored chain, the block is not verified here
+     * @param block the stored block
+     * @param hash the hash the block was mined to
+     */
+    public void restoreBlock(Block block, Digest hash)
+    {
+        totalWork = totalWork.add(block.getWork());
+        hashIndex.put(hash, blocks.size());
+        blocks.add(block);
+        chainHash = hash;
+        //a block stored with its data in the archive was frozen before
+        if(block instanceof ColdBlock && ((ColdBlock) block).isCold())
+        {
+            frozenHeight = blocks.size();
+        }
+        publish();
+    }
+    /**
+     * This method will take every restored block off the chain again. It is used while loading a stored chain
+     * whose image turns out damaged, before the whole log is replayed instead
+     */
+    public void clearRestored()
+    {
+        blocks.subList(0, blocks.size()).clear();
+        hashIndex.clear();
+        chainHash = null;
+        totalWork = BigInteger.ZERO;
+        verifiedHeight = 0;
+        frozenHeight = 0;
+        publish();
+    }
+    /**
+     * This method will point blocks already on the chain at data already in the archive, without archiving it again.
+     * It is used while loading a stored chain
+     * @param from position of the first block
+     * @param segment archive segment holding their data
+     * @param count number of blocks
+     */
+    public void restoreFrozen(int from, int segment, int count) throws Exception
+    {
+        if(archive == null || segment >= archive.segments())
+        {
+            throw new IOException("Segment " + segment + " of the body archive is missing");
+        }
+        String[] data = new String[count];
+        for(int k = 0; k < count; k++)
+        {
+            data[k] = blocks.get(from + k).getData();
+        }
+        beginWrite();
+        try
+        {
+            coldRows(from, segment, data);
+        }
+        finally
+        {
+            endWrite();
+        }
+    }
+    /**
+     * This method will get block i with its data in the archive
+     * @param i position of the block
+     * return the block as a ColdBlock, or null if the block holds its data itself
+     */
+    public ColdBlock coldBlock(int i)
+    {
+        if(headerStore != null)
+        {
+            return headerStore.coldBlock(i);
+        }
+        Block block = blocks.get(i);
+        return block instanceof ColdBlock && ((ColdBlock) block).isCold() ? (ColdBlock) block : null;
+    }
+    /**
+     * This method will get the latest state of the chain as a snapshot, without taking any lock.
+     * The snapshot keeps showing that state while the chain moves on, so exports and verification can run
+     * alongside mining
+     * return the snapshot
+     */
+    public ChainSnapshot snapshot()
+    {
+        return head;
+    }
+    /**
+     * This method will get chainHash for display
+     * return chainHash as hex, "" for an empty chain
+     */
+    public String getChainHash()
+    {
+        return Digest.toHex(chainHash);
     }
 
     /**
@@ -81,26 +399,726 @@ public class BlockChain extends Object{
      * This method will add new block to current chain
      */
     public void addBlock(Block newBlock) throws Exception
+    {
+        //without a deadline mining only stops early when the thread is interrupted
+        if(!addBlock(newBlock, new MiningJob()))
+        {
+            throw new InterruptedException("Mining of block " + newBlock.getIndex() + " was interrupted");
+        }
+    }
+    /**
+     * This method will add a block like addBlock(Block), mining it under a job that may stop early
+     * @param newBlock the block to mine and add
+     * @param job search state bounding the mining, see MiningJob
+     * return true if the block was added, false if the job stopped before a proof of work was found
+     */
+    public boolean addBlock(Block newBlock, MiningJob job) throws Exception
     {
         //set up hash pointer for new block
-        newBlock.setPreviousHash(chainHash);
-        //calculate proof of work and assign to chianHash
-        chainHash = newBlock.proofOfWork();
-        // add newBlock to our chain
-        blocks.add(newBlock);
+        newBlock.setPreviousDigest(chainHash);
+        //the chain, not the caller, decides how hard the block is
+        if(retarget != null)
+        {
+            int bits = newBlock.getIndex() == 0 ? DifficultyTarget.bitsOf(newBlock) : requiredBits(chainHash, newBlock.getIndex());
+            newBlock.setBits(bits);
+            newBlock.setDifficulty(DifficultyTarget.difficultyOf(bits));
+        }
+        //calculate proof of work and put the block on the chain
+        Digest hash = mine(newBlock, job);
+        if(hash == null)
+        {
+            return false;
+        }
+        append(newBlock, hash);
+        return true;
+    }
+    /**
+     * This method will add a block mined somewhere else, such as on a peer, to the current chain.
+     * The block must sit right on top of the current tip and carry a proper proof of work
+     * @param block the mined block
+     * @param hash the hash the block claims to have
+     * return true if the block was appended, false if it doesn't extend this chain or is invalid
+     */
+    public boolean appendBlock(Block block, Digest hash) throws Exception
+    {
+        //the block has to point at our tip
+        if(block.getIndex() != blocks.size())
+        {
+            return false;
+        }
+        if(chainHash == null ? block.getPreviousDigest() != null : !chainHash.equals(block.getPreviousDigest()))
+        {
+            return false;
+        }
+        if(!hasRequiredTarget(block))
+        {
+            return false;
+        }
+        //and hash to what it claims with enough leading zeroes
+        Digest actual = block.calculateDigest();
+        if(!actual.equals(hash) || !block.meetsDifficulty(actual))
+        {
+            return false;
+        }
+        append(block, actual);
+        return true;
+    }
+    /**
+     * This method will take a block mined somewhere else that may or may not extend the tip.
+     * Blocks on other branches are kept by hash together with the cumulative work of their branch,
+     * and once a branch carries more work than the chain the chain is reorganized onto it
+     * @param block the mined block
+     * @param hash the hash the block claims to have
+     * return what happened to the block
+     */
+    public Accept acceptBlock(Block block, Digest hash) throws Exception
+    {
+        if(hashIndex.containsKey(hash) || sideBlocks.containsKey(hash))
+        {
+            return Accept.KNOWN;
+        }
+        Digest parent = block.getPreviousDigest();
+        //the common case: the block sits on our tip
+        if(chainHash == null ? parent == null : chainHash.equals(parent))
+        {
+            return appendBlock(block, hash) ? Accept.APPENDED : Accept.INVALID;
+        }
+        //otherwise the parent must be a known block, on the chain or on a side branch
+        //a second genesis block forks off below our genesis
+        BigInteger parentWork;
+        int parentIndex;
+        Integer position = parent == null ? Integer.valueOf(-1) : hashIndex.get(parent);
+        if(position != null)
+        {
+            parentWork = workAt(position);
+            parentIndex = position;
+        }
+        else if(sideBlocks.containsKey(parent))
+        {
+            parentWork = sideWork.get(parent);
+            parentIndex = sideBlocks.get(parent).getIndex();
+        }
+        else
+        {
+            return Accept.ORPHAN;
+        }
+        if(block.getIndex() != parentIndex + 1 || !hasRequiredTarget(block))
+        {
+            return Accept.INVALID;
+        }
+        Digest actual = block.calculateDigest();
+        if(!actual.equals(hash) || !block.meetsDifficulty(actual))
+        {
+            return Accept.INVALID;
+        }
+        BigInteger work = parentWork.add(block.getWork());
+        sideBlocks.put(hash, block);
+        sideWork.put(hash, work);
+        //ties keep the branch we saw first
+        if(work.compareTo(totalWork) > 0)
+        {
+            //a branch forked off a block that was repaired since has nothing left to join
+            return reorganize(hash) ? Accept.REORGANIZED : Accept.ORPHAN;
+        }
+        return Accept.SIDE;
+    }
+    /**
+     * This method will take a block whose hash and proof of work were already checked against its header,
+     * so only its position and hash pointer are checked here
+     * @param block the block
+     * @param hash the hash it was checked to have
+     * return true if the block was appended, false if it doesn't sit on the tip
+     */
+    public boolean appendVerified(Block block, Digest hash) throws Exception
+    {
+        if(block.getIndex() != blocks.size())
+        {
+            return false;
+        }
+        if(chainHash == null ? block.getPreviousDigest() != null : !chainHash.equals(block.getPreviousDigest()))
+        {
+            return false;
+        }
+        if(!hasRequiredTarget(block))
+        {
+            return false;
+        }
+        append(block, hash);
+        return true;
+    }
+    /**
+     * This method will record validated headers whose blocks are still being downloaded.
+     * They can be looked up straight away and are dropped as their blocks land
+     * @param headers consecutive headers, each already checked against its parent
+     */
+    public void addHeaders(List<BlockHeader> headers)
+    {
+        for(BlockHeader header : headers)
+        {
+            pendingHeaders.put(header.hash, header);
+            headerHeight = Math.max(headerHeight, header.index + 1);
+        }
+    }
+    /**
+     * This method will forget the headers whose blocks never arrived, so the chain can grow on its own again
+     */
+    public void clearPendingHeaders()
+    {
+        pendingHeaders.clear();
+        headerHeight = blocks.size();
+    }
+    /**
+     * This method will get the height the known headers reach, which is ahead of the chain while blocks are downloaded
+     * return number of blocks known at least by header
+     */
+    public int getHeaderHeight()
+    {
+        return Math.max(headerHeight, blocks.size());
+    }
+    /**
+     * This method will look up a header downloaded ahead of its block
+     * @param hash hash of the block
+     * return the header, or null if no pending header has this hash
+     */
+    public BlockHeader getPendingHeader(Digest hash)
+    {
+        return hash == null ? null : pendingHeaders.get(hash);
+    }
+    /**
+     * This method will tell whether a block is known, on the chain or on a side branch
+     * @param hash the block's hash
+     * return true if the block is known
+     */
+    public boolean knowsBlock(Digest hash)
+    {
+        return hashIndex.containsKey(hash) || sideBlocks.containsKey(hash);
+    }
+    /**
+     * This method will take the blocks from height onwards off the chain. They are kept as a side branch
+     * so the chain can move back onto them if that branch gets heavier again
+     * @param height number of blocks to keep
+     */
+    public void rollbackTo(int height) throws Exception
+    {
+        beginWrite();
+        try
+        {
+            rollback(height);
+        }
+        finally
+        {
+            endWrite();
+        }
+    }
+    /**
+     * This method does the work of rollbackTo inside a write
+     */
+    private void rollback(int height) throws Exception
+    {
+        for(int i = blocks.size() - 1; i >= height; i--)
+        {
+            //snapshots from before the rollback still read these rows
+            preserve(i);
+            Digest hash = getBlockHash(i);
+            //copy views out of the header store, their rows are about to be reused
+            Block block = headerStore != null ? headerStore.detach(i) : blocks.get(i);
+            hashIndex.remove(hash);
+            sideBlocks.put(hash, block);
+            sideWork.put(hash, totalWork);
+            totalWork = totalWork.subtract(block.getWork());
+            chainHash = block.getPreviousDigest();
+        }
+        blocks.subList(height, blocks.size()).clear();
+        //headers downloaded ahead of the chain belonged to the branch that just lost
+        clearPendingHeaders();
+        //blocks below the fork are untouched, so the watermark only drops to the fork
+        verifiedHeight = Math.min(verifiedHeight, height);
+        frozenHeight = Math.min(frozenHeight, height);
+        if(store != null)
+        {
+            store.logRollback(height);
+        }
+        for(Listener listener : listeners)
+        {
+            listener.rolledBack(height);
+        }
+    }
+    /**
+     * This method will move the chain onto the branch ending at the given side block.
+     * Only the blocks above the fork point are rolled back and only the branch's blocks are applied
+     * @param newTip hash of the side block ending the heavier branch
+     * return false when the branch's fork point is no longer on the chain, the branch is dropped then
+     */
+    private boolean reorganize(Digest newTip) throws Exception
+    {
+        //snapshots see the chain before or after the reorganization, never a rolled back chain part way through it
+        beginWrite();
+        try
+        {
+            return switchBranch(newTip);
+        }
+        finally
+        {
+            endWrite();
+        }
+    }
+    /**
+     * This method does the work of reorganize inside a write
+     */
+    private boolean switchBranch(Digest newTip) throws Exception
+    {
+        long start = System.nanoTime();
+        //walk the branch back until we reach the chain (or run past genesis)
+        List<Digest> branch = new ArrayList<Digest>();
+        Digest hash = newTip;
+        while(hash != null && sideBlocks.containsKey(hash))
+        {
+            branch.add(hash);
+            hash = sideBlocks.get(hash).getPreviousDigest();
+        }
+        Integer position = hash == null ? Integer.valueOf(-1) : hashIndex.get(hash);
+        if(position == null)
+        {
+            //the branch forked off a block whose hash changed when it was repaired
+            for(Digest branchHash : branch)
+            {
+                sideBlocks.remove(branchHash);
+                sideWork.remove(branchHash);
+            }
+            return false;
+        }
+        int fork = position;
+        int depth = blocks.size() - (fork + 1);
+        rollbackTo(fork + 1);
+        //apply the branch from the fork point up, every block on it was validated when it arrived
+        Collections.reverse(branch);
+        for(Digest branchHash : branch)
+        {
+            Block block = sideBlocks.remove(branchHash);
+            sideWork.remove(branchHash);
+            append(block, branchHash);
+        }
+        lastReorgDepth = depth;
+        lastReorgNanos = System.nanoTime() - start;
+        return true;
+    }
+    /**
+     * This method will work out the compact target a block at the given height has to meet
+     * @param parent hash of the block it builds on, on the chain or on a side branch
+     * @param index index of the block
+     * return compact target of the block
+     */
+    public int requiredBits(Digest parent, int index)
+    {
+        Block parentBlock = knownBlock(parent);
+        //walk back one window to see how long it took
+        Block windowStart = parentBlock;
+        int intervals = 0;
+        while(intervals < retarget.window && windowStart.getPreviousDigest() != null)
+        {
+            Block older = knownBlock(windowStart.getPreviousDigest());
+            if(older == null)
+            {
+                break;
+            }
+            windowStart = older;
+            intervals++;
+        }
+        return retarget.nextBits(parentBlock, windowStart, intervals, index);
+    }
+    /**
+     * This method will check a block's target against the retargeting rule.
+     * Blocks below the rule's fromHeight may still come without a compact target, so a chain built before
+     * retargeting was turned on can still be replicated; from that height on the rule holds on every branch
+     * @param block the block, already known to follow its parent
+     * return true when the block's target is the one the rule asks for
+     */
+    private boolean hasRequiredTarget(Block block)
+    {
+        if(retarget == null || block.getIndex() == 0)
+        {
+            return true;
+        }
+        if(block.getIndex() < retarget.fromHeight && block.getBits() == 0)
+        {
+            return true;
+        }
+        Block parent = knownBlock(block.getPreviousDigest());
+        return parent != null && block.getBits() == requiredBits(block.getPreviousDigest(), block.getIndex())
+                && block.getDifficulty() == DifficultyTarget.difficultyOf(block.getBits());
+    }
+    /**
+     * This method will find a block by hash on the chain or on a side branch
+     * @param hash hash of the block
+     * return the block, or null if it isn't known
+     */
+    private Block knownBlock(Digest hash)
+    {
+        Block block = getBlockByHash(hash);
+        return block != null ? block : (hash == null ? null : sideBlocks.get(hash));
+    }
+    /**
+     * This method will get the cumulative work of the chain up to and including position i
+     * @param i position on the chain, -1 for none
+     * return cumulative work
+     */
+    private BigInteger workAt(int i)
+    {
+        BigInteger work = totalWork;
+        for(int j = blocks.size() - 1; j > i; j--)
+        {
+            work = work.subtract(blocks.get(j).getWork());
+        }
+        return work;
+    }
+    /**
+     * This method will register a listener for appended blocks
+     * @param listener the listener
+     */
+    public void addListener(Listener listener)
+    {
+        listeners.add(listener);
+    }
+    /**
+     * This method will put a mined block on top of the chain
+     * @param newBlock the block, already pointing at the current tip
+     * @param hash the block's hash
+     */
+    private void append(Block newBlock, Digest hash) throws Exception
+    {
+        chainHash = hash;
+        totalWork = totalWork.add(newBlock.getWork());
+        //record the new hash pointer before the block lands on the chain
+        hashIndex.put(chainHash, blocks.size());
+        //the block's header is not pending any more
+        if(!pendingHeaders.isEmpty())
+        {
+            pendingHeaders.remove(chainHash);
+        }
+        // add newBlock to our chain, the header store can keep its hash as well
+        if(headerStore != null)
+        {
+            headerStore.append(newBlock, chainHash);
+        }
+        else
+        {
+            blocks.add(newBlock);
+        }
+        //a freshly mined block on top of a verified chain is verified as well
+        if(verifiedHeight == blocks.size() - 1)
+        {
+            verifiedHeight = blocks.size();
+        }
+        if(store != null)
+        {
+            store.append(this, newBlock, chainHash);
+        }
+        publish();
+        for(Listener listener : listeners)
+        {
+            listener.blockAppended(newBlock, chainHash);
+        }
+        pruneBodies();
+        if(blocks.size() % SIDE_PRUNE_INTERVAL == 0 && !sideBlocks.isEmpty())
+        {
+            pruneSideBlocks();
+        }
+    }
+    /**
+     * This method will forget side blocks more than SIDE_DEPTH below the tip. Stale forks and rolled back blocks
+     * that deep will not become the heaviest branch again, a block building on one is an orphan from then on
+     */
+    private void pruneSideBlocks()
+    {
+        int lowest = blocks.size() - SIDE_DEPTH;
+        Iterator<Map.Entry<Digest, Block>> entries = sideBlocks.entrySet().iterator();
+        while(entries.hasNext())
+        {
+            Map.Entry<Digest, Block> entry = entries.next();
+            if(entry.getValue().getIndex() < lowest)
+            {
+                sideWork.remove(entry.getKey());
+                entries.remove();
+            }
+        }
+    }
+    /**
+     * This method will move the data of every full segment of blocks below the hot ones to the archive.
+     * It waits while a write is under way, the next append after it catches up
+     */
+    private void pruneBodies() throws Exception
+    {
+        if(hotBodies <= 0 || writes > 0)
+        {
+            return;
+        }
+        while(blocks.size() - frozenHeight >= hotBodies + BodyArchive.SEGMENT_BODIES)
+        {
+            if(archive == null)
+            {
+                //a chain without a store keeps its archive in memory
+                setArchive(new BodyArchive(coldCacheSegments));
+            }
+            freezeSegment();
+        }
+    }
+    /**
+     * This method will compress the data of the SEGMENT_BODIES blocks from frozenHeight into a new archive segment
+     * and point the blocks at it
+     */
+    private void freezeSegment() throws Exception
+    {
+        int from = frozenHeight;
+        String[] data = new String[BodyArchive.SEGMENT_BODIES];
+        long bytes = 0;
+        for(int k = 0; k < data.length; k++)
+        {
+            data[k] = blocks.get(from + k).getData();
+            bytes += data[k] == null ? 0 : data[k].length();
+        }
+        int segment = archive.append(data);
+        beginWrite();
+        try
+        {
+            coldRows(from, segment, data);
+            if(store != null)
+            {
+                store.logFreeze(this, from, segment, data.length, bytes);
+            }
+        }
+        finally
+        {
+            endWrite();
+        }
+    }
+    /**
+     * This method will point blocks at their data in an archive segment, inside a write.
+     * The blocks' content doesn't change, so their hashes stay
+     * @param from position of the first block
+     * @param segment segment holding their data
+     * @param data the data of each block, in slot order
+     */
+    private void coldRows(int from, int segment, String[] data) throws Exception
+    {
+        for(int k = 0; k < data.length; k++)
+        {
+            int i = from + k;
+            Digest dataDigest = BlockHeader.dataDigest(data[k]);
+            if(headerStore != null)
+            {
+                //a snapshot reading the row while its data reference is rewritten needs the kept copy
+                preserve(i);
+                headerStore.makeCold(i, segment, k, dataDigest);
+            }
+            else
+            {
+                //the cold block reads the same as the block it replaces, snapshots may see either
+                blocks.set(i, new ColdBlock(blocks.get(i), archive, segment, k, dataDigest));
+            }
+        }
+        frozenHeight = Math.max(frozenHeight, from + data.length);
+    }
+    /**
+     * This method will set the archive holding the data of old blocks, for cold rows of the header store as well
+     */
+    private void setArchive(BodyArchive archive)
+    {
+        this.archive = archive;
+        if(headerStore != null)
+        {
+            headerStore.setArchive(archive);
+        }
+    }
+    /**
+     * This method will replace the data held by a block, which breaks the hash pointer to it
+     * @param index position of the block
+     * @param data new data for the block
+     */
+    public void corruptBlock(int index, String data) throws IOException
+    {
+        beginWrite();
+        try
+        {
+            modify(index).setData(data);
+            //everything from this block on has to be verified again
+            verifiedHeight = Math.min(verifiedHeight, index);
+            if(store != null)
+            {
+                store.logCorrupt(index, data);
+            }
+        }
+        finally
+        {
+            endWrite();
+        }
+        for(Listener listener : listeners)
+        {
+            listener.blockCorrupted(index, data);
+        }
+    }
+    /**
+     * This method will give a block a new nonce and point its child (or chainHash) at its new hash
+     * @param index position of the block
+     * @param nonce the block's new nonce
+     * @param hash the hash the block has with that nonce
+     */
+    public void applyRepair(int index, long nonce, Digest hash)
+    {
+        beginWrite();
+        try
+        {
+            modify(index).setNonce(nonce);
+            //drop the stale hash pointer from the index before it is replaced
+            if(index == blocks.size() - 1)
+            {
+                hashIndex.remove(chainHash);
+                chainHash = hash;
+            }
+            else
+            {
+                hashIndex.remove(blocks.get(index+1).getPreviousDigest());
+                modify(index+1).setPreviousDigest(hash);
+            }
+            hashIndex.put(hash, index);
+        }
+        finally
+        {
+            endWrite();
+        }
+        for(Listener listener : listeners)
+        {
+            listener.blockRepaired(index, nonce, hash);
+        }
+    }
+    /**
+     * This method will check whether the hash of the block at position i is cached, so checking it needs no hashing
+     * @param i position of the block
+     * return true for an off-heap row with its hash cached
+     */
+    private boolean isHashCached(int i)
+    {
+        return headerStore != null && headerStore.isHashCached(i);
+    }
+    /**
+     * This method will check whether the block at position i hashes to the expected digest
+     * @param i position of the block
+     * @param expected digest the block should hash to
+     * return true when they match
+     */
+    private boolean hashMatches(int i, Digest expected) throws Exception
+    {
+        if(headerStore != null)
+        {
+            return headerStore.hashMatches(i, expected);
+        }
+        return blocks.get(i).calculateDigest().equals(expected);
+    }
+    /**
+     * This method will check whether the block at position i+1 points at the block at position i
+     * @param i position of the parent block
+     * return true when the hash pointer is intact
+     */
+    private boolean isLinked(int i) throws Exception
+    {
+        if(headerStore != null)
+        {
+            return headerStore.isLinked(i);
+        }
+        return blocks.get(i).calculateDigest().equals(blocks.get(i+1).getPreviousDigest());
+    }
+    /**
+     * This method will get the hash pointer recorded for the block at position i.
+     * For every block except the tip it is the previousHash of the next block, for the tip it is chainHash
+     * @param i position of the block on the chain
+     * return hash pointer of that block
+     */
+    public Digest getBlockHash(int i)
+    {
+        if(i == blocks.size() - 1)
+        {
+            return chainHash;
+        }
+        return blocks.get(i+1).getPreviousDigest();
+    }
+    /**
+     * This method will look up a block by its hash pointer using hashIndex
+     * @param hash hash pointer of the block as hex
+     * return the block, or null if no block on the chain has this hash
+     */
+    public Block getBlockByHash(String hash)
+    {
+        try
+        {
+            return getBlockByHash(Digest.fromHex(hash));
+        }
+        catch(IllegalArgumentException e)
+        {
+            //not a SHA-256 hex string, so it can't be on the chain
+            return null;
+        }
+    }
+    /**
+     * This method will look up a block by its hash pointer using hashIndex
+     * @param hash hash pointer of the block
+     * return the block, or null if no block on the chain has this hash
+     */
+    public Block getBlockByHash(Digest hash)
+    {
+        if(hash == null)
+        {
+            return null;
+        }
+        Integer i = hashIndex.get(hash);
+        if(i == null)
+        {
+            return null;
+        }
+        return blocks.get(i);
+    }
+    /**
+     * This method will follow a block's previousHash back to its parent
+     * @param block the child block
+     * return the parent block, or null for the genesis block
+     */
+    public Block getParent(Block block)
+    {
+        return getBlockByHash(block.getPreviousDigest());
+    }
+    /**
+     * This method will walk the previousHash pointers starting at the block with the given hash.
+     * Each hop is one hashIndex lookup, so no block is rehashed along the way
+     * @param hash hash pointer of the block the walk starts at
+     * @param maxDepth maximum number of blocks to return
+     * return the starting block followed by its ancestors, nearest first
+     */
+    public List<Block> getAncestors(Digest hash, int maxDepth)
+    {
+        List<Block> ancestors = new ArrayList<Block>();
+        Block current = getBlockByHash(hash);
+        //keep following hash pointers until we reach genesis or the requested depth
+        while(current != null && ancestors.size() < maxDepth)
+        {
+            ancestors.add(current);
+            current = getParent(current);
+        }
+        return ancestors;
     }
     /**
      * This method will check whether our chain is valid
      * return true or false
      */
     public boolean isChainValid() throws Exception {
+        //a blockchain.Verify flight recorder event, committed only when a recording asks for it
+        ChainEvents.VerifyEvent event = new ChainEvents.VerifyEvent();
+        event.begin();
         //set initial condition to false
         boolean isValid = false;
         //if  we only have a genesis block
         if(getChainSize() == 1)
         {
+            event.scanned = 1;
             //check block's hash value with chainHash value if they match our chain is valid
-            if(blocks.get(0).calculateHash().equals(chainHash))
+            if(hashMatches(0, chainHash))
             {
                 isValid = true;
             }
@@ -110,11 +1128,16 @@ public class BlockChain extends Object{
         {
             for(int i = 0; i < blocks.size(); i++)
             {
+                event.scanned = i + 1;
+                if(event.isEnabled() && isHashCached(i))
+                {
+                    event.cacheHits++;
+                }
                 //if it is not the last block
                 if(i != (blocks.size() - 1))
                 {
                     //if next block's pointer (previousHash) is the same as current block's hash
-                    if(blocks.get(i+1).getPreviousHash().equals(blocks.get(i).calculateHash()))
+                    if(isLinked(i))
                     {
                         isValid = true;
                     }
@@ -122,6 +1145,8 @@ public class BlockChain extends Object{
                     else
                     {
                         isValid = false;
+                        //blocks before this one are still known to be good
+                        verifiedHeight = Math.min(verifiedHeight, i);
                         break;
                     }
                 }
@@ -129,7 +1154,7 @@ public class BlockChain extends Object{
                 else
                 {
                     //check its hash value matches chainHash value
-                    if(blocks.get(i).calculateHash().equals(chainHash))
+                    if(hashMatches(i, chainHash))
                     {
                         isValid = true;
                     }
@@ -137,55 +1162,245 @@ public class BlockChain extends Object{
                     else
                     {
                         isValid = false;
+                        verifiedHeight = Math.min(verifiedHeight, i);
                     }
                 }
             }
         }
+        if(isValid)
+        {
+            verifiedHeight = getChainSize();
+        }
+        if(event.shouldCommit())
+        {
+            event.height = getChainSize();
+            event.valid = isValid;
+            event.commit();
+        }
         return isValid;
     }
     /**
-     * This method will repair our block chain by recalculate proof of work and assign to previousHash
+     * This method will repair our block chain by recalculate proof of work and assign to previousHash.
+     * Every block that needs mining is mined under the same job, so the job's deadline bounds the whole repair;
+     * each block's search still starts at nonce 0. The repaired blocks are logged as they go and waited for
+     * once, by awaitDurable after the repair
+     * @param job search state bounding the mining, see MiningJob
+     * return true if the chain was repaired, false if the job stopped first; the blocks repaired until then stay repaired
      */
-    public void repairChain() throws Exception
+    public boolean repairChain(MiningJob job) throws Exception
     {
+        //the whole repair is one write, snapshots never see a chain that is only partly repaired
+        beginWrite();
+        try
+        {
+            return repairAll(job);
+        }
+        finally
+        {
+            endWrite();
+        }
+    }
+    /**
+     * This method does the work of repairChain inside a write
+     */
+    private boolean repairAll(MiningJob job) throws Exception
+    {
+        //a blockchain.Repair flight recorder event, committed only when a recording asks for it
+        ChainEvents.RepairEvent event = new ChainEvents.RepairEvent();
+        event.begin();
         //loop through entire block chain
         for(int i = 0; i < blocks.size(); i++)
         {
+            event.scanned = i + 1;
+            if(event.isEnabled() && isHashCached(i))
+            {
+                event.cacheHits++;
+            }
             //if it is not the last block
             if(i != (blocks.size() - 1))
             {
                 //when current block's hash doesn't match next block's previoudHash
                 // we re-compute previousHash for next block
-                if(!blocks.get(i+1).getPreviousHash().equals(blocks.get(i).calculateHash()))
+                if(!isLinked(i))
                 {
-                    blocks.get(i+1).setPreviousHash(blocks.get(i).proofOfWork());
+                    if(!repairBlock(i, job))
+                    {
+                        event.commit();
+                        return false;
+                    }
+                    event.repaired++;
                 }
             }
             //if its the last block
             else
             {
                 //when last block's hash doesn't match chainHash, we recompute chainHash by calling proofOfWork
-                if(!blocks.get(i).calculateHash().equals(chainHash))
+                if(!hashMatches(i, chainHash))
                 {
-                    chainHash = blocks.get(i).proofOfWork();
+                    if(!repairBlock(i, job))
+                    {
+                        event.commit();
+                        return false;
+                    }
+                    event.repaired++;
                 }
             }
         }
+        event.commit();
+        //every hash pointer has been recomputed so the whole chain is valid again
+        verifiedHeight = getChainSize();
+        if(store != null)
+        {
+            store.checkpoint(this);
+        }
+        return true;
+    }
+    /**
+     * This method will find a block's proof of work, on the mining pool's workers when the chain has one
+     * @param block the block to mine
+     * @param job search state bounding the mining
+     * return the block's hash, or null if the job stopped first
+     */
+    private Digest mine(Block block, MiningJob job) throws Exception
+    {
+        return miningPool != null ? miningPool.mine(block, job) : block.proofOfWork(job);
+    }
+    /**
+     * This method will mine a block again and point its child (or chainHash) at the new hash
+     * @param i position of the block
+     * @param job search state bounding the mining
+     * return true if the block was repaired, false if the job stopped first
+     */
+    private boolean repairBlock(int i, MiningJob job) throws Exception
+    {
+        //mine a copy, the block on the chain only changes once the new nonce is known
+        Block block = blocks.get(i).copy();
+        //the job is shared by the whole repair, the previous block's nonce means nothing to this one
+        job.nextBlock();
+        Digest hash = mine(block, job);
+        if(hash == null)
+        {
+            return false;
+        }
+        applyRepair(i, block.getNonce(), hash);
+        if(headerStore != null)
+        {
+            //the hash was just mined, so the row's cache can hold it
+            headerStore.cacheHash(i, hash);
+        }
+        if(store != null)
+        {
+            store.logRepair(i, block.getNonce(), hash);
+        }
+        return true;
+    }
+    /**
+     * This method will start a write that changes blocks already on the chain.
+     * Writes nest; the chain's new state is published to snapshots when the outermost one ends
+     */
+    private void beginWrite()
+    {
+        writes++;
+    }
+    /**
+     * This method will end a write, publishing the chain's new state if it was the outermost one
+     */
+    private void endWrite()
+    {
+        writes--;
+        if(writes == 0 && !current.before.isEmpty())
+        {
+            //the rows this write kept belong to the snapshots from before it, later writes keep theirs in a new version
+            ChainSnapshot.Version next = new ChainSnapshot.Version(current.number + 1);
+            current.next = next;
+            current = next;
+        }
+        publish();
+    }
+    /**
+     * This method will publish the chain's state to snapshots, unless a write is still under way
+     */
+    private void publish()
+    {
+        if(writes == 0)
+        {
+            head = new ChainSnapshot(this, headerStore, current, blocks.size(), chainHash);
+        }
+    }
+    /**
+     * This method will keep block i as it is before the current write changes it, for the snapshots taken before
+     * the write. Only the first change of a write is kept
+     * @param i position of the block
+     */
+    private void preserve(int i)
+    {
+        if(current.before.containsKey(i))
+        {
+            return;
+        }
+        //on the heap blocks are never changed in place, so the block itself is the copy
+        current.before.put(i, headerStore != null ? headerStore.detach(i) : blocks.get(i));
+        //cached renderings of the page no longer match the chain from this write on
+        pageWrites.put(i / PAGE_BLOCKS, current.number + 1);
+        renderedPages.remove(i / PAGE_BLOCKS);
+    }
+    /**
+     * This method will get block i ready for the current write to change it.
+     * An off-heap row is changed in place once it is kept; an on-heap block is replaced by a copy,
+     * so a snapshot or side branch that already holds the block never sees it change
+     * @param i position of the block
+     * return the block to change
+     */
+    private Block modify(int i)
+    {
+        preserve(i);
+        if(headerStore != null)
+        {
+            return blocks.get(i);
+        }
+        Block copy = blocks.get(i).copy();
+        blocks.set(i, copy);
+        return copy;
+    }
+    /**
+     * This method will get a cached rendering of a full page of blocks, if it still matches a snapshot
+     * @param page page number
+     * @param version version of the snapshot being exported
+     * return the rendered page, or null if it has to be rendered
+     */
+    String renderedPage(int page, long version)
+    {
+        RenderedPage rendered = renderedPages.get(page);
+        Long written = pageWrites.get(page);
+        //the rendering matches the snapshot if neither was taken before the page's latest write
+        long lastWrite = written == null ? 0 : written;
+        return rendered != null && lastWrite <= Math.min(rendered.version, version) ? rendered.json : null;
+    }
+    /**
+     * This method will cache the rendering of a full page of blocks, unless a newer one is cached
+     * @param page page number
+     * @param version version of the snapshot it was rendered from
+     * @param json the rendered page
+     */
+    void keepRenderedPage(int page, long version, String json)
+    {
+        synchronized(renderedPages)
+        {
+            RenderedPage cached = renderedPages.get(page);
+            if(cached == null || cached.version <= version)
+            {
+                renderedPages.put(page, new RenderedPage(version, json));
+            }
+        }
     }
     /**
      * This method will convert blockchain into a string
-     * return json string
+     * return json string of the latest snapshot
      */
     @Override
     public String toString()
     {
-        //https://stackoverflow.com/questions/4683856/creating-gson-object
-        JsonObject jsonObj = new JsonObject();
-        //set key value pairs
-        jsonObj.addProperty("ds_chain",blocks.toString());
-        jsonObj.addProperty("chainHash",chainHash);
-        //remove \s
-        return jsonObj.toString().replaceAll("\\\\","");
+        return snapshot().toString();
     }
 
     /**
@@ -211,4 +1426,18 @@ public class BlockChain extends Object{
         // return the last 20 byte from the key we build
         return last20Byte;
     }
+
+    /**
+     * This class is the JSON of one full page of blocks and the version of the snapshot it was rendered from
+     */
+    private static final class RenderedPage {
+        final long version;
+        final String json;
+
+        RenderedPage(long version, String json)
+        {
+            this.version = version;
+            this.json = json;
+        }
+    }
 }
@@ -0,0 +1,158 @@
+/**
+ * This class represents the header of a block without its data.
+ * A header carries index, timestamp, previousHash, nonce, difficulty and compact target like the block itself,
+ * plus a SHA-256 commitment to the block's data and the hash the block was mined to.
+ * Headers are what a new replica downloads first: the chain of hash pointers and the proof of work
+ * on each claimed hash can be checked from headers alone, and each body fetched afterwards is checked
+ * against its header's data commitment and hash.
+ */
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.sql.Timestamp;
+import java.lang.Object;
+import com.google.gson.JsonObject;
+
+public final class BlockHeader extends Object{
+    public final int index; //position of the block on the chain
+    public final long timestamp; //epoch milliseconds of the block's creation
+    public final int difficulty; //leading hex zeroes the block's hash needs
+    public final int bits; //compact target the block's hash needs, 0 when difficulty alone applies
+    public final long nonce; //the nonce the block was mined with
+    public final Digest previousHash; //hash pointer to the parent, null for genesis
+    public final Digest dataDigest; //SHA-256 of the block's UTF-8 data, null for no data
+    public final Digest hash; //the hash the block was mined to
+    /**
+     * This is the constructor which sets every header field
+     */
+    public BlockHeader(int index, long timestamp, int difficulty, int bits, long nonce, Digest previousHash, Digest dataDigest, Digest hash)
+    {
+        this.index = index;
+        this.timestamp = timestamp;
+        this.difficulty = difficulty;
+        this.bits = bits;
+        this.nonce = nonce;
+        this.previousHash = previousHash;
+        this.dataDigest = dataDigest;
+        this.hash = hash;
+    }
+    /**
+     * This method builds the header of a block on the chain
+     * @param block the block
+     * @param hash the block's hash pointer
+     * return the header
+     */
+    public static BlockHeader of(Block block, Digest hash) throws Exception
+    {
+        return new BlockHeader(block.getIndex(), block.getTimestampMillis(), block.getDifficulty(), block.getBits(), block.getNonce(),
+                block.getPreviousDigest(), block.getDataDigest(), hash);
+    }
+    /**
+     * This method computes the commitment a header keeps for a block's data
+     * @param data the block's data, may be null
+     * return SHA-256 of the UTF-8 data, null for no data
+     */
+    public static Digest dataDigest(String data) throws Exception
+    {
+        if(data == null)
+        {
+            return null;
+        }
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        return Digest.fromBytes(digest.digest(data.getBytes(StandardCharsets.UTF_8)));
+    }
+    /**
+     * This method checks what can be checked without the block's data:
+     * the claimed hash meets the header's target and, when the parent's header is given,
+     * this header follows it and points at its hash
+     * @param parent header of the previous block, null when it isn't known here
+     * return true when the header is consistent
+     */
+    public boolean isValid(BlockHeader parent)
+    {
+        if(hash == null || hash.compareTo(DifficultyTarget.target(difficulty, bits)) > 0)
+        {
+            return false;
+        }
+        if(parent != null)
+        {
+            return index == parent.index + 1 && parent.hash.equals(previousHash);
+        }
+        return true;
+    }
+    /**
+     * This method checks that a downloaded body belongs to this header and hashes to the header's hash
+     * @param block the block fetched for this header
+     * return true when the block is the one this header describes
+     */
+    public boolean matches(Block block) throws Exception
+    {
+        if(block.getIndex() != index || block.getTimestampMillis() != timestamp || block.getDifficulty() != difficulty
+                || block.getBits() != bits || block.getNonce() != nonce)
+        {
+            return false;
+        }
+        if(previousHash == null ? block.getPreviousDigest() != null : !previousHash.equals(block.getPreviousDigest()))
+        {
+            return false;
+        }
+        Digest data = dataDigest(block.getData());
+        if(dataDigest == null ? data != null : !dataDigest.equals(data))
+        {
+            return false;
+        }
+        return block.calculateDigest().equals(hash);
+    }
+    /**
+     * This method writes the header in compact binary form:
+     * index, timestamp, difficulty, compact target, nonce, then previousHash, dataDigest and hash as written by Digest.write
+     * @param out where the header is written
+     */
+    public void writeTo(DataOutput out) throws IOException
+    {
+        out.writeInt(index);
+        out.writeLong(timestamp);
+        out.writeInt(difficulty);
+        out.writeInt(bits);
+        out.writeLong(nonce);
+        Digest.write(out, previousHash);
+        Digest.write(out, dataDigest);
+        Digest.write(out, hash);
+    }
+    /**
+     * This method reads a header written by writeTo
+     * @param in where the header is read from
+     * return the header
+     */
+    public static BlockHeader readFrom(DataInput in) throws IOException
+    {
+        int index = in.readInt();
+        long timestamp = in.readLong();
+        int difficulty = in.readInt();
+        int bits = in.readInt();
+        long nonce = in.readLong();
+        return new BlockHeader(index, timestamp, difficulty, bits, nonce, Digest.read(in), Digest.read(in), Digest.read(in));
+    }
+    /**
+     * This method Overrides toString in class java.lang.Object
+     * return a JSON representation of the header, using the same keys as Block
+     */
+    @Override
+    public String toString()
+    {
+        JsonObject jsonObj = new JsonObject();
+        jsonObj.addProperty("index",index);
+        jsonObj.addProperty("time stamp",new Timestamp(timestamp).toString());
+        jsonObj.addProperty("TxDigest",Digest.toHex(dataDigest));
+        jsonObj.addProperty("PrevHash",Digest.toHex(previousHash));
+        jsonObj.addProperty("nonce",nonce);
+        jsonObj.addProperty("difficulty",difficulty);
+        if(bits != 0)
+        {
+            jsonObj.addProperty("target",Integer.toHexString(bits));
+        }
+        return jsonObj.toString();
+    }
+}
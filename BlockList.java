@@ -0,0 +1,111 @@
+/**
+ * This class is the list of blocks an ordinary BlockChain keeps on the heap.
+ *
+ * A ChainSnapshot reads it on other threads while the chain appends, which an ArrayList doesn't allow:
+ * growing would copy its array under the reader. Blocks are held in chunks of CHUNK_BLOCKS that are never copied,
+ * and the chunk table is replaced rather than changed when it grows. Slots are read and written with volatile
+ * semantics, so a reader that sees a replaced block also sees the copy of the old one the chain kept for it.
+ */
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public class BlockList extends AbstractList<Block> {
+    //blocks per chunk
+    private static final int CHUNK_SHIFT = 12;
+    private static final int CHUNK_BLOCKS = 1 << CHUNK_SHIFT;
+    //chunks allocated so far, replaced by a longer copy when the list outgrows it
+    private volatile Object[] chunks = new Object[16];
+    //number of blocks held
+    private int size;
+
+    /**
+     * This method Overrides get in class AbstractList
+     * return block i
+     */
+    @Override
+    public Block get(int i)
+    {
+        checkRow(i);
+        return chunk(i).get(i & (CHUNK_BLOCKS - 1));
+    }
+    /**
+     * This method Overrides size in class AbstractList
+     * return number of blocks held
+     */
+    @Override
+    public int size()
+    {
+        return size;
+    }
+    /**
+     * This method Overrides add in class AbstractList, appending the block
+     * return true
+     */
+    @Override
+    public boolean add(Block block)
+    {
+        int chunk = size >>> CHUNK_SHIFT;
+        Object[] table = chunks;
+        if(chunk == table.length)
+        {
+            table = Arrays.copyOf(table, table.length * 2);
+        }
+        if(table[chunk] == null)
+        {
+            table[chunk] = new AtomicReferenceArray<Block>(CHUNK_BLOCKS);
+        }
+        //publish the table only once it holds the new chunk
+        chunks = table;
+        chunk(size).set(size & (CHUNK_BLOCKS - 1), block);
+        size++;
+        modCount++;
+        return true;
+    }
+    /**
+     * This method Overrides set in class AbstractList, replacing block i
+     * return the block that was there
+     */
+    @Override
+    public Block set(int i, Block block)
+    {
+        checkRow(i);
+        return chunk(i).getAndSet(i & (CHUNK_BLOCKS - 1), block);
+    }
+    /**
+     * This method Overrides removeRange in class AbstractList. Only the last blocks can be removed,
+     * which is all a chain rollback needs
+     */
+    @Override
+    protected void removeRange(int fromIndex, int toIndex)
+    {
+        if(toIndex != size)
+        {
+            throw new UnsupportedOperationException("Only the tail of a block list can be removed");
+        }
+        for(int i = fromIndex; i < toIndex; i++)
+        {
+            chunk(i).set(i & (CHUNK_BLOCKS - 1), null);
+        }
+        size = fromIndex;
+        modCount++;
+    }
+    /**
+     * This method will get the chunk holding block i
+     */
+    @SuppressWarnings("unchecked")
+    private AtomicReferenceArray<Block> chunk(int i)
+    {
+        return (AtomicReferenceArray<Block>) chunks[i >>> CHUNK_SHIFT];
+    }
+    /**
+     * This method throws when i is not a stored block
+     */
+    private void checkRow(int i)
+    {
+        if(i < 0 || i >= size)
+        {
+            throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+        }
+    }
+}
@@ -0,0 +1,379 @@
+/**
+ * This class keeps the data of old blocks compressed, in segments of SEGMENT_BODIES bodies each.
+ * Once a stretch of the chain is far enough below the tip BlockChain hands its bodies over here and keeps only
+ * the headers and each body's data commitment; the body is read back from its segment when someone asks for it.
+ *
+ * Segments are appended to one file, cold.dat, each laid out as
+ *   int magic, int number of bodies, int uncompressed length, int compressed length, compressed bytes, long CRC32
+ * of the compressed bytes. Before compression the bodies are written one after the other as a boolean (false for
+ * null data), the length of the UTF-8 bytes and the bytes. A segment cut short by a crash fails its checksum
+ * when the file is opened and is cut off; the log never refers to it, since a segment is forced to disk before
+ * the log records it. Without a file the segments are kept compressed in memory.
+ *
+ * Reading a body inflates its whole segment, so the most recently read segments are kept inflated.
+ * Reads don't take the chain's lock: the file is read at absolute positions and inflating happens outside
+ * the archive's lock.
+ */
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import com.google.gson.JsonObject;
+
+public class BodyArchive {
+    //bodies per segment
+    public static final int SEGMENT_BODIES = 1024;
+    //identifies the start of a segment
+    private static final int SEGMENT_MAGIC = 0x434f4c44;
+    //bytes before a segment's compressed bytes, and after them
+    private static final int HEADER_BYTES = 16;
+    private static final int TRAILER_BYTES = 8;
+
+    private final File file; //file holding the segments, null when they are kept in memory
+    private final FileChannel channel; //open channel on the file, null without one
+    private final int cacheSegments; //most segments kept inflated
+    private final List<Segment> segments = new ArrayList<Segment>(); //every segment by number, guarded by this
+    //inflated segments, least recently read dropped first, guarded by this
+    private final Map<Integer, String[]> inflated;
+    private long rawBytes; //uncompressed bytes of every segment
+    private long compressedBytes; //compressed bytes of every segment
+    private long bodies; //bodies held
+    private final AtomicLong hits = new AtomicLong(); //reads answered from an inflated segment
+    private final AtomicLong misses = new AtomicLong(); //reads that had to inflate their segment
+    /**
+     * constructor for an archive kept in memory
+     * @param cacheSegments most segments kept inflated
+     */
+    public BodyArchive(int cacheSegments)
+    {
+        this.file = null;
+        this.channel = null;
+        this.cacheSegments = cacheSegments;
+        this.inflated = lru(cacheSegments);
+    }
+    /**
+     * constructor which opens (or creates) an archive file and reads the location of every intact segment
+     * @param file the archive file
+     * @param cacheSegments most segments kept inflated
+     */
+    public BodyArchive(File file, int cacheSegments) throws IOException
+    {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.cacheSegments = cacheSegments;
+        this.inflated = lru(cacheSegments);
+        scan();
+    }
+    /**
+     * This method compresses bodies into a new segment and, with a file, forces it to disk
+     * @param data the bodies, at most SEGMENT_BODIES of them
+     * return number of the new segment
+     */
+    public int append(String[] data) throws IOException
+    {
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(raw);
+        for(String body : data)
+        {
+            out.writeBoolean(body != null);
+            if(body != null)
+            {
+                byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+        out.flush();
+        byte[] compressed = deflate(raw.toByteArray());
+        Segment segment = new Segment(data.length, raw.size(), compressed.length);
+        if(channel == null)
+        {
+            segment.bytes = compressed;
+        }
+        else
+        {
+            CRC32 crc = new CRC32();
+            crc.update(compressed);
+            ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + compressed.length + TRAILER_BYTES);
+            record.putInt(SEGMENT_MAGIC);
+            record.putInt(data.length);
+            record.putInt(raw.size());
+            record.putInt(compressed.length);
+            record.put(compressed);
+            record.putLong(crc.getValue());
+            record.flip();
+            long position = channel.size();
+            segment.offset = position + HEADER_BYTES;
+            while(record.hasRemaining())
+            {
+                position += channel.write(record, position);
+            }
+            //the log may only point at the segment once it is on disk
+            channel.force(false);
+        }
+        synchronized(this)
+        {
+            segments.add(segment);
+            add(segment);
+            return segments.size() - 1;
+        }
+    }
+    /**
+     * This method reads one body back
+     * @param segment number of the segment holding it
+     * @param slot position of the body in the segment
+     * return the body's data, may be null
+     */
+    public String body(int segment, int slot)
+    {
+        Segment location;
+        String[] data;
+        synchronized(this)
+        {
+            location = segments.get(segment);
+            data = inflated.get(segment);
+        }
+        if(data != null)
+        {
+            hits.incrementAndGet();
+            return data[slot];
+        }
+        misses.incrementAndGet();
+        data = inflate(location);
+        synchronized(this)
+        {
+            inflated.put(segment, data);
+        }
+        return data[slot];
+    }
+    /**
+     * This method will get the number of segments held
+     */
+    public synchronized int segments()
+    {
+        return segments.size();
+    }
+    /**
+     * This method closes the archive file
+     */
+    public void close() throws IOException
+    {
+        if(channel != null)
+        {
+            channel.close();
+        }
+    }
+    /**
+     * This method will report how much the archive holds and how well its cache does
+     * return JSON object with segments, bodies, raw and compressed bytes, cache hits and misses
+     */
+    public JsonObject metrics()
+    {
+        JsonObject jsonObj = new JsonObject();
+        synchronized(this)
+        {
+            jsonObj.addProperty("segments", segments.size());
+            jsonObj.addProperty("bodies", bodies);
+            jsonObj.addProperty("rawBytes", rawBytes);
+            jsonObj.addProperty("compressedBytes", compressedBytes);
+        }
+        jsonObj.addProperty("cacheSegments", cacheSegments);
+        jsonObj.addProperty("cacheHits", hits.get());
+        jsonObj.addProperty("cacheMisses", misses.get());
+        return jsonObj;
+    }
+    /**
+     * This method reads the location of every intact segment in the file and cuts off a torn tail
+     */
+    private void scan() throws IOException
+    {
+        long size = channel.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        while(position + HEADER_BYTES + TRAILER_BYTES <= size)
+        {
+            header.clear();
+            readFully(header, position);
+            header.flip();
+            int magic = header.getInt();
+            int count = header.getInt();
+            int rawLength = header.getInt();
+            int compressedLength = header.getInt();
+            if(magic != SEGMENT_MAGIC || count <= 0 || count > SEGMENT_BODIES || rawLength < 0 || compressedLength < 0
+                    || position + HEADER_BYTES + compressedLength + TRAILER_BYTES > size)
+            {
+                break;
+            }
+            ByteBuffer compressed = ByteBuffer.allocate(compressedLength + TRAILER_BYTES);
+            readFully(compressed, position + HEADER_BYTES);
+            CRC32 crc = new CRC32();
+            crc.update(compressed.array(), 0, compressedLength);
+            compressed.position(compressedLength);
+            if(compressed.getLong() != crc.getValue())
+            {
+                break;
+            }
+            Segment segment = new Segment(count, rawLength, compressedLength);
+            segment.offset = position + HEADER_BYTES;
+            segments.add(segment);
+            add(segment);
+            position += HEADER_BYTES + compressedLength + TRAILER_BYTES;
+        }
+        if(position < size)
+        {
+            System.out.println("Truncating " + (size - position) + " bytes of torn segment tail in " + file);
+            channel.truncate(position);
+            channel.force(true);
+        }
+    }
+    /**
+     * This method counts a segment into the totals reported by metrics
+     */
+    private void add(Segment segment)
+    {
+        bodies += segment.count;
+        rawBytes += segment.rawLength;
+        compressedBytes += segment.compressedLength;
+    }
+    /**
+     * This method reads a segment's compressed bytes and inflates them back into its bodies
+     */
+    private String[] inflate(Segment segment)
+    {
+        try
+        {
+            byte[] compressed = segment.bytes;
+            if(compressed == null)
+            {
+                ByteBuffer buffer = ByteBuffer.allocate(segment.compressedLength);
+                readFully(buffer, segment.offset);
+                compressed = buffer.array();
+            }
+            Inflater inflater = new Inflater();
+            byte[] raw = new byte[segment.rawLength];
+            try
+            {
+                inflater.setInput(compressed);
+                int length = 0;
+                while(length < raw.length && !inflater.finished())
+                {
+                    int n = inflater.inflate(raw, length, raw.length - length);
+                    if(n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    {
+                        throw new IOException("Segment ends early in " + file);
+                    }
+                    length += n;
+                }
+            }
+            finally
+            {
+                inflater.end();
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(raw));
+            String[] data = new String[segment.count];
+            for(int i = 0; i < data.length; i++)
+            {
+                if(in.readBoolean())
+                {
+                    byte[] bytes = new byte[in.readInt()];
+                    in.readFully(bytes);
+                    data[i] = new String(bytes, StandardCharsets.UTF_8);
+                }
+            }
+            return data;
+        }
+        catch(DataFormatException e)
+        {
+            throw new UncheckedIOException(new IOException("Damaged segment in " + file, e));
+        }
+        catch(IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+    /**
+     * This method compresses bytes with Deflater
+     */
+    private static byte[] deflate(byte[] raw)
+    {
+        Deflater deflater = new Deflater();
+        try
+        {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 4 + 64);
+            byte[] buffer = new byte[8192];
+            while(!deflater.finished())
+            {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        }
+        finally
+        {
+            deflater.end();
+        }
+    }
+    /**
+     * This method fills a buffer from the file starting at an absolute position
+     */
+    private void readFully(ByteBuffer buffer, long position) throws IOException
+    {
+        while(buffer.hasRemaining())
+        {
+            int n = channel.read(buffer, position);
+            if(n < 0)
+            {
+                throw new IOException("Unexpected end of " + file);
+            }
+            position += n;
+        }
+    }
+    /**
+     * This method builds the map of inflated segments, dropping the least recently read past the limit
+     */
+    private static Map<Integer, String[]> lru(final int limit)
+    {
+        return new LinkedHashMap<Integer, String[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, String[]> eldest)
+            {
+                return size() > limit;
+            }
+        };
+    }
+
+    /**
+     * This class is where one segment lives
+     */
+    private static final class Segment {
+        final int count; //bodies in the segment
+        final int rawLength; //bytes before compression
+        final int compressedLength; //bytes after compression
+        long offset; //position of the compressed bytes in the file
+        byte[] bytes; //the compressed bytes when there is no file
+
+        Segment(int count, int rawLength, int compressedLength)
+        {
+            this.count = count;
+            this.rawLength = rawLength;
+            this.compressedLength = compressedLength;
+        }
+    }
+}
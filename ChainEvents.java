@@ -0,0 +1,169 @@
+/**
+ * This class holds the Java Flight Recorder events the server emits from its hot paths:
+ *   blockchain.Request     - one client request: operation, DID, chain, how long parsing, the signature check and the
+ *                            operation itself took, and how it ended
+ *   blockchain.ProofOfWork - one proofOfWork run: block index, difficulty, nonces tried and whether it found one.
+ *                            JFR records the mining thread with every event
+ *   blockchain.Verify      - one isChainValid, or one verification of a snapshot: blocks scanned, hashes taken
+ *                            from the off-heap cache instead of being computed, and the result
+ *   blockchain.Repair      - one repairChain: blocks scanned and blocks mined again
+ *   blockchain.LogFlush    - one force of the write-ahead log, with the bytes it made durable
+ *
+ * Every event is disabled by default, so a recording only holds them when asked for, for example
+ *   java -XX:StartFlightRecording:filename=server.jfr,+blockchain.Request#enabled=true VerifyingServerTCP
+ * A disabled event costs an allocation the JIT removes and a check that it is disabled; durations and counts
+ * are only measured for enabled events.
+ */
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+public final class ChainEvents {
+    private ChainEvents()
+    {
+    }
+
+    /**
+     * This class is the event for one client request
+     */
+    @Name("blockchain.Request")
+    @Label("Request")
+    @Category("BlockChain")
+    @Description("A client request, from reading it to its reply")
+    @Enabled(false)
+    @StackTrace(false)
+    static final class RequestEvent extends Event {
+        @Label("Operation")
+        String operation; //operation code, null when the request couldn't be read
+        @Label("DID")
+        String did; //id of the sender
+        @Label("Chain")
+        String chain; //name of the chain asked for, null for the default chain
+        @Label("Parse")
+        @Timespan(Timespan.NANOSECONDS)
+        long parse; //reading and parsing the request
+        @Label("Verify")
+        @Timespan(Timespan.NANOSECONDS)
+        long verify; //checking the id and signature
+        @Label("Execute")
+        @Timespan(Timespan.NANOSECONDS)
+        long execute; //running the operation, waiting in the chain's queue and for its lock included
+        @Label("Outcome")
+        String outcome; //OK, or the code of the rejection
+        private transient long mark; //System.nanoTime at the end of the last stage
+
+        /**
+         * This method starts timing the request
+         */
+        void start()
+        {
+            begin();
+            if(isEnabled())
+            {
+                mark = System.nanoTime();
+            }
+        }
+        /**
+         * This method ends the current stage
+         * return nanoseconds since the previous stage ended, 0 when the event is disabled
+         */
+        long lap()
+        {
+            if(!isEnabled())
+            {
+                return 0;
+            }
+            long now = System.nanoTime();
+            long lap = now - mark;
+            mark = now;
+            return lap;
+        }
+    }
+
+    /**
+     * This class is the event for one proofOfWork run
+     */
+    @Name("blockchain.ProofOfWork")
+    @Label("Proof of Work")
+    @Category("BlockChain")
+    @Description("A search for a nonce meeting a block's target")
+    @Enabled(false)
+    @StackTrace(false)
+    static final class ProofOfWorkEvent extends Event {
+        @Label("Index")
+        int index; //index of the block mined
+        @Label("Difficulty")
+        int difficulty; //leading hex zeroes asked for
+        @Label("Target Bits")
+        int bits; //compact target, 0 when difficulty alone applies
+        @Label("Attempts")
+        long attempts; //nonces tried in this run
+        @Label("Found")
+        boolean found; //false when the job stopped first
+        @Label("Backend")
+        String backend; //hash backend that searched
+    }
+
+    /**
+     * This class is the event for one verification of the chain or of a snapshot
+     */
+    @Name("blockchain.Verify")
+    @Label("Verify")
+    @Category("BlockChain")
+    @Description("A check of every hash pointer on the chain")
+    @Enabled(false)
+    @StackTrace(false)
+    static final class VerifyEvent extends Event {
+        @Label("Height")
+        int height; //blocks on the chain verified
+        @Label("Blocks Scanned")
+        int scanned; //blocks checked before the result was known
+        @Label("Cache Hits")
+        int cacheHits; //blocks whose hash came from the off-heap cache
+        @Label("Valid")
+        boolean valid; //result
+        @Label("Snapshot")
+        boolean snapshot; //true for a snapshot verified without the chain's lock
+    }
+
+    /**
+     * This class is the event for one repairChain
+     */
+    @Name("blockchain.Repair")
+    @Label("Repair")
+    @Category("BlockChain")
+    @Description("A repair mining every block whose hash pointer is broken again")
+    @Enabled(false)
+    @StackTrace(false)
+    static final class RepairEvent extends Event {
+        @Label("Blocks Scanned")
+        int scanned; //blocks checked
+        @Label("Cache Hits")
+        int cacheHits; //blocks whose hash came from the off-heap cache
+        @Label("Blocks Repaired")
+        int repaired; //blocks mined again
+    }
+
+    /**
+     * This class is the event for one force of the write-ahead log
+     */
+    @Name("blockchain.LogFlush")
+    @Label("Log Flush")
+    @Category("BlockChain")
+    @Description("A FileChannel.force of the write-ahead log")
+    @Enabled(false)
+    @StackTrace(false)
+    static final class LogFlushEvent extends Event {
+        @Label("Durability")
+        String durability; //durability mode of the log
+        @Label("Bytes")
+        @DataAmount
+        long bytes; //bytes written since the previous force
+    }
+}
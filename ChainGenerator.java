@@ -0,0 +1,378 @@
+/**
+ * This program builds large chains for scale testing without going through VerifyingServerTCP.
+ *
+ * The chain is a function of its settings alone: the same seed, size, difficulty and number of keys give the
+ * same blocks, hashes and chainHash on every run. Each block carries the "rsa,did" data the server would store
+ * for a client: the RSA modulus of one of a fixed set of keys made from the seed, and the DID generateDID computes
+ * for it. Timestamps start at a fixed time and move on by about -Dgenerator.blockMillis per block.
+ *
+ * Every block is mined with the lowest nonce that meets its difficulty. Blocks expected to need more than one
+ * range of nonces have their nonces split over -Dgenerator.threads threads, range by range, and the lowest
+ * nonce found wins, so the result doesn't depend on the number of threads. The keys are made in parallel as well.
+ * For higher difficulties -Dgenerator.nonceTable names a file holding the nonce of every block; a run
+ * with the same settings checks each nonce with a single hash instead of mining, and the file is written at the
+ * end of every run.
+ *
+ * Usage:
+ *   java ChainGenerator blocks
+ * with the chain written to the store in -Dblockchain.dir (kept in memory when it isn't set), off-heap with
+ * -Dblockchain.offheap=true, and these settings:
+ *   -Dgenerator.seed        seed the chain is made from (1)
+ *   -Dgenerator.difficulty  leading hex zeroes of every block (1)
+ *   -Dgenerator.keys        number of client keys the data is spread over (16)
+ *   -Dgenerator.threads     mining and key threads (number of processors)
+ *   -Dgenerator.blockMillis average time between two blocks' timestamps (5000)
+ *   -Dgenerator.nonceTable  file of nonces to reuse and update
+ *   -Dgenerator.corrupt     comma separated indexes whose data is replaced once the chain is built, to exercise
+ *                           verification and repair
+ */
+import javax.xml.bind.DatatypeConverter;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class ChainGenerator {
+    //epoch milliseconds of the genesis block
+    private static final long START_MILLIS = 1600000000000L;
+    //identifies a nonce table file and its layout version
+    private static final int TABLE_MAGIC = 0x4e4f4e43;
+    private static final int TABLE_VERSION = 1;
+    //bits of each prime of a generated key, as SigningClientTCP.generateNED uses
+    private static final int PRIME_BITS = 400;
+
+    private final long seed; //seed every choice is made from
+    private final int difficulty; //leading hex zeroes of every block
+    private final int keys; //number of client keys
+    private final int threads; //threads mining one block and making keys
+    private final long blockMillis; //average time between two blocks
+    private File nonceTable; //file of nonces to reuse and update, null for none
+    private int[] corruptions = new int[0]; //indexes whose data is replaced at the end
+    private long tableHits; //blocks whose nonce came from the table in the latest run
+    /**
+     * constructor for a generator with the given settings
+     * @param seed seed every choice is made from
+     * @param difficulty leading hex zeroes of every block
+     * @param keys number of client keys the data is spread over
+     * @param threads threads mining one block and making keys
+     * @param blockMillis average time between two blocks' timestamps
+     */
+    public ChainGenerator(long seed, int difficulty, int keys, int threads, long blockMillis)
+    {
+        this.seed = seed;
+        this.difficulty = difficulty;
+        this.keys = keys;
+        this.threads = Math.max(1, threads);
+        this.blockMillis = blockMillis;
+    }
+    /**
+     * This method will have the generator reuse and update a table of nonces
+     * @param nonceTable the table file, it doesn't have to exist yet
+     */
+    public void setNonceTable(File nonceTable)
+    {
+        this.nonceTable = nonceTable;
+    }
+    /**
+     * This method will have the generator replace the data of some blocks once the chain is built
+     * @param corruptions indexes of the blocks, ones past the end of the chain are ignored
+     */
+    public void setCorruptions(int[] corruptions)
+    {
+        this.corruptions = corruptions.clone();
+    }
+    /**
+     * This method will get how many blocks of the latest run took their nonce from the table
+     */
+    public long getTableHits()
+    {
+        return tableHits;
+    }
+    /**
+     * This method builds the chain on an empty BlockChain, which may be opened on a store
+     * @param bc the empty chain, it must not retarget
+     * @param blocks number of blocks, genesis included
+     */
+    public void generate(BlockChain bc, int blocks) throws Exception
+    {
+        if(bc.getChainSize() != 0)
+        {
+            throw new IllegalStateException("The chain already holds " + bc.getChainSize() + " blocks");
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try
+        {
+            String[] data = clientData(bc, pool);
+            long[] table = readTable();
+            long[] nonces = new long[blocks];
+            tableHits = 0;
+            //block choices come from their own stream so they don't depend on how the keys were made
+            Random rnd = new Random(seed);
+            long timestamp = START_MILLIS;
+            for(int i = 0; i < blocks; i++)
+            {
+                Block block = new Block(i, timestamp, i == 0 ? "Genesis" : data[rnd.nextInt(data.length)], difficulty);
+                block.setPreviousDigest(bc.chainHash);
+                Digest hash = null;
+                if(i < table.length)
+                {
+                    //a nonce from the table costs one hash to check
+                    block.setNonce(table[i]);
+                    hash = block.calculateDigest();
+                    if(block.meetsDifficulty(hash))
+                    {
+                        tableHits++;
+                    }
+                    else
+                    {
+                        hash = null;
+                    }
+                }
+                if(hash == null)
+                {
+                    block.setNonce(mine(block, pool));
+                    hash = block.calculateDigest();
+                }
+                nonces[i] = block.getNonce();
+                if(!bc.appendBlock(block, hash))
+                {
+                    throw new IllegalStateException("Block " + i + " was not accepted");
+                }
+                //timestamps move on by half to one and a half times the block time
+                timestamp += blockMillis / 2 + (blockMillis > 0 ? (long) (rnd.nextDouble() * blockMillis) : 0);
+            }
+            writeTable(nonces);
+            //a corruption keeps the block's format but gives it another client's DID
+            for(int index : corruptions)
+            {
+                if(index >= 0 && index < bc.getChainSize())
+                {
+                    String original = bc.blocks.get(index).getData();
+                    String rsa = original.indexOf(',') >= 0 ? original.substring(0, original.indexOf(',')) : original;
+                    String did = DatatypeConverter.printHexBinary(bc.generateDID(rsa + index)).toLowerCase();
+                    bc.corruptBlock(index, rsa + "," + did);
+                }
+            }
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+    /**
+     * This method makes the "rsa,did" data of every client key, one key per task
+     * return the data of each key
+     */
+    private String[] clientData(final BlockChain bc, ExecutorService pool) throws Exception
+    {
+        List<Future<String>> made = new ArrayList<Future<String>>();
+        for(int k = 0; k < keys; k++)
+        {
+            final long keySeed = seed * 31 + k;
+            made.add(pool.submit(new Callable<String>() {
+                public String call() throws Exception
+                {
+                    //the modulus of an RSA key, made like SigningClientTCP.generateNED but from a fixed seed
+                    Random keyRnd = new Random(keySeed);
+                    BigInteger p = new BigInteger(PRIME_BITS, 100, keyRnd);
+                    BigInteger q = new BigInteger(PRIME_BITS, 100, keyRnd);
+                    String rsa = p.multiply(q).toString();
+                    return rsa + "," + DatatypeConverter.printHexBinary(bc.generateDID(rsa)).toLowerCase();
+                }
+            }));
+        }
+        String[] data = new String[keys];
+        for(int k = 0; k < keys; k++)
+        {
+            data[k] = made.get(k).get();
+        }
+        return data;
+    }
+    /**
+     * This method finds the lowest nonce meeting a block's difficulty.
+     * When a block is expected to need more than one range of nonces, each round hands the next range to every
+     * thread and the lowest nonce found in the round wins
+     * @param block the block to mine
+     * @param pool threads to mine on
+     * return the nonce
+     */
+    private long mine(final Block block, ExecutorService pool) throws Exception
+    {
+        final int range = MiningJob.CHECK_INTERVAL;
+        //16^difficulty hashes are expected, below one range per thread splitting only costs time
+        boolean split = threads > 1 && difficulty * 4 >= 31 - Integer.numberOfLeadingZeros(range * threads);
+        if(!split)
+        {
+            HashBackend.Search search = block.nonceSearch(HashBackends.get());
+            for(long base = 0; ; base += range)
+            {
+                long found = search.next(base, range);
+                if(found >= 0)
+                {
+                    return found;
+                }
+            }
+        }
+        final HashBackend.Search[] searches = new HashBackend.Search[threads];
+        for(int t = 0; t < threads; t++)
+        {
+            searches[t] = block.nonceSearch(HashBackends.get());
+        }
+        for(long base = 0; ; base += (long) range * threads)
+        {
+            List<Callable<Long>> round = new ArrayList<Callable<Long>>();
+            for(int t = 0; t < threads; t++)
+            {
+                final int thread = t;
+                final long first = base + (long) t * range;
+                round.add(new Callable<Long>() {
+                    public Long call() throws Exception
+                    {
+                        return searches[thread].next(first, range);
+                    }
+                });
+            }
+            long lowest = -1;
+            for(Future<Long> result : pool.invokeAll(round))
+            {
+                long found = result.get();
+                if(found >= 0 && (lowest < 0 || found < lowest))
+                {
+                    lowest = found;
+                }
+            }
+            if(lowest >= 0)
+            {
+                return lowest;
+            }
+        }
+    }
+    /**
+     * This method reads the nonce table when it was written with the same settings
+     * return the nonces, empty when there is no usable table
+     */
+    private long[] readTable() throws IOException
+    {
+        if(nonceTable == null || !nonceTable.exists())
+        {
+            return new long[0];
+        }
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(nonceTable))))
+        {
+            if(in.readInt() != TABLE_MAGIC || in.readInt() != TABLE_VERSION || in.readLong() != seed
+                    || in.readInt() != difficulty || in.readInt() != keys || in.readLong() != blockMillis)
+            {
+                System.out.println("Nonce table " + nonceTable + " was made with other settings, mining every block");
+                return new long[0];
+            }
+            long[] table = new long[in.readInt()];
+            for(int i = 0; i < table.length; i++)
+            {
+                table[i] = in.readLong();
+            }
+            return table;
+        }
+    }
+    /**
+     * This method writes the nonces of the latest run to the table, unless the table already holds more
+     */
+    private void writeTable(long[] nonces) throws IOException
+    {
+        if(nonceTable == null || nonces.length < readTable().length)
+        {
+            return;
+        }
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(nonceTable))))
+        {
+            out.writeInt(TABLE_MAGIC);
+            out.writeInt(TABLE_VERSION);
+            out.writeLong(seed);
+            out.writeInt(difficulty);
+            out.writeInt(keys);
+            out.writeLong(blockMillis);
+            out.writeInt(nonces.length);
+            for(long nonce : nonces)
+            {
+                out.writeLong(nonce);
+            }
+        }
+    }
+    /**
+     * This method reads the comma separated indexes of -Dgenerator.corrupt
+     */
+    private static int[] parseIndexes(String list)
+    {
+        if(list == null || list.trim().isEmpty())
+        {
+            return new int[0];
+        }
+        String[] parts = list.split(",");
+        int[] indexes = new int[parts.length];
+        for(int i = 0; i < parts.length; i++)
+        {
+            indexes[i] = Integer.parseInt(parts[i].trim());
+        }
+        return indexes;
+    }
+    /**
+     * This method builds a chain from the command line settings and reports how long it took
+     */
+    public static void main(String args[]) throws Exception
+    {
+        if(args.length < 1)
+        {
+            System.out.println("Usage: java ChainGenerator blocks");
+            return;
+        }
+        int blocks = Integer.parseInt(args[0]);
+        HashBackends.startSelection();
+        ChainGenerator generator = new ChainGenerator(Long.getLong("generator.seed", 1), Integer.getInteger("generator.difficulty", 1),
+                Integer.getInteger("generator.keys", 16), Integer.getInteger("generator.threads", Runtime.getRuntime().availableProcessors()),
+                Long.getLong("generator.blockMillis", 5000));
+        String table = System.getProperty("generator.nonceTable");
+        if(table != null)
+        {
+            generator.setNonceTable(new File(table));
+        }
+        int[] corruptions = parseIndexes(System.getProperty("generator.corrupt"));
+        generator.setCorruptions(corruptions);
+
+        BlockChain bc = Boolean.getBoolean("blockchain.offheap") ? new BlockChain(new HeaderStore()) : new BlockChain();
+        String dir = System.getProperty("blockchain.dir");
+        ChainStore store = null;
+        if(dir != null)
+        {
+            //the log is forced once at the end rather than once per block
+            store = new ChainStore(new File(dir), Integer.getInteger("blockchain.checkpointInterval", 100), WriteAheadLog.Durability.ASYNC, 0);
+            bc.open(store);
+        }
+        long start = System.currentTimeMillis();
+        generator.generate(bc, blocks);
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        if(store != null)
+        {
+            store.checkpoint(bc);
+            store.close();
+        }
+        System.out.println("Generated " + bc.getChainSize() + " blocks in " + elapsed + " ms (" + bc.getChainSize() * 1000L / elapsed
+                + " blocks/s), " + generator.getTableHits() + " nonces from the table");
+        System.out.println("chainHash " + bc.getChainHash());
+        if(corruptions.length > 0)
+        {
+            System.out.println("Corrupted " + Arrays.toString(corruptions) + ", chain valid: " + bc.isChainValid());
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/**
+ * This class is the chain image a checkpoint points at: one row for each block on the chain, in chain order.
+ * A row is framed like a log record (int length, byte type, payload, int CRC32) and holds what the log's append
+ * record for the block would, or its cold record once the block's data is in the archive. Loading the image
+ * restores the chain up to the checkpoint, so only the log records written after it are replayed.
+ *
+ * Blocks below the tip rarely change, so a checkpoint cuts the image back only to the lowest block changed since
+ * the previous one and writes on from there; usually that is just the blocks appended since. The offset each row
+ * ends at is kept in memory to find where to cut.
+ */
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+public class ChainImage {
+    //rows are gathered in memory up to this many bytes before they are written
+    private static final int FLUSH_BYTES = 1 << 20;
+
+    private final FileChannel channel; //open channel on the image file
+    private long[] rowEnds = new long[1024]; //offset each row ends at
+    private int rows; //rows in the image, those still gathered in pending included
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream(); //rows not written to the file yet
+    /**
+     * constructor which opens (or creates) the image file, holding no rows until read is called
+     * @param file the image file
+     */
+    public ChainImage(File file) throws IOException
+    {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+    /**
+     * This method reads the first count rows and hands each one to the replayer, like WriteAheadLog.replay
+     * @param count number of rows the checkpoint vouches for
+     * @param bytes offset the last of them ends at
+     * @param replayer receives each row in chain order
+     * return true if every row was read intact and they end at bytes, otherwise the image holds no rows
+     */
+    public boolean read(int count, long bytes, WriteAheadLog.Replayer replayer) throws Exception
+    {
+        rows = 0;
+        if(channel.size() < bytes)
+        {
+            return false;
+        }
+        channel.position(0);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        long offset = 0;
+        try
+        {
+            for(int row = 0; row < count; row++)
+            {
+                int length = in.readInt();
+                if(length < 0 || length > WriteAheadLog.MAX_RECORD_BYTES)
+                {
+                    rows = 0;
+                    return false;
+                }
+                byte type = in.readByte();
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                if(in.readInt() != WriteAheadLog.checksum(type, payload))
+                {
+                    rows = 0;
+                    return false;
+                }
+                replayer.apply(offset, type, new DataInputStream(new ByteArrayInputStream(payload)));
+                offset += 9 + length;
+                addRow(offset);
+            }
+        }
+        catch(EOFException e)
+        {
+            rows = 0;
+            return false;
+        }
+        if(offset != bytes)
+        {
+            rows = 0;
+            return false;
+        }
+        return true;
+    }
+    /**
+     * This method will get the number of rows in the image
+     * return the rows read or appended, less those cut off
+     */
+    public int rows()
+    {
+        return rows;
+    }
+    /**
+     * This method will get the size of the image
+     * return offset the last row ends at
+     */
+    public long bytes()
+    {
+        return rows == 0 ? 0 : rowEnds[rows - 1];
+    }
+    /**
+     * This method cuts the image back to its first count rows
+     * @param count number of rows to keep
+     */
+    public void truncate(int count) throws IOException
+    {
+        flush();
+        rows = Math.min(rows, count);
+        channel.truncate(bytes());
+    }
+    /**
+     * This method adds a row after the last one, it is on disk once force returns
+     * @param type record type of the row, WriteAheadLog.APPEND or WriteAheadLog.COLD
+     * @param payload the row's payload
+     */
+    public void append(byte type, byte[] payload) throws IOException
+    {
+        DataOutputStream out = new DataOutputStream(pending);
+        out.writeInt(payload.length);
+        out.writeByte(type);
+        out.write(payload);
+        out.writeInt(WriteAheadLog.checksum(type, payload));
+        addRow(bytes() + 9 + payload.length);
+        if(pending.size() >= FLUSH_BYTES)
+        {
+            flush();
+        }
+    }
+    /**
+     * This method writes the rows still gathered and forces the file
+     */
+    public void force() throws IOException
+    {
+        flush();
+        channel.force(false);
+    }
+    /**
+     * This method forces the image and closes the file
+     */
+    public void close() throws IOException
+    {
+        force();
+        channel.close();
+    }
+    /**
+     * This method writes the gathered rows at the end of the file
+     */
+    private void flush() throws IOException
+    {
+        if(pending.size() == 0)
+        {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(pending.toByteArray());
+        long position = bytes() - buffer.remaining();
+        while(buffer.hasRemaining())
+        {
+            position += channel.write(buffer, position);
+        }
+        //a new buffer, so an idle chain doesn't keep a megabyte of it
+        pending = new ByteArrayOutputStream();
+    }
+    /**
+     * This method records where a new row ends
+     */
+    private void addRow(long end)
+    {
+        if(rows == rowEnds.length)
+        {
+            rowEnds = Arrays.copyOf(rowEnds, rows * 2);
+        }
+        rowEnds[rows++] = end;
+    }
+}
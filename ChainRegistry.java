@@ -0,0 +1,644 @@
+/**
+ * This class hosts every chain of one server: its default chain and any number of named chains.
+ *
+ * A request names its chain in the signed "chain" member, requests without one go to the default chain. The
+ * default chain lives in blockchain.dir itself, is loaded at startup and never evicted; peers replicate it only.
+ * A named chain lives in its own directory, blockchain.dir/chains/<name>, and is loaded with the same settings
+ * the first time a request names it. Loading a chain only holds up the requests for that chain.
+ *
+ * Each chain is its own concurrency domain. Operations that take a chain's lock (view, add block, corrupt,
+ * repair, lookup and subscribe) run one at a time on the chain's own writer thread, in the order they came in,
+ * with at most queueLimit of them waiting. A request that finds its chain's queue full is turned away as BUSY
+ * instead of waiting. Handler threads only read, admit and queue requests, so a chain mining a hard block
+ * never ties up a handler that a request for another chain needs. Verify and export read a snapshot and
+ * run on the handler thread as before, once the chain is loaded; the first requests for a named chain all queue
+ * for its writer, which loads it, so no handler waits for a load. Each chain also has its own maxExpensive
+ * slots for verify, export and repair, so those operations on one chain never turn away those on another. The writer logs each operation's records without waiting for the disk and
+ * holds its reply; once its queue runs dry it waits for the disk once and sends every held reply.
+ *
+ * A named chain nobody has used for idleMillis, with no request in flight and no subscriber, is
+ * checkpointed, closed and dropped from memory. When maxChains named chains are loaded, the chain that has
+ * been idle longest makes room for a new one; if none of them is idle the new one is turned away.
+ *
+ * Without a list of allowed names, any signed client could otherwise make the server create chains, each with
+ * its own directory, genesis block and writer thread. At most maxCreated named chains may exist then, counting
+ * the directories already there at startup; a request naming a new chain past that is turned away as unknown.
+ */
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import com.google.gson.JsonObject;
+
+public class ChainRegistry {
+    //names a chain may have, each one names a directory as well
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+
+    /**
+     * This interface builds the chains the registry hosts, with the server's settings
+     */
+    public interface Loader {
+        /**
+         * This method will load the chain kept in a directory, creating it with a genesis block when it is empty
+         * @param directory the chain's directory
+         * return the loaded chain
+         */
+        BlockChain load(File directory) throws Exception;
+        /**
+         * This method will create and start a hub for a chain's subscribers
+         * return the hub, null when subscriptions are off
+         */
+        SubscriptionHub hub() throws IOException;
+    }
+    /**
+     * This interface is the answer to an operation run on a chain's writer thread, held until the log records
+     * the operation wrote are on disk
+     */
+    public interface Reply {
+        /**
+         * This method sends the answer, the operation's records are on disk
+         */
+        void send();
+        /**
+         * This method gives up on the answer because the log could not be forced
+         * @param e what went wrong
+         */
+        void fail(Exception e);
+    }
+
+    private final Loader loader; //builds the named chains
+    private final File directory; //directory holding one directory per named chain
+    private final Set<String> allowed; //names that may be hosted, null for any valid name
+    private final int maxCreated; //named chains that may exist when allowed is null
+    //names of the named chains that exist or are being created, guarded by this
+    private final Set<String> existing = new HashSet<String>();
+    private final int maxChains; //named chains loaded at once
+    private final long idleMillis; //how long a named chain may go unused before it is evicted
+    private final int queueLimit; //requests waiting for each chain's writer thread
+    private final int maxExpensive; //expensive operations running at once on each chain
+    private final Chain defaultChain; //the chain of requests that don't name one
+    //named chains loaded or loading, guarded by this
+    private final Map<String, Chain> chains = new HashMap<String, Chain>();
+    //evicted chains still being closed, a chain loaded again waits for them, guarded by this
+    private final Map<String, Chain> closing = new HashMap<String, Chain>();
+    private final ScheduledExecutorService evictor; //checks for idle chains
+    //named chains loaded, chains evicted and chains turned away because every loaded one was busy
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong refused = new AtomicLong();
+    /**
+     * constructor for a registry around an already loaded default chain, start has to be called to evict idle chains
+     * @param loader builds the named chains
+     * @param defaultChain the default chain
+     * @param defaultHub hub of the default chain, null when subscriptions are off
+     * @param directory directory holding one directory per named chain
+     * @param allowed names that may be hosted, null for any valid name
+     * @param maxCreated named chains that may exist, those already in directory included, when allowed is null
+     * @param maxChains named chains loaded at once
+     * @param idleMillis how long a named chain may go unused before it is evicted
+     * @param queueLimit requests waiting for each chain's writer thread before more are turned away
+     * @param maxExpensive expensive operations running at once on each chain
+     */
+    public ChainRegistry(Loader loader, BlockChain defaultChain, SubscriptionHub defaultHub, File directory, Set<String> allowed,
+            int maxCreated, int maxChains, long idleMillis, int queueLimit, int maxExpensive)
+    {
+        this.loader = loader;
+        this.directory = directory;
+        this.allowed = allowed;
+        this.maxCreated = maxCreated;
+        File[] found = directory.listFiles();
+        if(found != null)
+        {
+            for(File chainDirectory : found)
+            {
+                if(chainDirectory.isDirectory() && NAME.matcher(chainDirectory.getName()).matches())
+                {
+                    existing.add(chainDirectory.getName());
+                }
+            }
+        }
+        this.maxChains = maxChains;
+        this.idleMillis = idleMillis;
+        this.queueLimit = queueLimit;
+        this.maxExpensive = maxExpensive;
+        this.defaultChain = new Chain(null, null, null);
+        this.defaultChain.bc = defaultChain;
+        this.defaultChain.hub = defaultHub;
+        this.evictor = Executors.newSingleThreadScheduledExecutor(daemon("chain-evictor"));
+    }
+    /**
+     * This method starts checking for idle chains, a quarter of idleMillis apart
+     */
+    public void start()
+    {
+        long period = Math.max(1, idleMillis / 4);
+        evictor.scheduleWithFixedDelay(new Runnable() {
+            public void run()
+            {
+                try
+                {
+                    evictIdle();
+                }
+                catch(Exception e)
+                {
+                    System.out.println("Chain eviction: " + e);
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+    /**
+     * This method will check whether a chain name may be used. Without a list of allowed names, a name no chain
+     * has yet takes one of the maxCreated places, so call it only for requests whose signature checked out
+     * @param name name from a request, null for the default chain
+     * return true if the name is valid and allowed, or free to be created
+     */
+    public boolean hosts(String name)
+    {
+        if(name == null)
+        {
+            return true;
+        }
+        if(!NAME.matcher(name).matches())
+        {
+            return false;
+        }
+        if(allowed != null)
+        {
+            return allowed.contains(name);
+        }
+        synchronized(this)
+        {
+            if(existing.contains(name))
+            {
+                return true;
+            }
+            if(existing.size() >= maxCreated)
+            {
+                return false;
+            }
+            existing.add(name);
+            return true;
+        }
+    }
+    /**
+     * This method will get a chain for one request and keep it from being evicted until release is called.
+     * A named chain that isn't loaded yet is only loaded by Chain.blockChain, outside the registry's lock
+     * @param name a name hosts accepted, null for the default chain
+     * return the chain, null when maxChains chains are loaded and none of them is idle
+     */
+    public Chain acquire(String name)
+    {
+        if(name == null)
+        {
+            defaultChain.requests.incrementAndGet();
+            return defaultChain;
+        }
+        Chain victim = null;
+        Chain chain;
+        synchronized(this)
+        {
+            chain = chains.get(name);
+            if(chain == null)
+            {
+                if(chains.size() >= maxChains)
+                {
+                    //make room by evicting the chain idle longest
+                    for(Chain loaded : chains.values())
+                    {
+                        if(isIdle(loaded) && (victim == null || loaded.lastUsed < victim.lastUsed))
+                        {
+                            victim = loaded;
+                        }
+                    }
+                    if(victim == null)
+                    {
+                        refused.incrementAndGet();
+                        return null;
+                    }
+                    remove(victim);
+                }
+                chain = new Chain(name, new File(directory, name), closing.get(name));
+                chains.put(name, chain);
+            }
+            chain.inFlight++;
+        }
+        chain.requests.incrementAndGet();
+        if(victim != null)
+        {
+            close(victim);
+        }
+        return chain;
+    }
+    /**
+     * This method will let a chain go once its request is done, it may be evicted from now on
+     * @param chain a chain acquire returned
+     */
+    public void release(Chain chain)
+    {
+        if(chain == defaultChain)
+        {
+            return;
+        }
+        synchronized(this)
+        {
+            chain.inFlight--;
+            chain.lastUsed = System.currentTimeMillis();
+        }
+    }
+    /**
+     * This method will evict every named chain that has been idle for idleMillis
+     */
+    public void evictIdle() throws Exception
+    {
+        List<Chain> idle = new ArrayList<Chain>();
+        long now = System.currentTimeMillis();
+        synchronized(this)
+        {
+            for(Chain chain : chains.values())
+            {
+                if(isIdle(chain) && now - chain.lastUsed >= idleMillis)
+                {
+                    idle.add(chain);
+                }
+            }
+            for(Chain chain : idle)
+            {
+                remove(chain);
+            }
+        }
+        for(Chain chain : idle)
+        {
+            close(chain);
+        }
+    }
+    /**
+     * This method interrupts the work of every chain, for server shutdown
+     */
+    public void shutdownNow()
+    {
+        evictor.shutdownNow();
+        defaultChain.writer.shutdownNow();
+        synchronized(this)
+        {
+            for(Chain chain : chains.values())
+            {
+                chain.writer.shutdownNow();
+            }
+        }
+    }
+    /**
+     * This method will report the registry's metrics
+     * return loaded, loads, evictions and refused counts, chains created when any name may be, and each loaded named chain's metrics
+     */
+    public JsonObject metrics()
+    {
+        JsonObject jsonObj = new JsonObject();
+        JsonObject named = new JsonObject();
+        synchronized(this)
+        {
+            jsonObj.addProperty("loaded", chains.size());
+            for(Chain chain : chains.values())
+            {
+                named.add(chain.name, chain.metrics());
+            }
+        }
+        jsonObj.addProperty("maxChains", maxChains);
+        if(allowed == null)
+        {
+            synchronized(this)
+            {
+                jsonObj.addProperty("created", existing.size());
+            }
+            jsonObj.addProperty("maxCreated", maxCreated);
+        }
+        jsonObj.addProperty("loads", loads.get());
+        jsonObj.addProperty("evictions", evictions.get());
+        jsonObj.addProperty("refused", refused.get());
+        jsonObj.add("chains", named);
+        return jsonObj;
+    }
+    /**
+     * This method will check whether a chain may be evicted, the caller holds the registry's lock
+     */
+    private boolean isIdle(Chain chain)
+    {
+        return chain.inFlight == 0 && (chain.hub == null || chain.hub.getSubscribers() == 0);
+    }
+    /**
+     * This method takes a chain off the registry before it is closed, the caller holds the registry's lock
+     */
+    private void remove(Chain chain)
+    {
+        chains.remove(chain.name);
+        closing.put(chain.name, chain);
+        evictions.incrementAndGet();
+    }
+    /**
+     * This method closes an evicted chain, outside the registry's lock
+     */
+    private void close(Chain chain)
+    {
+        try
+        {
+            chain.close();
+        }
+        catch(Exception e)
+        {
+            System.out.println("Closing chain " + chain.name + ": " + e);
+        }
+        synchronized(this)
+        {
+            closing.remove(chain.name, chain);
+        }
+    }
+    /**
+     * This method builds a thread factory for daemon threads with the given name
+     */
+    private static ThreadFactory daemon(final String name)
+    {
+        return new ThreadFactory() {
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * This class is one hosted chain with its writer thread and metrics
+     */
+    public final class Chain {
+        private final String name; //name of the chain, null for the default chain
+        private final File directory; //directory of a named chain
+        private Chain previous; //the same chain evicted before, closed before this one loads
+        private volatile BlockChain bc; //the chain, null until it is loaded
+        private volatile SubscriptionHub hub; //the chain's subscribers, null until someone subscribes
+        private boolean closed; //set once an evicted chain has been closed, guarded by this
+        //runs the operations that take the chain's lock, one at a time
+        private final ThreadPoolExecutor writer;
+        private final Semaphore slots; //expensive operations allowed at once on this chain
+        private int inFlight; //requests holding the chain, guarded by the registry
+        private long lastUsed = System.currentTimeMillis(); //when the last request let go, guarded by the registry
+        private long loadMillis; //how long loading took
+        //requests for the chain, requests turned away because its queue was full, and the longest wait in it
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+        private final AtomicLong maxQueueNanos = new AtomicLong();
+        //replies waiting for the disk, writer thread only
+        private final List<Reply> held = new ArrayList<Reply>();
+
+        private Chain(String name, File directory, Chain previous)
+        {
+            this.name = name;
+            this.directory = directory;
+            this.previous = previous;
+            this.writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueLimit),
+                    daemon(name == null ? "chain-writer" : "chain-writer-" + name));
+            this.slots = new Semaphore(maxExpensive);
+        }
+        /**
+         * This method will get the chain's name
+         * return the name, null for the default chain
+         */
+        public String getName()
+        {
+            return name;
+        }
+        /**
+         * This method will check whether the chain is loaded, blockChain then returns without waiting
+         * return true once the chain is loaded
+         */
+        public boolean isLoaded()
+        {
+            return bc != null;
+        }
+        /**
+         * This method will get the chain, loading it on first use. A named chain is loaded on its writer thread
+         * return the loaded chain
+         */
+        public BlockChain blockChain() throws Exception
+        {
+            BlockChain loaded = bc;
+            if(loaded != null)
+            {
+                return loaded;
+            }
+            synchronized(this)
+            {
+                if(bc == null)
+                {
+                    //the files are still open while an earlier eviction of this chain closes them
+                    if(previous != null)
+                    {
+                        previous.awaitClosed();
+                        previous = null;
+                    }
+                    long start = System.currentTimeMillis();
+                    bc = loader.load(directory);
+                    loadMillis = System.currentTimeMillis() - start;
+                    loads.incrementAndGet();
+                }
+                return bc;
+            }
+        }
+        /**
+         * This method takes one of the chain's slots for an expensive operation without waiting for one
+         * @param operation operation code
+         * return true if the operation may run, releaseSlot has to be called after it when it is expensive
+         */
+        public boolean acquireSlot(String operation)
+        {
+            return AdmissionControl.classOf(operation) != AdmissionControl.OperationClass.EXPENSIVE || slots.tryAcquire();
+        }
+        /**
+         * This method gives back the slot taken by acquireSlot
+         * @param operation operation code
+         */
+        public void releaseSlot(String operation)
+        {
+            if(AdmissionControl.classOf(operation) == AdmissionControl.OperationClass.EXPENSIVE)
+            {
+                slots.release();
+            }
+        }
+        /**
+         * This method will get the hub for the chain's subscribers, starting it on first use.
+         * It is called on the writer thread, holding the chain's lock
+         * return the hub, null when subscriptions are off
+         */
+        public synchronized SubscriptionHub hub() throws Exception
+        {
+            if(hub == null)
+            {
+                hub = loader.hub();
+                if(hub != null)
+                {
+                    blockChain().addListener(hub);
+                }
+            }
+            return hub;
+        }
+        /**
+         * This method will get the hub for the chain's subscribers without starting one
+         * return the hub, null while nobody has subscribed
+         */
+        public SubscriptionHub getHub()
+        {
+            return hub;
+        }
+        /**
+         * This method queues an operation for the chain's writer thread
+         * @param operation work that takes the chain's lock
+         * return false when the queue is full, the operation then doesn't run
+         */
+        public boolean submit(final Runnable operation)
+        {
+            final long queued = System.nanoTime();
+            try
+            {
+                writer.execute(new Runnable() {
+                    public void run()
+                    {
+                        long waited = System.nanoTime() - queued;
+                        long max;
+                        while(waited > (max = maxQueueNanos.get()) && !maxQueueNanos.compareAndSet(max, waited))
+                        {
+                        }
+                        operation.run();
+                    }
+                });
+                return true;
+            }
+            catch(RejectedExecutionException e)
+            {
+                rejected.incrementAndGet();
+                return false;
+            }
+        }
+        /**
+         * This method holds the reply of an operation run on the writer thread until the log records it wrote are
+         * on disk. The writer goes on with the queued operations and waits for the disk once the queue runs dry, or
+         * once queueLimit replies are held, so one force covers the whole batch. It is called on the writer thread
+         * @param reply the operation's answer
+         */
+        public void hold(Reply reply)
+        {
+            held.add(reply);
+            if(!writer.getQueue().isEmpty() && held.size() < queueLimit)
+            {
+                return;
+            }
+            List<Reply> batch = new ArrayList<Reply>(held);
+            held.clear();
+            BlockChain loaded = bc;
+            try
+            {
+                if(loaded != null)
+                {
+                    long position;
+                    synchronized(loaded)
+                    {
+                        position = loaded.getLogPosition();
+                    }
+                    loaded.awaitDurable(position);
+                }
+            }
+            catch(Exception e)
+            {
+                for(Reply waiting : batch)
+                {
+                    waiting.fail(e);
+                }
+                return;
+            }
+            for(Reply waiting : batch)
+            {
+                waiting.send();
+            }
+        }
+        /**
+         * This method will report the chain's metrics
+         * return name, size once loaded, requests, rejections, queue length, expensive operations running, requests in
+         * flight and the longest queue wait
+         */
+        public JsonObject metrics()
+        {
+            JsonObject jsonObj = new JsonObject();
+            jsonObj.addProperty("name", name == null ? "" : name);
+            BlockChain loaded = bc;
+            jsonObj.addProperty("loaded", loaded != null);
+            if(loaded != null)
+            {
+                jsonObj.addProperty("chainSize", loaded.getChainSize());
+            }
+            jsonObj.addProperty("requests", requests.get());
+            jsonObj.addProperty("rejected", rejected.get());
+            jsonObj.addProperty("queued", writer.getQueue().size());
+            jsonObj.addProperty("expensive", maxExpensive - slots.availablePermits());
+            jsonObj.addProperty("maxQueueMillis", maxQueueNanos.get() / 1000000);
+            if(name != null)
+            {
+                jsonObj.addProperty("loadMillis", loadMillis);
+                synchronized(ChainRegistry.this)
+                {
+                    jsonObj.addProperty("inFlight", inFlight);
+                    jsonObj.addProperty("idleMillis", inFlight > 0 ? 0 : System.currentTimeMillis() - lastUsed);
+                }
+            }
+            return jsonObj;
+        }
+        /**
+         * This method stops the writer thread, the hub and the chain's store, once the chain has been evicted
+         */
+        private synchronized void close() throws Exception
+        {
+            try
+            {
+                writer.shutdown();
+                if(hub != null)
+                {
+                    hub.close();
+                }
+                BlockChain loaded = bc;
+                if(loaded != null)
+                {
+                    synchronized(loaded)
+                    {
+                        loaded.close();
+                    }
+                }
+            }
+            finally
+            {
+                closed = true;
+                notifyAll();
+            }
+        }
+        /**
+         * This method waits until an evicted chain has been closed
+         */
+        private synchronized void awaitClosed() throws InterruptedException
+        {
+            while(!closed)
+            {
+                wait();
+            }
+        }
+    }
+}
@@ -0,0 +1,275 @@
+/**
+ * This class is a read only view of a BlockChain as of one moment: its height, its chainHash and the content
+ * every block had then. BlockChain.snapshot hands out the latest one without taking any lock, and the view stays
+ * the same however long it is read while the chain appends, repairs or reorganizes.
+ *
+ * A snapshot doesn't copy the chain. It reads the chain's own rows and relies on the chain never changing a row
+ * without first keeping a copy of it:
+ *   - appends only add rows above every snapshot's height
+ *   - every other write (corrupt, repair, rollback) is one version. Before it changes a row it keeps the row as it
+ *     was in that version's before map, and only publishes a new snapshot once the whole write is done, so a
+ *     snapshot never sees half a repair
+ * To read row i a snapshot reads the live row and then walks the versions written since it was taken; the first
+ * copy of row i it finds is the row as of the snapshot. If there is none the row didn't change and the live read
+ * stands. Reading the live row first means a row that changes during the read is always found in a version.
+ * Versions only link forward, so they are garbage once no snapshot from before them is still in use.
+ */
+import java.lang.invoke.VarHandle;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import com.google.gson.JsonPrimitive;
+
+public final class ChainSnapshot {
+    private final BlockChain chain; //chain this is a snapshot of, for its rendered page cache
+    private final List<Block> blocks; //the chain's live rows
+    private final HeaderStore headerStore; //the same rows when they are off-heap, null otherwise
+    private final Version version; //first version whose writes this snapshot doesn't see
+    private final int height; //number of blocks
+    private final Digest chainHash; //hash of the tip, null for an empty chain
+
+    /**
+     * constructor used by BlockChain when it publishes the chain's state
+     */
+    ChainSnapshot(BlockChain chain, HeaderStore headerStore, Version version, int height, Digest chainHash)
+    {
+        this.chain = chain;
+        this.blocks = chain.blocks;
+        this.headerStore = headerStore;
+        this.version = version;
+        this.height = height;
+        this.chainHash = chainHash;
+    }
+    /**
+     * This method will get the number of blocks in the snapshot
+     */
+    public int getHeight()
+    {
+        return height;
+    }
+    /**
+     * This method will get the hash of the snapshot's tip
+     * return chainHash, null for an empty chain
+     */
+    public Digest getChainHash()
+    {
+        return chainHash;
+    }
+    /**
+     * This method will get the version number of the snapshot, it goes up with every write other than an append
+     */
+    public long getVersion()
+    {
+        return version.number;
+    }
+    /**
+     * This method will get block i as it was when the snapshot was taken
+     * @param i position of the block, below getHeight
+     * return the block, it must not be changed
+     */
+    public Block getBlock(int i)
+    {
+        if(i < 0 || i >= height)
+        {
+            throw new IndexOutOfBoundsException("Index: " + i + ", Height: " + height);
+        }
+        Block live = readLive(i);
+        //the live read has to finish before the versions are checked, see the class comment
+        VarHandle.acquireFence();
+        Block kept = kept(i);
+        if(kept != null)
+        {
+            return kept;
+        }
+        if(live == null)
+        {
+            throw new IllegalStateException("Block " + i + " changed without a copy being kept");
+        }
+        return live;
+    }
+    /**
+     * This method will get the hash pointer of block i: the previousHash of the block after it, chainHash for the tip
+     * @param i position of the block, below getHeight
+     * return the block's hash
+     */
+    public Digest getBlockHash(int i)
+    {
+        return i == height - 1 ? chainHash : getBlock(i + 1).getPreviousDigest();
+    }
+    /**
+     * This method will check every hash pointer of the snapshot, like BlockChain.isChainValid
+     * return true if the snapshot holds blocks and every one of them hashes to the pointer its child (or chainHash) holds
+     */
+    public boolean isValid() throws Exception
+    {
+        return height > 0 && validHeight() == height;
+    }
+    /**
+     * This method will find how far from genesis the snapshot's hash pointers are intact
+     * return position of the first block whose hash doesn't match its pointer, getHeight when none
+     */
+    public int validHeight() throws Exception
+    {
+        //a blockchain.Verify flight recorder event, committed only when a recording asks for it
+        ChainEvents.VerifyEvent event = new ChainEvents.VerifyEvent();
+        event.begin();
+        int valid = height;
+        Block block = height > 0 ? getBlock(0) : null;
+        for(int i = 0; i < height; i++)
+        {
+            event.scanned = i + 1;
+            Block next = i + 1 < height ? getBlock(i + 1) : null;
+            Digest expected = next == null ? chainHash : next.getPreviousDigest();
+            if(!hashMatches(i, block, expected, event))
+            {
+                valid = i;
+                break;
+            }
+            block = next;
+        }
+        if(event.shouldCommit())
+        {
+            event.height = height;
+            event.valid = height > 0 && valid == height;
+            event.snapshot = true;
+            event.commit();
+        }
+        return valid;
+    }
+    /**
+     * This method will check whether block i hashes to the expected digest.
+     * An off-heap row whose hash is cached and unchanged since the snapshot is checked without hashing;
+     * a cached hash that doesn't match is never trusted, the block is hashed instead
+     * @param block block i as of the snapshot
+     * @param event verification event counting the hashes taken from the cache
+     */
+    private boolean hashMatches(int i, Block block, Digest expected, ChainEvents.VerifyEvent event) throws Exception
+    {
+        if(expected == null)
+        {
+            return false;
+        }
+        if(headerStore != null)
+        {
+            Digest cached = null;
+            try
+            {
+                cached = headerStore.cachedHash(i);
+            }
+            catch(RuntimeException e)
+            {
+                //the row is gone, the block was read from a kept copy
+            }
+            VarHandle.acquireFence();
+            if(cached != null && cached.equals(expected) && kept(i) == null)
+            {
+                event.cacheHits++;
+                return true;
+            }
+        }
+        return block.calculateDigest().equals(expected);
+    }
+    /**
+     * This method will convert the snapshot into the JSON BlockChain.toString returns.
+     * Full pages of blocks come from the chain's rendered page cache when no write has touched them in between
+     * return json string
+     */
+    @Override
+    public String toString()
+    {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"ds_chain\":[");
+        int pageBlocks = BlockChain.PAGE_BLOCKS;
+        int fullPages = height / pageBlocks;
+        for(int page = 0; page < fullPages; page++)
+        {
+            String rendered = chain.renderedPage(page, version.number);
+            if(rendered == null)
+            {
+                rendered = renderPage(page * pageBlocks, (page + 1) * pageBlocks);
+                chain.keepRenderedPage(page, version.number, rendered);
+            }
+            if(page > 0)
+            {
+                json.append(',');
+            }
+            json.append(rendered);
+        }
+        //the partial page at the tip is rendered every time
+        if(fullPages * pageBlocks < height)
+        {
+            if(fullPages > 0)
+            {
+                json.append(',');
+            }
+            json.append(renderPage(fullPages * pageBlocks, height));
+        }
+        json.append("],\"chainHash\":").append(new JsonPrimitive(Digest.toHex(chainHash)).toString()).append('}');
+        return json.toString();
+    }
+    /**
+     * This method will render a range of blocks as JSON objects joined with commas
+     * @param from first block
+     * @param to one past the last block
+     * return the rendered blocks
+     */
+    private String renderPage(int from, int to)
+    {
+        StringBuilder page = new StringBuilder();
+        for(int i = from; i < to; i++)
+        {
+            if(i > from)
+            {
+                page.append(',');
+            }
+            page.append(getBlock(i).toString());
+        }
+        return page.toString();
+    }
+    /**
+     * This method reads row i as it is now
+     * return the block, null if the row is gone or was caught half written
+     */
+    private Block readLive(int i)
+    {
+        try
+        {
+            //on-heap blocks are never changed once on the chain, off-heap rows are copied out
+            return headerStore != null ? headerStore.detach(i) : blocks.get(i);
+        }
+        catch(RuntimeException e)
+        {
+            //rolled back, or torn by a write; either way a version kept the row
+            return null;
+        }
+    }
+    /**
+     * This method will find row i in the versions written since the snapshot
+     * return the row as of the snapshot, null if no write since has changed it
+     */
+    private Block kept(int i)
+    {
+        for(Version v = version; v != null; v = v.next)
+        {
+            Block block = v.before.get(i);
+            if(block != null)
+            {
+                return block;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * This class is one write to the chain other than an append, holding every row it changed as it was before
+     */
+    static final class Version {
+        final long number; //versions are numbered in the order they were written
+        final ConcurrentHashMap<Integer, Block> before = new ConcurrentHashMap<Integer, Block>(); //rows as they were before this write
+        volatile Version next; //the write after this one, null until it has been written
+
+        Version(long number)
+        {
+            this.number = number;
+        }
+    }
+}
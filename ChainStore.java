@@ -0,0 +1,558 @@
+/**
+ * This class keeps a BlockChain on disk so the server can restart without re-mining or re-verifying it.
+ *
+ * A store directory holds these files:
+ *   chain.wal      - a write-ahead log of every appended block, corrupted block, repaired block and rollback.
+ *                    Append and repair records carry the resulting hash, so replaying the log rebuilds
+ *                    chainHash and the hash index without hashing anything
+ *   checkpoint.dat - the chain tip, chainHash, the verified watermark, the log position and the size of the
+ *                    chain image it was taken at, followed by a CRC32 of everything before it
+ *   chain.img      - the ChainImage, a row for every block on the chain as of the latest checkpoint
+ *   cold.dat       - the BodyArchive holding the compressed data of old blocks, when the chain keeps one.
+ *                    A freeze record in the log points a range of blocks at one of its segments
+ *
+ * Once the data frozen since the log was last compacted makes up a quarter of the log, the log is rewritten from
+ * the chain as it is: a cold record (header, data commitment, segment and slot) for each block whose data is
+ * in the archive and an append record for every other block. Side branches are not carried over.
+ *
+ * Records are written under the chain's lock, but in GROUPED mode nothing waits for the disk there. Whoever
+ * answers for a write takes position() under the lock and calls awaitDurable with it once the lock is let go,
+ * so writes made meanwhile join the same force. Records nobody waits for, such as blocks from peers, reach
+ * the disk with the flusher's next force. A checkpoint waits for the log first, so it never points past it.
+ *
+ * On load the chain image restores the chain as of the latest checkpoint, together with its watermark, and only
+ * the log records written after the checkpoint are replayed; only the blocks they append or change are hashed
+ * again. Reading the image is still one pass over every block, but nothing that happened before the checkpoint is
+ * replayed. A checkpoint writes the image rows from the lowest block changed since the previous one, which is
+ * usually just the blocks appended since. If the checkpoint is missing or fails its checksum, or the image doesn't
+ * match it, the whole log is replayed and the whole chain verified instead.
+ */
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+
+public class ChainStore {
+    //identifies a checkpoint file and its layout version
+    private static final int CHECKPOINT_MAGIC = 0x42434350;
+    private static final int CHECKPOINT_VERSION = 3;
+
+    private final File directory; //directory holding the chain's files
+    private final File checkpointFile; //latest checkpoint
+    private final int checkpointInterval; //blocks appended between two checkpoints
+    private final WriteAheadLog.Durability durability; //how appends wait for the disk
+    private final long maxLatencyMicros; //group commit window of the log
+    private WriteAheadLog wal; //log of every mutation, replaced by compact, guarded by this for awaitDurable
+    private long dropped; //log bytes dropped by compactions, so positions keep growing across them, guarded by this
+    private int sinceCheckpoint; //blocks appended since the last checkpoint
+    private long frozenBytes; //bytes of data frozen since the log was last compacted, still written in the log
+    private ChainImage image; //rows of the chain as of the latest checkpoint
+    private int imageDirty = Integer.MAX_VALUE; //lowest block changed since the image was written
+    /**
+     * constructor for a store in the given directory that group commits its log
+     * @param directory where the chain's files live, created if missing
+     * @param checkpointInterval number of appended blocks between two checkpoints
+     */
+    public ChainStore(File directory, int checkpointInterval)
+    {
+        this(directory, checkpointInterval, WriteAheadLog.Durability.GROUPED, 0);
+    }
+    /**
+     * constructor for a store in the given directory
+     * @param directory where the chain's files live, created if missing
+     * @param checkpointInterval number of appended blocks between two checkpoints
+     * @param durability how appends wait for the disk
+     * @param maxLatencyMicros how long the log lets appends gather into one force
+     */
+    public ChainStore(File directory, int checkpointInterval, WriteAheadLog.Durability durability, long maxLatencyMicros)
+    {
+        this.directory = directory;
+        this.checkpointFile = new File(directory, "checkpoint.dat");
+        this.checkpointInterval = checkpointInterval;
+        this.durability = durability;
+        this.maxLatencyMicros = maxLatencyMicros;
+    }
+    /**
+     * This method loads everything stored into an empty BlockChain and opens the log for appending
+     * @param bc empty chain to fill
+     * return number of blocks that had to be hashed to verify the chain
+     */
+    public int load(final BlockChain bc) throws Exception
+    {
+        ensureDirectory();
+        frozenBytes = 0;
+        imageDirty = Integer.MAX_VALUE;
+        File logFile = new File(directory, "chain.wal");
+        Checkpoint checkpoint = readCheckpoint();
+        image = new ChainImage(new File(directory, "chain.img"));
+        if(checkpoint != null && !loadImage(bc, checkpoint, logFile))
+        {
+            System.out.println("Chain image does not match the checkpoint, replaying the whole log");
+            bc.clearRestored();
+            frozenBytes = 0;
+            checkpoint = null;
+        }
+        //lowest block changed by a record after the checkpoint
+        final int[] dirty = { Integer.MAX_VALUE };
+        wal = new WriteAheadLog(logFile, durability, maxLatencyMicros);
+        wal.replay(checkpoint == null ? 0 : checkpoint.walPosition, new WriteAheadLog.Replayer() {
+            public void apply(long offset, byte type, DataInputStream in) throws Exception
+            {
+                dirty[0] = Math.min(dirty[0], replayRecord(bc, type, in));
+            }
+        });
+        imageDirty = Math.min(imageDirty, dirty[0]);
+        int start = 0;
+        if(checkpoint != null)
+        {
+            //the checkpoint vouches for everything below its watermark that hasn't changed since
+            start = Math.min(checkpoint.verifiedHeight, dirty[0]);
+        }
+        //start one block below the watermark so the link into the newer blocks is checked too
+        return verify(bc, Math.max(start - 1, 0));
+    }
+    /**
+     * This method will get the file holding the store's body archive, creating the store's directory if needed
+     * return cold.dat in the store's directory
+     */
+    public File getColdFile() throws IOException
+    {
+        ensureDirectory();
+        return new File(directory, "cold.dat");
+    }
+    /**
+     * This method will get how far the log reaches, called under the chain's lock right after a write
+     * return a position for awaitDurable covering every record logged so far
+     */
+    public synchronized long position()
+    {
+        return dropped + wal.position();
+    }
+    /**
+     * This method waits until every record up to a position is on disk, as far as the durability mode asks.
+     * It is called without the chain's lock
+     * @param position a position position() returned
+     */
+    public void awaitDurable(long position) throws IOException
+    {
+        WriteAheadLog log;
+        long offset;
+        synchronized(this)
+        {
+            log = wal;
+            offset = position - dropped;
+        }
+        //a compaction since then wrote and forced every record up to the position in the new log
+        if(offset > 0)
+        {
+            log.awaitForced(offset);
+        }
+    }
+    /**
+     * This method logs an appended block and writes a checkpoint every checkpointInterval blocks
+     * @param bc the chain the block was added to
+     * @param block the new block
+     * @param hash the block's hash
+     */
+    public void append(BlockChain bc, Block block, Digest hash) throws Exception
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        block.writeTo(out);
+        Digest.write(out, hash);
+        wal.append(WriteAheadLog.APPEND, bytes.toByteArray());
+        sinceCheckpoint++;
+        if(sinceCheckpoint >= checkpointInterval)
+        {
+            checkpoint(bc);
+        }
+    }
+    /**
+     * This method logs new data written into a block
+     * @param index position of the block
+     * @param data the new data
+     */
+    public void logCorrupt(int index, String data) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(index);
+        byte[] dataBytes = data.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(dataBytes.length);
+        out.write(dataBytes);
+        wal.append(WriteAheadLog.CORRUPT, bytes.toByteArray());
+        imageDirty = Math.min(imageDirty, index);
+    }
+    /**
+     * This method logs a block that was mined again by repairChain
+     * @param index position of the block
+     * @param nonce the block's new nonce
+     * @param hash the block's new hash
+     */
+    public void logRepair(int index, long nonce, Digest hash) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(index);
+        out.writeLong(nonce);
+        Digest.write(out, hash);
+        wal.append(WriteAheadLog.REPAIR, bytes.toByteArray());
+        imageDirty = Math.min(imageDirty, index);
+    }
+    /**
+     * This method logs blocks taken off the chain by a reorganization
+     * @param height number of blocks kept
+     */
+    public void logRollback(int height) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeInt(height);
+        wal.append(WriteAheadLog.ROLLBACK, bytes.toByteArray());
+        imageDirty = Math.min(imageDirty, height);
+    }
+    /**
+     * This method logs blocks whose data was moved to an archive segment, and compacts the log once
+     * the frozen data makes up a quarter of it
+     * @param bc the chain
+     * @param from position of the first block
+     * @param segment segment holding their data
+     * @param count number of blocks
+     * @param bytes size of their data
+     */
+    public void logFreeze(BlockChain bc, int from, int segment, int count, long bytes) throws Exception
+    {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeInt(from);
+        out.writeInt(segment);
+        out.writeInt(count);
+        out.writeLong(bytes);
+        wal.append(WriteAheadLog.FREEZE, buffer.toByteArray());
+        //the blocks' rows become cold rows
+        imageDirty = Math.min(imageDirty, from);
+        frozenBytes += bytes;
+        if(frozenBytes * 4 > wal.position())
+        {
+            compact(bc);
+        }
+    }
+    /**
+     * This method rewrites the log from the chain as it is, leaving out the data already in the archive.
+     * The new log is written and forced next to the old one and then moved over it. The checkpoint is removed
+     * first, since its log position means nothing in the new log, and written again once the new log is in place;
+     * a crash in between only costs verifying the chain on the next load
+     * @param bc the chain
+     */
+    public void compact(BlockChain bc) throws Exception
+    {
+        File logFile = new File(directory, "chain.wal");
+        File temp = new File(directory, "chain.wal.compact");
+        Files.deleteIfExists(temp.toPath());
+        WriteAheadLog compacted = new WriteAheadLog(temp, WriteAheadLog.Durability.ASYNC, 0);
+        try
+        {
+            int size = bc.getChainSize();
+            for(int i = 0; i < size; i++)
+            {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                byte type = writeBlock(bc, i, new DataOutputStream(bytes));
+                compacted.append(type, bytes.toByteArray());
+            }
+        }
+        finally
+        {
+            //closing forces the new log
+            compacted.close();
+        }
+        wal.close();
+        Files.deleteIfExists(checkpointFile.toPath());
+        Files.move(temp.toPath(), logFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        WriteAheadLog log = new WriteAheadLog(logFile, durability, maxLatencyMicros);
+        //reading the new log back finds its end and starts the flusher
+        log.replay(new WriteAheadLog.Replayer() {
+            public void apply(long offset, byte type, DataInputStream in)
+            {
+            }
+        });
+        synchronized(this)
+        {
+            //positions handed out before now lie at or below the start of the new log, which is all on disk
+            dropped += wal.position();
+            wal = log;
+        }
+        frozenBytes = 0;
+        checkpoint(bc);
+    }
+    /**
+     * This method writes a checkpoint of the chain. The file is written next to the old one and then
+     * moved over it, so a crash leaves either the old or the new checkpoint behind
+     * @param bc the chain to snapshot
+     */
+    public void checkpoint(BlockChain bc) throws Exception
+    {
+        //the checkpoint may only vouch for records that are on disk
+        wal.awaitForced(wal.position());
+        writeImage(bc);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(CHECKPOINT_MAGIC);
+        out.writeInt(CHECKPOINT_VERSION);
+        out.writeLong(wal.position());
+        out.writeInt(bc.getChainSize());
+        Digest.write(out, bc.chainHash);
+        out.writeInt(bc.verifiedHeight);
+        out.writeLong(image.bytes());
+        out.writeLong(frozenBytes);
+        //checksum covers everything written so far
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeLong(crc.getValue());
+        out.flush();
+
+        File temp = new File(directory, "checkpoint.tmp");
+        try(FileOutputStream file = new FileOutputStream(temp))
+        {
+            bytes.writeTo(file);
+            file.getFD().sync();
+        }
+        Files.move(temp.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        sinceCheckpoint = 0;
+    }
+    /**
+     * This method closes the log, forcing anything still pending
+     */
+    public void close() throws IOException
+    {
+        if(wal != null)
+        {
+            wal.close();
+        }
+        if(image != null)
+        {
+            image.close();
+        }
+    }
+    /**
+     * This method brings the chain image up to the chain, rewriting it from the lowest block changed since it
+     * was last written
+     * @param bc the chain
+     */
+    private void writeImage(BlockChain bc) throws Exception
+    {
+        int keep = Math.min(imageDirty, image.rows());
+        if(keep < image.rows())
+        {
+            //the checkpoint on disk vouches for rows about to change, without it a crash only costs replaying the whole log
+            Files.deleteIfExists(checkpointFile.toPath());
+        }
+        image.truncate(keep);
+        int size = bc.getChainSize();
+        for(int i = keep; i < size; i++)
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte type = writeBlock(bc, i, new DataOutputStream(bytes));
+            image.append(type, bytes.toByteArray());
+        }
+        image.force();
+        imageDirty = Integer.MAX_VALUE;
+    }
+    /**
+     * This method writes the record that restores block i: its header, data commitment and archive slot when
+     * its data is in the archive, otherwise the block itself, followed by its hash either way
+     * return the record type, WriteAheadLog.COLD or WriteAheadLog.APPEND
+     */
+    private static byte writeBlock(BlockChain bc, int i, DataOutputStream out) throws Exception
+    {
+        Digest hash = bc.getBlockHash(i);
+        ColdBlock cold = bc.coldBlock(i);
+        if(cold != null)
+        {
+            BlockHeader.of(cold, hash).writeTo(out);
+            out.writeInt(cold.getSegment());
+            out.writeInt(cold.getSlot());
+            return WriteAheadLog.COLD;
+        }
+        bc.blocks.get(i).writeTo(out);
+        Digest.write(out, hash);
+        return WriteAheadLog.APPEND;
+    }
+    /**
+     * This method restores the chain as of the checkpoint from the chain image
+     * @param bc empty chain to fill
+     * @param checkpoint the checkpoint read from disk
+     * @param logFile the log, which has to reach the checkpoint's position
+     * return true when the image matches the checkpoint, otherwise bc may hold part of the image
+     */
+    private boolean loadImage(final BlockChain bc, Checkpoint checkpoint, File logFile) throws Exception
+    {
+        if(checkpoint.walPosition > logFile.length() || checkpoint.verifiedHeight > checkpoint.tip)
+        {
+            return false;
+        }
+        boolean read = image.read(checkpoint.tip, checkpoint.imageBytes, new WriteAheadLog.Replayer() {
+            public void apply(long offset, byte type, DataInputStream in) throws Exception
+            {
+                replayRecord(bc, type, in);
+            }
+        });
+        if(!read || (checkpoint.chainHash == null ? bc.chainHash != null : !checkpoint.chainHash.equals(bc.chainHash)))
+        {
+            return false;
+        }
+        frozenBytes = checkpoint.frozenBytes;
+        return true;
+    }
+    /**
+     * This method applies one log record to the chain
+     * return position of the lowest block the record changed
+     */
+    private int replayRecord(BlockChain bc, byte type, DataInputStream in) throws Exception
+    {
+        if(type == WriteAheadLog.APPEND)
+        {
+            Block block = Block.readFrom(in);
+            bc.restoreBlock(block, Digest.read(in));
+            return bc.getChainSize() - 1;
+        }
+        else if(type == WriteAheadLog.COLD)
+        {
+            BlockHeader header = BlockHeader.readFrom(in);
+            int segment = in.readInt();
+            int slot = in.readInt();
+            if(bc.getArchive() == null || segment >= bc.getArchive().segments())
+            {
+                throw new IOException("Segment " + segment + " of the body archive is missing");
+            }
+            bc.restoreBlock(new ColdBlock(header, bc.getArchive(), segment, slot), header.hash);
+            return bc.getChainSize() - 1;
+        }
+        else if(type == WriteAheadLog.FREEZE)
+        {
+            int from = in.readInt();
+            int segment = in.readInt();
+            int count = in.readInt();
+            frozenBytes += in.readLong();
+            bc.restoreFrozen(from, segment, count);
+            imageDirty = Math.min(imageDirty, from);
+            //the blocks read the same as before
+            return Integer.MAX_VALUE;
+        }
+        else if(type == WriteAheadLog.CORRUPT)
+        {
+            int index = in.readInt();
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            bc.corruptBlock(index, new String(data, StandardCharsets.UTF_8));
+            return index;
+        }
+        else if(type == WriteAheadLog.REPAIR)
+        {
+            int index = in.readInt();
+            long nonce = in.readLong();
+            bc.applyRepair(index, nonce, Digest.read(in));
+            return index;
+        }
+        else if(type == WriteAheadLog.ROLLBACK)
+        {
+            int height = in.readInt();
+            bc.rollbackTo(height);
+            return height;
+        }
+        throw new IOException("Unknown log record type " + type);
+    }
+    /**
+     * This method creates the store's directory if it doesn't exist
+     */
+    private void ensureDirectory() throws IOException
+    {
+        if(!directory.isDirectory() && !directory.mkdirs())
+        {
+            throw new IOException("Cannot create " + directory);
+        }
+    }
+    /**
+     * This method reads the checkpoint
+     * return the checkpoint, or null when there is none or it fails its checksum
+     */
+    private Checkpoint readCheckpoint() throws IOException
+    {
+        if(!checkpointFile.exists())
+        {
+            return null;
+        }
+        byte[] bytes = Files.readAllBytes(checkpointFile.toPath());
+        if(bytes.length < 8)
+        {
+            return null;
+        }
+        //the last 8 bytes are the CRC32 of the rest
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 8);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        in.skipBytes(bytes.length - 8);
+        if(in.readLong() != crc.getValue())
+        {
+            System.out.println("Checkpoint checksum mismatch, verifying the full chain");
+            return null;
+        }
+        in = new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - 8));
+        if(in.readInt() != CHECKPOINT_MAGIC || in.readInt() != CHECKPOINT_VERSION)
+        {
+            return null;
+        }
+        Checkpoint checkpoint = new Checkpoint();
+        checkpoint.walPosition = in.readLong();
+        checkpoint.tip = in.readInt();
+        checkpoint.chainHash = Digest.read(in);
+        checkpoint.verifiedHeight = in.readInt();
+        checkpoint.imageBytes = in.readLong();
+        checkpoint.frozenBytes = in.readLong();
+        return checkpoint;
+    }
+    /**
+     * This method verifies the blocks from position start onwards and sets the watermark accordingly
+     * @param bc chain holding the loaded blocks
+     * @param start first block to verify
+     * return number of blocks hashed
+     */
+    private static int verify(BlockChain bc, int start) throws Exception
+    {
+        int size = bc.getChainSize();
+        int hashed = 0;
+        int verifiedHeight = start;
+        for(int i = start; i < size; i++)
+        {
+            Block block = bc.blocks.get(i);
+            Digest hash = block.calculateDigest();
+            hashed++;
+            //each block needs a proper proof of work and must be what its child (or chainHash) points at
+            Digest pointer = i == size - 1 ? bc.chainHash : bc.blocks.get(i + 1).getPreviousDigest();
+            if(!block.meetsDifficulty(hash) || !hash.equals(pointer))
+            {
+                break;
+            }
+            verifiedHeight = i + 1;
+        }
+        bc.verifiedHeight = verifiedHeight;
+        return hashed;
+    }
+
+    /**
+     * This class holds what a checkpoint file records
+     */
+    private static final class Checkpoint {
+        long walPosition; //log offset the checkpoint was taken at
+        int tip; //number of blocks on the chain
+        Digest chainHash; //chainHash at the time
+        int verifiedHeight; //verified watermark at the time
+        long imageBytes; //size of the chain image at the time
+        long frozenBytes; //data frozen since the log was last compacted, at the time
+    }
+}
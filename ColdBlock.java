@@ -0,0 +1,147 @@
+/**
+ * This class is a block whose data has been moved into a BodyArchive.
+ * It keeps every header field and the SHA-256 commitment to its data like any other block, but only the
+ * segment and slot its data lives at; getData reads the body back from the archive each time it is asked for.
+ * Its JSON and binary forms hold the data, so they aren't kept either.
+ *
+ * Setting new data on a cold block makes it an ordinary block again, holding the new data itself.
+ */
+import java.io.DataOutput;
+import java.io.IOException;
+
+public class ColdBlock extends Block {
+    private final BodyArchive archive; //archive holding the block's data
+    private final int segment; //segment of the archive holding the data
+    private final int slot; //position of the data in its segment
+    private final Digest dataDigest; //commitment to the archived data, null for no data
+    private boolean cold = true; //false once new data has been set
+    /**
+     * constructor which moves an existing block's data to the archive
+     * @param block the block, its data must already be in the archive
+     * @param archive archive holding the data
+     * @param segment segment holding the data
+     * @param slot position of the data in the segment
+     * @param dataDigest BlockHeader.dataDigest of the data
+     */
+    public ColdBlock(Block block, BodyArchive archive, int segment, int slot, Digest dataDigest)
+    {
+        this(archive, segment, slot, dataDigest);
+        setIndex(block.getIndex());
+        setTimestamp(block.getTimestampMillis());
+        setDifficulty(block.getDifficulty());
+        setBits(block.getBits());
+        setNonce(block.getNonce());
+        setPreviousDigest(block.getPreviousDigest());
+    }
+    /**
+     * constructor which rebuilds a cold block from its header, when a stored chain is loaded
+     * @param header the block's header, with its data commitment
+     * @param archive archive holding the data
+     * @param segment segment holding the data
+     * @param slot position of the data in the segment
+     */
+    public ColdBlock(BlockHeader header, BodyArchive archive, int segment, int slot)
+    {
+        this(archive, segment, slot, header.dataDigest);
+        setIndex(header.index);
+        setTimestamp(header.timestamp);
+        setDifficulty(header.difficulty);
+        setBits(header.bits);
+        setNonce(header.nonce);
+        setPreviousDigest(header.previousHash);
+    }
+    /**
+     * constructor which sets where the data lives, the header fields are set by the caller
+     */
+    private ColdBlock(BodyArchive archive, int segment, int slot, Digest dataDigest)
+    {
+        this.archive = archive;
+        this.segment = segment;
+        this.slot = slot;
+        this.dataDigest = dataDigest;
+    }
+    /**
+     * This method will check whether the data still lives in the archive
+     * return false once new data has been set
+     */
+    public boolean isCold()
+    {
+        return cold;
+    }
+    /**
+     * This method will get the segment holding the data
+     */
+    public int getSegment()
+    {
+        return segment;
+    }
+    /**
+     * This method will get the position of the data in its segment
+     */
+    public int getSlot()
+    {
+        return slot;
+    }
+    /**
+     * This method Overrides getData in class Block, reading the data back from the archive while the block is cold
+     */
+    @Override
+    public String getData()
+    {
+        return cold ? archive.body(segment, slot) : super.getData();
+    }
+    /**
+     * This method Overrides setData in class Block, the block keeps the new data itself from now on
+     */
+    @Override
+    public void setData(String data)
+    {
+        cold = false;
+        super.setData(data);
+    }
+    /**
+     * This method Overrides getDataDigest in class Block, a cold block answers from the commitment it keeps
+     */
+    @Override
+    public Digest getDataDigest() throws Exception
+    {
+        return cold ? dataDigest : super.getDataDigest();
+    }
+    /**
+     * This method Overrides copy in class Block, a copy of a cold block is cold as well
+     */
+    @Override
+    public Block copy()
+    {
+        if(!cold)
+        {
+            return super.copy();
+        }
+        return new ColdBlock(this, archive, segment, slot, dataDigest);
+    }
+    /**
+     * This method Overrides toString in class Block, without keeping the JSON of a cold block
+     */
+    @Override
+    public String toString()
+    {
+        String json = super.toString();
+        if(cold)
+        {
+            changed();
+        }
+        return json;
+    }
+    /**
+     * This method Overrides writeTo in class Block, without keeping the binary form of a cold block
+     */
+    @Override
+    public void writeTo(DataOutput out) throws IOException
+    {
+        super.writeTo(out);
+        if(cold)
+        {
+            changed();
+        }
+    }
+}
@@ -0,0 +1,269 @@
+/**
+ * This program checks that replicating servers agree on one chain.
+ *
+ * It starts -Dcheck.peers VerifyingServerTCP processes on this machine, each one peering with all the others and
+ * keeping its data in its own directory under -Dcheck.dir. Every peer is then sent signed add requests at the
+ * same time, so the peers mine competing blocks and have to reorganize onto the heaviest branch. Once the adds
+ * are in, every peer is asked for its status until they all report the same chain size and chainHash. The
+ * program prints each peer's tip and exits with 0 when they converged, or with 1 when they still disagree after
+ * -Dcheck.timeoutMillis. The peers are stopped either way.
+ *
+ * Usage:
+ *   java ConvergenceCheck
+ * run with the same classpath as the server (and --add-modules jdk.incubator.vector when the server needs it,
+ * which is passed on to the peers), with these settings:
+ *   -Dcheck.peers        number of server processes (3)
+ *   -Dcheck.blocks       blocks added to each peer (5)
+ *   -Dcheck.difficulty   difficulty of every added block (3)
+ *   -Dcheck.basePort     client port of the first peer, peer ports start 100 higher (7850)
+ *   -Dcheck.timeoutMillis time the peers get to agree once the adds are in (60000)
+ *   -Dcheck.dir          directory holding the peers' data and logs (a new temporary directory)
+ */
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import javax.xml.bind.DatatypeConverter;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ConvergenceCheck {
+    //how long a started peer gets to answer its first request
+    private static final long START_MILLIS = 30000;
+    //how often the peers are asked for their status while waiting
+    private static final long POLL_MILLIS = 500;
+    //how often the peers sync with each other
+    private static final long SYNC_MILLIS = 500;
+    //key status requests are signed with
+    private static final BigInteger[] STATUS_KEY = SigningClientTCP.generateNED();
+    /**
+     * This method runs the check and exits with its result
+     */
+    public static void main(String args[]) throws Exception
+    {
+        int peers = Integer.getInteger("check.peers", 3);
+        int blocks = Integer.getInteger("check.blocks", 5);
+        int difficulty = Integer.getInteger("check.difficulty", 3);
+        int basePort = Integer.getInteger("check.basePort", 7850);
+        long timeoutMillis = Long.getLong("check.timeoutMillis", 60000);
+        String dirName = System.getProperty("check.dir");
+        File dir = dirName == null ? Files.createTempDirectory("convergence").toFile() : new File(dirName);
+        dir.mkdirs();
+        List<Process> processes = new ArrayList<Process>();
+        boolean converged = false;
+        try
+        {
+            for(int i = 0; i < peers; i++)
+            {
+                processes.add(startPeer(dir, i, peers, basePort));
+            }
+            for(int i = 0; i < peers; i++)
+            {
+                awaitPeer(basePort + i);
+            }
+            System.out.println(peers + " peers started in " + dir);
+            addBlocks(peers, blocks, difficulty, basePort);
+            converged = awaitConvergence(peers, basePort, timeoutMillis);
+        }
+        finally
+        {
+            for(Process process : processes)
+            {
+                process.destroy();
+            }
+        }
+        System.out.println(converged ? "Peers converged" : "Peers did not converge within " + timeoutMillis + " ms");
+        System.exit(converged ? 0 : 1);
+    }
+    /**
+     * This method starts peer i as a VerifyingServerTCP process peering with every other peer
+     * return the process
+     */
+    private static Process startPeer(File dir, int i, int peers, int basePort) throws IOException
+    {
+        StringBuilder others = new StringBuilder();
+        for(int j = 0; j < peers; j++)
+        {
+            if(j != i)
+            {
+                others.append(others.length() == 0 ? "" : ",").append("localhost:").append(basePort + 100 + j);
+            }
+        }
+        List<String> command = new ArrayList<String>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        //options such as --add-modules are the peers' too, the check's own settings are not
+        for(String option : ManagementFactory.getRuntimeMXBean().getInputArguments())
+        {
+            if(!option.startsWith("-Dcheck."))
+            {
+                command.add(option);
+            }
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("-Dblockchain.port=" + (basePort + i));
+        command.add("-Dblockchain.peerPort=" + (basePort + 100 + i));
+        command.add("-Dblockchain.peers=" + others);
+        command.add("-Dblockchain.syncMillis=" + SYNC_MILLIS);
+        //the check is the only client, its adds shouldn't be rate limited
+        command.add("-Dblockchain.writeRate=1000");
+        command.add("-Dblockchain.writeBurst=1000");
+        command.add("-Dblockchain.dir=" + new File(dir, "node" + i).getPath());
+        command.add("VerifyingServerTCP");
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(new File(dir, "node" + i + ".log"));
+        return builder.start();
+    }
+    /**
+     * This method waits until the peer on port answers a status request
+     */
+    private static void awaitPeer(int port) throws Exception
+    {
+        long deadline = System.currentTimeMillis() + START_MILLIS;
+        while(true)
+        {
+            try
+            {
+                status(port);
+                return;
+            }
+            catch(IOException e)
+            {
+                if(System.currentTimeMillis() > deadline)
+                {
+                    throw new IOException("Peer on port " + port + " did not start: " + e.getMessage());
+                }
+                Thread.sleep(POLL_MILLIS);
+            }
+        }
+    }
+    /**
+     * This method adds blocks to every peer at once, one thread per peer
+     */
+    private static void addBlocks(int peers, final int blocks, final int difficulty, final int basePort) throws Exception
+    {
+        final BigInteger[] ned = SigningClientTCP.generateNED();
+        final AtomicInteger added = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+        for(int i = 0; i < peers; i++)
+        {
+            final int port = basePort + i;
+            Thread thread = new Thread(new Runnable() {
+                public void run()
+                {
+                    try
+                    {
+                        for(int b = 0; b < blocks; b++)
+                        {
+                            //each block carries a different key so the peers' blocks differ
+                            String rsa = SigningClientTCP.generateNED()[0].toString();
+                            Request request = signed(ned, "1", rsa);
+                            request.rsa = rsa;
+                            request.difficulty = difficulty;
+                            JsonObject reply = send(port, request);
+                            if(reply.has("error"))
+                            {
+                                System.out.println("Peer on port " + port + ": " + reply.get("error").getAsString());
+                            }
+                            else
+                            {
+                                added.incrementAndGet();
+                            }
+                        }
+                    }
+                    catch(Exception e)
+                    {
+                        System.out.println("Adding to peer on port " + port + " failed: " + e.getMessage());
+                    }
+                }
+            }, "add-" + port);
+            thread.start();
+            threads.add(thread);
+        }
+        for(Thread thread : threads)
+        {
+            thread.join();
+        }
+        System.out.println(added.get() + " of " + peers * blocks + " blocks added");
+    }
+    /**
+     * This method asks every peer for its tip until they all report the same one
+     * return true when they agreed before the timeout
+     */
+    private static boolean awaitConvergence(int peers, int basePort, long timeoutMillis) throws Exception
+    {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        String[] tips = new String[peers];
+        while(true)
+        {
+            boolean same = true;
+            for(int i = 0; i < peers; i++)
+            {
+                JsonObject status = status(basePort + i);
+                tips[i] = status.get("chainSize").getAsString() + " " + status.get("chainHash").getAsString();
+                same = same && tips[i].equals(tips[0]);
+            }
+            if(same || System.currentTimeMillis() > deadline)
+            {
+                for(int i = 0; i < peers; i++)
+                {
+                    System.out.println("Peer on port " + (basePort + i) + ": size and chainHash " + tips[i]);
+                }
+                return same;
+            }
+            Thread.sleep(POLL_MILLIS);
+        }
+    }
+    /**
+     * This method asks the peer on port for its status
+     * return the reply
+     */
+    private static JsonObject status(int port) throws Exception
+    {
+        return send(port, signed(STATUS_KEY, "0", "value"));
+    }
+    /**
+     * This method builds a request signed with ned, for the default chain
+     * return the request
+     */
+    private static Request signed(BigInteger[] ned, String operation, String value) throws Exception
+    {
+        Request request = new Request();
+        request.id = DatatypeConverter.printHexBinary(SigningClientTCP.last20(ned)).toLowerCase();
+        request.keyComb = ned[1].toString() + ";" + ned[0].toString();
+        request.value = value;
+        request.operation = operation;
+        request.signedVal = SigningClientTCP.sign(request.id + request.keyComb + value + request.signedOperation(), ned);
+        return request;
+    }
+    /**
+     * This method sends one request to the peer on port
+     * return the reply
+     */
+    private static JsonObject send(int port, Request request) throws IOException
+    {
+        try(Socket socket = new Socket("localhost", port))
+        {
+            PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())));
+            out.println(request.toJson());
+            out.flush();
+            String line = new BufferedReader(new InputStreamReader(socket.getInputStream())).readLine();
+            if(line == null)
+            {
+                throw new IOException("Peer on port " + port + " closed the connection");
+            }
+            return JsonParser.parseString(line).getAsJsonObject();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ * This class holds the finer-grained proof of work target and the rule that retargets it.
+ *
+ * A target is a 256-bit threshold: a hash meets it when, read as an unsigned number, it is not above it.
+ * Blocks carry it in compact form ("bits"), the way Bitcoin does: the high byte is the length of the
+ * target in bytes and the low three bytes are its leading bytes. A difficulty of d leading hex zeroes is
+ * the target 16^(64-d) - 1, so the old blocks fit the same scheme, but a compact target can move the
+ * expected work by a fraction of a percent where a difficulty step is 16x.
+ *
+ * Every window blocks the target is scaled by how long the last window took compared to
+ * window * targetMillis, by at most maxFactor either way. The blocks in between keep their parent's target.
+ * Blocks below fromHeight were mined before the rule was turned on and keep the difficulty they were mined at.
+ */
+import java.math.BigInteger;
+import java.lang.Object;
+
+public final class DifficultyTarget extends Object{
+    //2^256, the number of possible hashes
+    private static final BigInteger HASH_SPACE = BigInteger.ONE.shiftLeft(256);
+    //the easiest target handed out, one hash in 16 meets it
+    private static final BigInteger EASIEST = forDifficulty(1);
+
+    public final long targetMillis; //time wanted between two blocks
+    public final int window; //blocks between two retargets
+    public final int maxFactor; //most the target moves at one retarget, either way
+    public final int fromHeight; //index of the first block the rule applies to
+    /**
+     * constructor for a retargeting rule
+     * @param targetMillis time wanted between two blocks, above 0
+     * @param window blocks between two retargets, at least 1
+     * @param maxFactor most the target moves at one retarget, at least 1
+     * @param fromHeight index of the first block the rule applies to, 0 for a chain retargeted from genesis
+     */
+    public DifficultyTarget(long targetMillis, int window, int maxFactor, int fromHeight)
+    {
+        if(targetMillis <= 0 || window < 1 || maxFactor < 1 || fromHeight < 0)
+        {
+            throw new IllegalArgumentException("Retargeting needs targetMillis > 0, window >= 1, maxFactor >= 1 and fromHeight >= 0");
+        }
+        this.targetMillis = targetMillis;
+        this.window = window;
+        this.maxFactor = maxFactor;
+        this.fromHeight = fromHeight;
+    }
+    /**
+     * This method will work out the target of the next block from the blocks below it
+     * @param parent the block the next one builds on
+     * @param windowStart the block window blocks below the next one, or the oldest one there is
+     * @param intervals number of block intervals between windowStart and parent
+     * @param index index of the next block
+     * return compact target of the next block
+     */
+    public int nextBits(Block parent, Block windowStart, int intervals, int index)
+    {
+        int parentBits = bitsOf(parent);
+        if(index % window != 0 || intervals == 0)
+        {
+            return parentBits;
+        }
+        long expected = intervals * targetMillis;
+        long actual = parent.getTimestampMillis() - windowStart.getTimestampMillis();
+        //a window can't count as faster or slower than maxFactor, whatever its timestamps say
+        actual = Math.max(expected / maxFactor, Math.min(actual, expected * maxFactor));
+        BigInteger target = fromBits(parentBits).multiply(BigInteger.valueOf(actual)).divide(BigInteger.valueOf(expected));
+        return toBits(target.min(EASIEST));
+    }
+    /**
+     * This method will get the compact target a block was mined against, converting a plain difficulty
+     * return compact target
+     */
+    public static int bitsOf(Block block)
+    {
+        return block.getBits() != 0 ? block.getBits() : toBits(forDifficulty(block.getDifficulty()));
+    }
+    /**
+     * This method will get the target a difficulty stands for
+     * @param difficulty leading hex zeroes
+     * return 16^(64-difficulty) - 1
+     */
+    public static BigInteger forDifficulty(int difficulty)
+    {
+        return BigInteger.ONE.shiftLeft(4 * (64 - Math.max(0, Math.min(difficulty, 64)))).subtract(BigInteger.ONE);
+    }
+    /**
+     * This method will expand a compact target
+     * @param bits compact target
+     * return the 256-bit target
+     */
+    public static BigInteger fromBits(int bits)
+    {
+        int length = bits >>> 24;
+        BigInteger mantissa = BigInteger.valueOf(bits & 0xffffff);
+        return length <= 3 ? mantissa.shiftRight(8 * (3 - length)) : mantissa.shiftLeft(8 * (length - 3));
+    }
+    /**
+     * This method will pack a target into compact form, keeping its three leading bytes
+     * @param target the 256-bit target
+     * return compact target, rounded down
+     */
+    public static int toBits(BigInteger target)
+    {
+        int length = (target.bitLength() + 7) / 8;
+        long mantissa = length <= 3 ? target.longValue() << (8 * (3 - length)) : target.shiftRight(8 * (length - 3)).longValue();
+        return (length << 24) | (int) mantissa;
+    }
+    /**
+     * This method will get the target a hash is compared against
+     * @param difficulty leading hex zeroes, used when bits is 0
+     * @param bits compact target, 0 for none
+     * return the target as a Digest so hashes can be compared to it without allocating
+     */
+    public static Digest target(int difficulty, int bits)
+    {
+        BigInteger target = bits != 0 ? fromBits(bits) : forDifficulty(difficulty);
+        byte[] bytes = new byte[32];
+        byte[] magnitude = target.toByteArray();
+        //toByteArray is big-endian and may carry a leading sign byte
+        int copy = Math.min(magnitude.length, 32);
+        System.arraycopy(magnitude, magnitude.length - copy, bytes, 32 - copy, copy);
+        return Digest.fromBytes(bytes);
+    }
+    /**
+     * This method will get the work a target stands for, the expected number of hashes to meet it
+     * @param bits compact target
+     * return 2^256 / (target + 1)
+     */
+    public static BigInteger work(int bits)
+    {
+        return HASH_SPACE.divide(fromBits(bits).add(BigInteger.ONE));
+    }
+    /**
+     * This method will get the number of leading hex zeroes every hash meeting a target has
+     * @param bits compact target
+     * return difficulty in leading hex zeroes
+     */
+    public static int difficultyOf(int bits)
+    {
+        return (256 - fromBits(bits).bitLength()) / 4;
+    }
+}
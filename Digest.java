@@ -0,0 +1,234 @@
+/**
+ * This class represents a SHA-256 digest.
+ * The 32 digest bytes are held as four longs instead of a 64 character hex String,
+ * so a digest costs 48 bytes on the heap. Hex is only produced when the digest is
+ * displayed or sent over the wire.
+ */
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.Object;
+
+public final class Digest extends Object implements Comparable<Digest>{
+    //lowercase hex digits used when rendering a digest
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final long word0; //digest bytes 0-7, big-endian
+    private final long word1; //digest bytes 8-15, big-endian
+    private final long word2; //digest bytes 16-23, big-endian
+    private final long word3; //digest bytes 24-31, big-endian
+    /**
+     * This is the constructor which builds a digest from its four big-endian words
+     */
+    public Digest(long word0, long word1, long word2, long word3)
+    {
+        this.word0 = word0;
+        this.word1 = word1;
+        this.word2 = word2;
+        this.word3 = word3;
+    }
+    /**
+     * This method builds a digest from the 32 bytes returned by MessageDigest
+     * @param bytes raw SHA-256 output
+     * return the digest
+     */
+    public static Digest fromBytes(byte[] bytes)
+    {
+        if(bytes.length != 32)
+        {
+            throw new IllegalArgumentException("SHA-256 digest must be 32 bytes");
+        }
+        return new Digest(readWord(bytes, 0), readWord(bytes, 8), readWord(bytes, 16), readWord(bytes, 24));
+    }
+    /**
+     * This method parses a 64 character hex string.
+     * An empty string (the genesis block's previousHash) maps to null
+     * @param hex hex representation of the digest
+     * return the digest, or null for an empty string
+     */
+    public static Digest fromHex(String hex)
+    {
+        if(hex == null || hex.isEmpty())
+        {
+            return null;
+        }
+        if(hex.length() != 64)
+        {
+            throw new IllegalArgumentException("SHA-256 hex must be 64 characters: " + hex);
+        }
+        long[] words = new long[4];
+        //every 16 hex characters make one word
+        for(int i = 0; i < 64; i++)
+        {
+            int nibble = Character.digit(hex.charAt(i), 16);
+            if(nibble < 0)
+            {
+                throw new IllegalArgumentException("Not a hex digest: " + hex);
+            }
+            words[i / 16] = (words[i / 16] << 4) | nibble;
+        }
+        return new Digest(words[0], words[1], words[2], words[3]);
+    }
+    /**
+     * This method renders a digest as hex, keeping the empty string for a missing digest
+     * @param digest the digest, may be null
+     * return lowercase hex, or "" when digest is null
+     */
+    public static String toHex(Digest digest)
+    {
+        return digest == null ? "" : digest.toString();
+    }
+    /**
+     * This method writes a digest as a presence byte followed by its 32 bytes
+     * @param out where the digest is written
+     * @param digest the digest, may be null
+     */
+    public static void write(DataOutput out, Digest digest) throws IOException
+    {
+        out.writeBoolean(digest != null);
+        if(digest != null)
+        {
+            out.writeLong(digest.word0);
+            out.writeLong(digest.word1);
+            out.writeLong(digest.word2);
+            out.writeLong(digest.word3);
+        }
+    }
+    /**
+     * This method reads a digest written by write
+     * @param in where the digest is read from
+     * return the digest, or null if none was written
+     */
+    public static Digest read(DataInput in) throws IOException
+    {
+        if(!in.readBoolean())
+        {
+            return null;
+        }
+        return new Digest(in.readLong(), in.readLong(), in.readLong(), in.readLong());
+    }
+    /**
+     * This method will get one of the four big-endian words
+     * @param i word number from 0 to 3
+     * return the word
+     */
+    public long getWord(int i)
+    {
+        switch(i)
+        {
+            case 0: return word0;
+            case 1: return word1;
+            case 2: return word2;
+            case 3: return word3;
+            default: throw new IndexOutOfBoundsException("word " + i);
+        }
+    }
+    /**
+     * This method copies the digest back into its 32 raw bytes
+     * return a new byte array
+     */
+    public byte[] toBytes()
+    {
+        byte[] bytes = new byte[32];
+        for(int i = 0; i < 4; i++)
+        {
+            long word = getWord(i);
+            for(int j = 0; j < 8; j++)
+            {
+                bytes[i * 8 + j] = (byte) (word >>> (56 - 8 * j));
+            }
+        }
+        return bytes;
+    }
+    /**
+     * This method counts the leading zero hex digits, which is what a block's difficulty is measured against
+     * return number of leading zero hex digits (0 - 64)
+     */
+    public int leadingZeroHexDigits()
+    {
+        for(int i = 0; i < 4; i++)
+        {
+            long word = getWord(i);
+            if(word != 0)
+            {
+                return i * 16 + Long.numberOfLeadingZeros(word) / 4;
+            }
+        }
+        return 64;
+    }
+    /**
+     * This method compares two digests as unsigned 256-bit numbers, which is how a hash is held against a target
+     * return negative, zero or positive as this digest is below, equal to or above the other
+     */
+    @Override
+    public int compareTo(Digest other)
+    {
+        for(int i = 0; i < 4; i++)
+        {
+            int result = Long.compareUnsigned(getWord(i), other.getWord(i));
+            if(result != 0)
+            {
+                return result;
+            }
+        }
+        return 0;
+    }
+    /**
+     * This method Overrides equals in class java.lang.Object
+     * return true when both digests hold the same 32 bytes
+     */
+    @Override
+    public boolean equals(Object other)
+    {
+        if(this == other)
+        {
+            return true;
+        }
+        if(!(other instanceof Digest))
+        {
+            return false;
+        }
+        Digest that = (Digest) other;
+        return word0 == that.word0 && word1 == that.word1 && word2 == that.word2 && word3 == that.word3;
+    }
+    /**
+     * This method Overrides hashCode in class java.lang.Object.
+     * Every word is folded in: proof of work makes the leading bits of word0 zero, so word0 alone collides
+     */
+    @Override
+    public int hashCode()
+    {
+        long folded = word0 ^ word1 ^ word2 ^ word3;
+        return (int) (folded ^ (folded >>> 32));
+    }
+    /**
+     * This method Overrides toString in class java.lang.Object
+     * return the digest as 64 lowercase hex characters
+     */
+    @Override
+    public String toString()
+    {
+        char[] chars = new char[64];
+        for(int i = 0; i < 4; i++)
+        {
+            long word = getWord(i);
+            for(int j = 0; j < 16; j++)
+            {
+                chars[i * 16 + j] = HEX[(int) (word >>> (60 - 4 * j)) & 0xf];
+            }
+        }
+        return new String(chars);
+    }
+    /**
+     * This method reads eight bytes as one big-endian long
+     */
+    private static long readWord(byte[] bytes, int offset)
+    {
+        long word = 0;
+        for(int i = 0; i < 8; i++)
+        {
+            word = (word << 8) | (bytes[offset + i] & 0xff);
+        }
+        return word;
+    }
+}
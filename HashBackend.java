@@ -0,0 +1,45 @@
+/**
+ * This interface is how blocks are hashed, both when mining and when verifying.
+ * A block hashes as prefix + nonce in decimal + suffix (see Block.calculateDigest), and only the nonce changes
+ * while mining, so a backend is handed the constant prefix and suffix once and then searches ranges of nonces.
+ * Every backend has to produce exactly the SHA-256 MessageDigest does; HashBackends picks one at startup.
+ */
+public interface HashBackend {
+    /**
+     * This method will get the backend's name, as used by -Dblockchain.hashBackend
+     * return the name
+     */
+    String getName();
+    /**
+     * This method will get how many nonces the backend hashes at once
+     * return candidates per step
+     */
+    int getLanes();
+    /**
+     * This method hashes one message, this is what verification uses
+     * @param message the bytes to hash
+     * return SHA-256 of message
+     */
+    Digest digest(byte[] message) throws Exception;
+    /**
+     * This method starts a search for a nonce whose block hash is at or below target
+     * @param prefix UTF-8 bytes hashed before the nonce
+     * @param suffix UTF-8 bytes hashed after the nonce
+     * @param target highest acceptable hash
+     * return the search, which is used by one thread
+     */
+    Search search(byte[] prefix, byte[] suffix, Digest target) throws Exception;
+
+    /**
+     * This interface is one block's nonce search, it keeps whatever the backend precomputed for the block
+     */
+    interface Search {
+        /**
+         * This method tries the nonces firstNonce up to firstNonce + count - 1 in order
+         * @param firstNonce first nonce to try
+         * @param count number of nonces to try
+         * return the first nonce whose hash meets the target, or -1 if none does
+         */
+        long next(long firstNonce, int count) throws Exception;
+    }
+}
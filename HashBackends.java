@@ -0,0 +1,293 @@
+/**
+ * This class picks the HashBackend blocks are hashed with.
+ *
+ * Blocks are hashed with the JDK backend until startSelection has chosen. It checks every candidate against
+ * MessageDigest, both on plain messages and on a nonce search, and drops any candidate that differs in a single bit.
+ * The rest are timed on a search until the JIT has compiled them and their rate stops climbing, and the fastest
+ * replaces the JDK backend. Timing takes a few seconds, so it runs on a background thread; switching backends
+ * part way through mining is safe because they all hash alike.
+ * -Dblockchain.hashBackend=jdk|vector forces a backend instead and skips the timing.
+ *
+ * The vector backend needs the jdk.incubator.vector module (--add-modules jdk.incubator.vector when compiling
+ * and running). It is loaded by name, so without the module it simply isn't a candidate and the JDK backend is used.
+ */
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public final class HashBackends {
+    //longest decimal nonce, Long.MIN_VALUE
+    static final int MAX_NONCE_DIGITS = 20;
+    //class of the Vector API backend, looked up by name so it is optional
+    private static final String VECTOR_BACKEND = "VectorSha256Backend";
+    //length of one timed round
+    private static final long ROUND_NANOS = 100000000L;
+    //a candidate is timed for at least MIN_ROUNDS, which gives the JIT time to compile it, then until
+    //SETTLED_ROUNDS rounds in a row don't beat its best by 10%, and for at most MAX_ROUNDS
+    private static final int MIN_ROUNDS = 20;
+    private static final int SETTLED_ROUNDS = 5;
+    private static final int MAX_ROUNDS = 100;
+    private static volatile HashBackend selected = new JdkHashBackend(); //backend in use
+    private static boolean selecting; //whether startSelection has run
+
+    private HashBackends()
+    {
+    }
+    /**
+     * This method will get the backend in use
+     * return the backend, the JDK one until startSelection has chosen
+     */
+    public static HashBackend get()
+    {
+        return selected;
+    }
+    /**
+     * This method starts choosing the backend on a background thread, only the first call does anything
+     */
+    public static synchronized void startSelection()
+    {
+        if(selecting)
+        {
+            return;
+        }
+        selecting = true;
+        Thread selection = new Thread(new Runnable() {
+            public void run()
+            {
+                HashBackend backend = select(System.getProperty("blockchain.hashBackend"));
+                set(backend);
+                System.out.println("Hash backend: " + describe(backend));
+            }
+        }, "hash-backend-selection");
+        selection.setDaemon(true);
+        selection.start();
+    }
+    /**
+     * This method will set the backend in use
+     * @param backend the backend, it has to match MessageDigest
+     */
+    public static void set(HashBackend backend)
+    {
+        selected = backend;
+    }
+    /**
+     * This method will get every backend that can run here
+     * return the JDK backend followed by the vector backend when the Vector API is there
+     */
+    public static List<HashBackend> candidates()
+    {
+        List<HashBackend> backends = new ArrayList<HashBackend>();
+        backends.add(new JdkHashBackend());
+        try
+        {
+            backends.add((HashBackend) Class.forName(VECTOR_BACKEND).getConstructor().newInstance());
+        }
+        catch(Throwable e)
+        {
+            //no Vector API here, or the backend wasn't compiled
+        }
+        return backends;
+    }
+    /**
+     * This method chooses a backend
+     * @param name backend to use, null to pick the fastest
+     * return the backend
+     */
+    static HashBackend select(String name)
+    {
+        HashBackend best = null;
+        long bestRate = -1;
+        for(HashBackend backend : candidates())
+        {
+            if(name != null && !backend.getName().equals(name))
+            {
+                continue;
+            }
+            try
+            {
+                if(!matchesJdk(backend))
+                {
+                    System.out.println("Hash backend " + describe(backend) + " doesn't match MessageDigest, not used");
+                    continue;
+                }
+                long rate = name == null ? hashesPerSecond(backend) : 0;
+                if(rate > bestRate)
+                {
+                    best = backend;
+                    bestRate = rate;
+                }
+            }
+            catch(Throwable e)
+            {
+                System.out.println("Hash backend " + describe(backend) + " failed: " + e);
+            }
+        }
+        if(best == null)
+        {
+            if(name != null)
+            {
+                System.out.println("Hash backend " + name + " isn't available, using jdk");
+            }
+            best = new JdkHashBackend();
+        }
+        return best;
+    }
+    /**
+     * This method will describe a backend for logging
+     * return name and lanes
+     */
+    public static String describe(HashBackend backend)
+    {
+        return backend.getName() + " (" + backend.getLanes() + " lanes)";
+    }
+    /**
+     * This method checks a backend hashes exactly like MessageDigest: single messages across block boundaries,
+     * and a search that has to find the one nonce whose hash is lowest in a range that crosses a new digit
+     * return true if every result matched
+     */
+    static boolean matchesJdk(HashBackend backend) throws Exception
+    {
+        Random rnd = new Random(42);
+        MessageDigest jdk = MessageDigest.getInstance("SHA-256");
+        for(int length = 0; length < 300; length += 1 + length / 8)
+        {
+            byte[] message = new byte[length];
+            rnd.nextBytes(message);
+            if(!backend.digest(message).equals(Digest.fromBytes(jdk.digest(message))))
+            {
+                return false;
+            }
+        }
+        for(int prefixLength = 0; prefixLength < 200; prefixLength += 13)
+        {
+            byte[] prefix = new byte[prefixLength];
+            rnd.nextBytes(prefix);
+            byte[] suffix = (",3," + rnd.nextInt(1000)).getBytes(StandardCharsets.UTF_8);
+            long first = 970 + rnd.nextInt(20);
+            //the lowest hash in the range is the only one at or below itself
+            Digest lowest = null;
+            long lowestNonce = -1;
+            for(long nonce = first; nonce < first + 64; nonce++)
+            {
+                jdk.update(prefix);
+                jdk.update(Long.toString(nonce).getBytes(StandardCharsets.UTF_8));
+                jdk.update(suffix);
+                Digest hash = Digest.fromBytes(jdk.digest());
+                if(lowest == null || hash.compareTo(lowest) < 0)
+                {
+                    lowest = hash;
+                    lowestNonce = nonce;
+                }
+            }
+            HashBackend.Search search = backend.search(prefix, suffix, lowest);
+            //a range ending just before it, which usually isn't a whole number of lanes, holds none
+            if(search.next(first, 64) != lowestNonce || search.next(first, (int) (lowestNonce - first)) != -1)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+    /**
+     * This method times a backend on a block about the size of one holding a client's key
+     * return best hashes per second of a round
+     */
+    static long hashesPerSecond(HashBackend backend) throws Exception
+    {
+        return hashesPerSecond(backend, 180);
+    }
+    /**
+     * This method times a backend searching for a hash it won't find, over rounds until its rate settles
+     * @param prefixLength bytes hashed before the nonce, most of them are the block's data
+     * return best hashes per second of a round
+     */
+    static long hashesPerSecond(HashBackend backend, int prefixLength) throws Exception
+    {
+        byte[] prefix = new byte[prefixLength];
+        new Random(7).nextBytes(prefix);
+        HashBackend.Search search = backend.search(prefix, ",5".getBytes(StandardCharsets.UTF_8), new Digest(0, 0, 0, 0));
+        int step = 256 * backend.getLanes();
+        long nonce = 0;
+        long best = 0;
+        int settled = 0;
+        for(int round = 0; round < MAX_ROUNDS && (round < MIN_ROUNDS || settled < SETTLED_ROUNDS); round++)
+        {
+            long hashes = 0;
+            long start = System.nanoTime();
+            long elapsed;
+            do
+            {
+                search.next(nonce, step);
+                nonce += step;
+                hashes += step;
+                elapsed = System.nanoTime() - start;
+            }
+            while(elapsed < ROUND_NANOS);
+            long rate = (long) (hashes * 1e9 / elapsed);
+            settled = rate > best * 1.1 ? 0 : settled + 1;
+            best = Math.max(best, rate);
+        }
+        return best;
+    }
+    /**
+     * This method compares a raw SHA-256 hash with a target
+     * @param hash 32 hash bytes
+     * @param target highest acceptable hash
+     * return true if hash is at or below target
+     */
+    static boolean meets(byte[] hash, Digest target)
+    {
+        for(int i = 0; i < 4; i++)
+        {
+            long word = 0;
+            for(int b = 0; b < 8; b++)
+            {
+                word = (word << 8) | (hash[i * 8 + b] & 0xff);
+            }
+            int c = Long.compareUnsigned(word, target.getWord(i));
+            if(c != 0)
+            {
+                return c < 0;
+            }
+        }
+        return true;
+    }
+    /**
+     * This method writes a nonce in decimal, as String concatenation would
+     * @param nonce the nonce
+     * @param buffer where the digits go, it needs room for MAX_NONCE_DIGITS
+     * @param offset where the first digit goes
+     * return number of bytes written
+     */
+    static int writeDecimal(long nonce, byte[] buffer, int offset)
+    {
+        if(nonce < 0)
+        {
+            byte[] digits = Long.toString(nonce).getBytes(StandardCharsets.UTF_8);
+            System.arraycopy(digits, 0, buffer, offset, digits.length);
+            return digits.length;
+        }
+        int length = decimalLength(nonce);
+        for(int i = offset + length - 1; i >= offset; i--)
+        {
+            buffer[i] = (byte) ('0' + nonce % 10);
+            nonce /= 10;
+        }
+        return length;
+    }
+    /**
+     * This method will get the number of decimal digits of a nonce that isn't negative
+     */
+    static int decimalLength(long nonce)
+    {
+        int length = 1;
+        while(nonce >= 10)
+        {
+            nonce /= 10;
+            length++;
+        }
+        return length;
+    }
+}
@@ -0,0 +1,665 @@
+/**
+ * This class stores block headers off the Java heap.
+ * Every header field lives in its own fixed-width column (index, timestamp, difficulty, compact target, nonce,
+ * previousHash and the cached hash of the block), each column being a list of direct ByteBuffer chunks.
+ * The variable-length data of each block is written to a separate arena of direct buffers and
+ * the header only keeps its location.
+ *
+ * The store is a List of Block so BlockChain can use it in place of an ArrayList. get(i) hands out a
+ * flyweight Block view which reads and writes the columns of row i, so no Block is kept per row.
+ *
+ * Data moved to a BodyArchive leaves only its segment, slot and data commitment in the row. An arena chunk none of
+ * whose rows still points into it is released.
+ *
+ * Chunks are never moved and the chunk lists are copy-on-write, so a ChainSnapshot can read rows on another
+ * thread while the chain appends; rows it sees changing are read from the copies the chain keeps for it.
+ */
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class HeaderStore extends AbstractList<Block> {
+    //rows per column chunk, a chunk is allocated once and never copied
+    private static final int CHUNK_SHIFT = 16;
+    private static final int CHUNK_ROWS = 1 << CHUNK_SHIFT;
+    //bytes per data arena chunk
+    private static final int ARENA_CHUNK_BYTES = 16 << 20;
+    //flag bits kept per row
+    private static final byte HAS_PREVIOUS = 1;
+    private static final byte HAS_HASH = 2;
+    private static final byte HAS_DATA_DIGEST = 4;
+    //data length marking a row whose data is in the archive
+    private static final int COLD_DATA = -2;
+
+    private final Column indexes = new Column(4);
+    private final Column timestamps = new Column(8);
+    private final Column difficulties = new Column(4);
+    private final Column targets = new Column(4);
+    private final Column nonces = new Column(8);
+    private final Column previousHashes = new Column(32);
+    private final Column hashes = new Column(32);
+    private final Column flags = new Column(1);
+    //arena chunk number, offset and length of each row's data, length -1 for null data.
+    //For data in the archive the length is COLD_DATA and chunk and offset are its segment and slot
+    private final Column dataRefs = new Column(12);
+    //commitment to the data of rows whose data is in the archive, allocated once a row goes cold
+    private final Column dataDigests = new Column(32);
+    //arena holding the UTF-8 bytes of every block's data, a released chunk is null
+    private final List<ByteBuffer> arena = new CopyOnWriteArrayList<ByteBuffer>();
+    //bytes of each arena chunk still pointed at by a row
+    private long[] arenaLive = new long[0];
+    //archive holding the data of cold rows, null until the chain sets one
+    private BodyArchive archive;
+    //number of rows stored, written only once a new row is filled so a reader that counts the row sees its columns
+    private volatile int size;
+
+    /**
+     * This method Overrides get in class AbstractList
+     * return a flyweight Block view of row i
+     */
+    @Override
+    public Block get(int i)
+    {
+        checkRow(i);
+        return new View(i);
+    }
+    /**
+     * This method Overrides size in class AbstractList
+     * return number of blocks held
+     */
+    @Override
+    public int size()
+    {
+        return size;
+    }
+    /**
+     * This method Overrides add in class AbstractList, copying the block into a new row
+     * return true
+     */
+    @Override
+    public boolean add(Block block)
+    {
+        append(block, null);
+        return true;
+    }
+    /**
+     * This method Overrides set in class AbstractList, copying the block over row i
+     * return the previous content of row i as a detached Block
+     */
+    @Override
+    public Block set(int i, Block block)
+    {
+        checkRow(i);
+        Block old = detach(i);
+        writeRow(i, block, null);
+        return old;
+    }
+    /**
+     * This method Overrides removeRange in class AbstractList. Only the last rows can be removed,
+     * which is all a chain rollback needs; their data bytes are counted out of the arena
+     */
+    @Override
+    protected void removeRange(int fromIndex, int toIndex)
+    {
+        if(toIndex != size)
+        {
+            throw new UnsupportedOperationException("Only the tail of a header store can be removed");
+        }
+        for(int row = fromIndex; row < toIndex; row++)
+        {
+            release(row);
+        }
+        size = fromIndex;
+        modCount++;
+    }
+    /**
+     * This method copies a block into a new row
+     * @param block the block to store
+     * @param hash the block's hash if it is already known, or null
+     * return the row the block was written to
+     */
+    public int append(Block block, Digest hash)
+    {
+        int row = size;
+        writeRow(row, block, hash);
+        //the volatile write publishes the row's columns to snapshot readers on other threads
+        size = row + 1;
+        return row;
+    }
+    /**
+     * This method will set the archive holding the data of cold rows
+     * @param archive the chain's body archive
+     */
+    public void setArchive(BodyArchive archive)
+    {
+        this.archive = archive;
+    }
+    /**
+     * This method points row i at data already in the archive and releases its bytes in the arena.
+     * The row's hash doesn't change, so a cached hash stays
+     * @param i row number
+     * @param segment segment holding the data
+     * @param slot position of the data in the segment
+     * @param dataDigest BlockHeader.dataDigest of the data
+     */
+    public void makeCold(int i, int segment, int slot, Digest dataDigest)
+    {
+        checkRow(i);
+        writeCold(i, segment, slot, dataDigest);
+    }
+    /**
+     * This method gets row i as a ColdBlock if its data is in the archive
+     * @param i row number
+     * return a ColdBlock with the row's header fields, or null when the row holds its data itself
+     */
+    public ColdBlock coldBlock(int i)
+    {
+        checkRow(i);
+        if(dataRefs.getInt(i, 8) != COLD_DATA)
+        {
+            return null;
+        }
+        Digest dataDigest = hasFlag(i, HAS_DATA_DIGEST) ? getDigest(dataDigests, i) : null;
+        return new ColdBlock(get(i), archive, dataRefs.getInt(i, 0), dataRefs.getInt(i, 4), dataDigest);
+    }
+    /**
+     * This method will get the bytes held by arena chunks that haven't been released
+     */
+    public long arenaBytes()
+    {
+        long bytes = 0;
+        for(ByteBuffer chunk : arena)
+        {
+            if(chunk != null)
+            {
+                bytes += chunk.capacity();
+            }
+        }
+        return bytes;
+    }
+    /**
+     * This method copies row i into an ordinary heap Block
+     * @param i row number
+     * return a Block that no longer refers to this store
+     */
+    public Block detach(int i)
+    {
+        return get(i).copy();
+    }
+    /**
+     * This method records the hash of row i so validation doesn't have to recompute it
+     * @param i row number
+     * @param hash the row's hash
+     */
+    public void cacheHash(int i, Digest hash)
+    {
+        putDigest(hashes, i, hash);
+        //a reader that sees the flag sees the whole hash, see cachedHash
+        VarHandle.releaseFence();
+        setFlag(i, HAS_HASH, true);
+    }
+    /**
+     * This method reads the cached hash of row i without computing it
+     * @param i row number
+     * return the hash, or null when it isn't cached
+     */
+    public Digest cachedHash(int i)
+    {
+        checkRow(i);
+        if(!hasFlag(i, HAS_HASH))
+        {
+            return null;
+        }
+        //pairs with the release fence in cacheHash
+        VarHandle.acquireFence();
+        return getDigest(hashes, i);
+    }
+    /**
+     * This method checks whether the hash of row i is cached
+     * @param i row number
+     * return true when the row's hash doesn't have to be computed
+     */
+    public boolean isHashCached(int i)
+    {
+        checkRow(i);
+        return hasFlag(i, HAS_HASH);
+    }
+    /**
+     * This method checks whether the hash of row i equals the expected digest.
+     * The cached hash column is used when present, otherwise the hash is computed once and cached
+     * @param i row number
+     * @param expected the digest the row should hash to
+     * return true when they match
+     */
+    public boolean hashMatches(int i, Digest expected) throws Exception
+    {
+        if(expected == null)
+        {
+            return false;
+        }
+        ensureHash(i);
+        for(int w = 0; w < 4; w++)
+        {
+            if(hashes.getLong(i, w * 8) != expected.getWord(w))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+    /**
+     * This method checks whether row i+1's previousHash points at row i.
+     * When row i's hash is cached the two columns are compared in place without allocating
+     * @param i row number of the parent
+     * return true when the hash pointer is intact
+     */
+    public boolean isLinked(int i) throws Exception
+    {
+        if(!hasFlag(i + 1, HAS_PREVIOUS))
+        {
+            return false;
+        }
+        ensureHash(i);
+        for(int w = 0; w < 4; w++)
+        {
+            if(hashes.getLong(i, w * 8) != previousHashes.getLong(i + 1, w * 8))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+    /**
+     * This method computes and caches the hash of row i if the cache is empty
+     */
+    private void ensureHash(int i) throws Exception
+    {
+        if(!hasFlag(i, HAS_HASH))
+        {
+            cacheHash(i, get(i).calculateDigest());
+        }
+    }
+    /**
+     * This method writes every field of a block into row i
+     */
+    private void writeRow(int row, Block block, Digest hash)
+    {
+        ensureCapacity(row);
+        indexes.putInt(row, 0, block.getIndex());
+        timestamps.putLong(row, 0, block.getTimestampMillis());
+        difficulties.putInt(row, 0, block.getDifficulty());
+        targets.putInt(row, 0, block.getBits());
+        nonces.putLong(row, 0, block.getNonce());
+        flags.putByte(row, 0, (byte) 0);
+        writePrevious(row, block.getPreviousDigest());
+        //a cold block's data is already in the archive, only its location is copied
+        if(block instanceof ColdBlock && ((ColdBlock) block).isCold())
+        {
+            ColdBlock cold = (ColdBlock) block;
+            try
+            {
+                writeCold(row, cold.getSegment(), cold.getSlot(), cold.getDataDigest());
+            }
+            catch(Exception e)
+            {
+                throw new IllegalStateException(e);
+            }
+        }
+        else
+        {
+            writeData(row, block.getData());
+        }
+        if(hash != null)
+        {
+            cacheHash(row, hash);
+        }
+    }
+    /**
+     * This method writes a previousHash into row i, null clears it
+     */
+    private void writePrevious(int row, Digest previousHash)
+    {
+        if(previousHash == null)
+        {
+            setFlag(row, HAS_PREVIOUS, false);
+        }
+        else
+        {
+            putDigest(previousHashes, row, previousHash);
+            setFlag(row, HAS_PREVIOUS, true);
+        }
+    }
+    /**
+     * This method appends data to the arena and points row i at it.
+     * Bytes of replaced data are counted out of their chunk
+     */
+    private void writeData(int row, String data)
+    {
+        if(row < size)
+        {
+            release(row);
+        }
+        setFlag(row, HAS_DATA_DIGEST, false);
+        if(data == null)
+        {
+            dataRefs.putInt(row, 0, 0);
+            dataRefs.putInt(row, 4, 0);
+            dataRefs.putInt(row, 8, -1);
+            return;
+        }
+        byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer chunk = arena.isEmpty() ? null : arena.get(arena.size() - 1);
+        //start a new arena chunk when the current one is full, oversized data gets a chunk of its own
+        if(chunk == null || chunk.remaining() < bytes.length)
+        {
+            //the chunk being left may already be empty, nothing else will ever free it
+            if(chunk != null && arenaLive[arena.size() - 1] == 0)
+            {
+                arena.set(arena.size() - 1, null);
+            }
+            chunk = ByteBuffer.allocateDirect(Math.max(ARENA_CHUNK_BYTES, bytes.length));
+            arena.add(chunk);
+            if(arenaLive.length < arena.size())
+            {
+                arenaLive = Arrays.copyOf(arenaLive, Math.max(16, arenaLive.length * 2));
+            }
+        }
+        dataRefs.putInt(row, 0, arena.size() - 1);
+        dataRefs.putInt(row, 4, chunk.position());
+        dataRefs.putInt(row, 8, bytes.length);
+        arenaLive[arena.size() - 1] += bytes.length;
+        chunk.put(bytes);
+    }
+    /**
+     * This method points row i at data in the archive
+     */
+    private void writeCold(int row, int segment, int slot, Digest dataDigest)
+    {
+        if(row < size)
+        {
+            release(row);
+        }
+        if(dataDigest != null)
+        {
+            dataDigests.ensure(row);
+            putDigest(dataDigests, row, dataDigest);
+        }
+        setFlag(row, HAS_DATA_DIGEST, dataDigest != null);
+        dataRefs.putInt(row, 0, segment);
+        dataRefs.putInt(row, 4, slot);
+        dataRefs.putInt(row, 8, COLD_DATA);
+    }
+    /**
+     * This method counts the data of row i out of its arena chunk, releasing the chunk once no row points into it.
+     * The chunk being filled is kept
+     */
+    private void release(int row)
+    {
+        int length = dataRefs.getInt(row, 8);
+        if(length <= 0)
+        {
+            return;
+        }
+        int c = dataRefs.getInt(row, 0);
+        arenaLive[c] -= length;
+        if(arenaLive[c] == 0 && c != arena.size() - 1)
+        {
+            arena.set(c, null);
+        }
+    }
+    /**
+     * This method reads the data of row i back out of the arena
+     */
+    private String readData(int row)
+    {
+        int length = dataRefs.getInt(row, 8);
+        if(length == COLD_DATA)
+        {
+            return archive.body(dataRefs.getInt(row, 0), dataRefs.getInt(row, 4));
+        }
+        if(length < 0)
+        {
+            return null;
+        }
+        ByteBuffer chunk = arena.get(dataRefs.getInt(row, 0));
+        byte[] bytes = new byte[length];
+        //absolute reads so the chunk's write position is left alone
+        int offset = dataRefs.getInt(row, 4);
+        for(int i = 0; i < length; i++)
+        {
+            bytes[i] = chunk.get(offset + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    /**
+     * This method writes a digest into a 32 byte column
+     */
+    private static void putDigest(Column column, int row, Digest digest)
+    {
+        for(int w = 0; w < 4; w++)
+        {
+            column.putLong(row, w * 8, digest.getWord(w));
+        }
+    }
+    /**
+     * This method reads a digest back out of a 32 byte column
+     */
+    private static Digest getDigest(Column column, int row)
+    {
+        return new Digest(column.getLong(row, 0), column.getLong(row, 8), column.getLong(row, 16), column.getLong(row, 24));
+    }
+    /**
+     * This method checks a flag bit of row i
+     */
+    private boolean hasFlag(int row, byte flag)
+    {
+        return (flags.getByte(row, 0) & flag) != 0;
+    }
+    /**
+     * This method sets or clears a flag bit of row i
+     */
+    private void setFlag(int row, byte flag, boolean on)
+    {
+        byte current = flags.getByte(row, 0);
+        flags.putByte(row, 0, (byte) (on ? current | flag : current & ~flag));
+    }
+    /**
+     * This method makes sure every column has a chunk for row i
+     */
+    private void ensureCapacity(int row)
+    {
+        indexes.ensure(row);
+        timestamps.ensure(row);
+        difficulties.ensure(row);
+        targets.ensure(row);
+        nonces.ensure(row);
+        previousHashes.ensure(row);
+        hashes.ensure(row);
+        flags.ensure(row);
+        dataRefs.ensure(row);
+    }
+    /**
+     * This method throws when i is not a stored row
+     */
+    private void checkRow(int i)
+    {
+        if(i < 0 || i >= size)
+        {
+            throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+        }
+    }
+
+    /**
+     * This class is one fixed-width column, split into direct ByteBuffer chunks of CHUNK_ROWS rows
+     */
+    private static final class Column {
+        private final int width; //bytes per row
+        private final List<ByteBuffer> chunks = new CopyOnWriteArrayList<ByteBuffer>();
+
+        Column(int width)
+        {
+            this.width = width;
+        }
+        void ensure(int row)
+        {
+            while(chunks.size() <= (row >>> CHUNK_SHIFT))
+            {
+                chunks.add(ByteBuffer.allocateDirect(CHUNK_ROWS * width));
+            }
+        }
+        private ByteBuffer chunk(int row)
+        {
+            return chunks.get(row >>> CHUNK_SHIFT);
+        }
+        private int offset(int row, int field)
+        {
+            return (row & (CHUNK_ROWS - 1)) * width + field;
+        }
+        int getInt(int row, int field)
+        {
+            return chunk(row).getInt(offset(row, field));
+        }
+        void putInt(int row, int field, int value)
+        {
+            chunk(row).putInt(offset(row, field), value);
+        }
+        long getLong(int row, int field)
+        {
+            return chunk(row).getLong(offset(row, field));
+        }
+        void putLong(int row, int field, long value)
+        {
+            chunk(row).putLong(offset(row, field), value);
+        }
+        byte getByte(int row, int field)
+        {
+            return chunk(row).get(offset(row, field));
+        }
+        void putByte(int row, int field, byte value)
+        {
+            chunk(row).put(offset(row, field), value);
+        }
+    }
+
+    /**
+     * This class is the flyweight Block handed out by get.
+     * It holds only a row number; every getter and setter goes to the columns.
+     * Any setter that changes the hashed content drops the row's cached hash
+     */
+    private final class View extends Block {
+        private final int row;
+
+        View(int row)
+        {
+            this.row = row;
+        }
+        @Override
+        public int getIndex()
+        {
+            return indexes.getInt(row, 0);
+        }
+        @Override
+        public void setIndex(int index)
+        {
+            indexes.putInt(row, 0, index);
+            setFlag(row, HAS_HASH, false);
+            changed();
+        }
+        @Override
+        public long getTimestampMillis()
+        {
+            return timestamps.getLong(row, 0);
+        }
+        @Override
+        public void setTimestamp(long timestamp)
+        {
+            timestamps.putLong(row, 0, timestamp);
+            setFlag(row, HAS_HASH, false);
+            changed();
+        }
+        @Override
+        public int getDifficulty()
+        {
+            return difficulties.getInt(row, 0);
+        }
+        @Override
+        public void setDifficulty(int difficulty)
+        {
+            difficulties.putInt(row, 0, difficulty);
+            setFlag(row, HAS_HASH, false);
+            changed();
+        }
+        @Override
+        public int getBits()
+        {
+            return targets.getInt(row, 0);
+        }
+        @Override
+        public void setBits(int bits)
+        {
+            targets.putInt(row, 0, bits);
+            setFlag(row, HAS_HASH, false);
+            changed();
+        }
+        @Override
+        public long getNonce()
+        {
+            return nonces.getLong(row, 0);
+        }
+        @Override
+        public void setNonce(long nonce)
+        {
+            nonces.putLong(row, 0, nonce);
+            setFlag(row, HAS_HASH, false);
+            changed();
+        }
+        @Override
+        public Digest getPreviousDigest()
+        {
+            return hasFlag(row, HAS_PREVIOUS) ? getDigest(previousHashes, row) : null;
+        }
+        @Override
+        public void setPreviousDigest(Digest previousHash)
+        {
+            writePrevious(row, previousHash);
+            setFlag(row, HAS_HASH, false);
+            changed();
+        }
+        @Override
+        public String getData()
+        {
+            return readData(row);
+        }
+        @Override
+        public void setData(String data)
+        {
+            writeData(row, data);
+            setFlag(row, HAS_HASH, false);
+            changed();
+        }
+        @Override
+        public Digest getDataDigest() throws Exception
+        {
+            if(dataRefs.getInt(row, 8) == COLD_DATA)
+            {
+                return hasFlag(row, HAS_DATA_DIGEST) ? getDigest(dataDigests, row) : null;
+            }
+            return super.getDataDigest();
+        }
+        @Override
+        public Digest proofOfWork(MiningJob job) throws Exception
+        {
+            //the winning hash is exactly what the cache should hold for this row
+            Digest hash = super.proofOfWork(job);
+            if(hash != null)
+            {
+                cacheHash(row, hash);
+            }
+            return hash;
+        }
+    }
+}
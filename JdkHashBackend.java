@@ -0,0 +1,113 @@
+/**
+ * This class hashes blocks with the JDK's MessageDigest, one nonce at a time.
+ * It is always available and is what every other backend is checked against.
+ *
+ * Everything hashed before the nonce (index, timestamp, data and previousHash) is the same for every nonce tried
+ * on a block, and the data can be long. So a search feeds the prefix to a MessageDigest once and clones that
+ * digest for every nonce, leaving only the nonce, difficulty and target to hash per attempt. Mining speed then
+ * hardly depends on how long the data is. The hash is the same as hashing the whole string.
+ */
+import java.security.MessageDigest;
+
+public class JdkHashBackend implements HashBackend {
+    private final boolean midstate; //whether searches clone a digest that has taken the prefix
+    /**
+     * constructor for the backend mining uses, with the prefix hashed once per block
+     */
+    public JdkHashBackend()
+    {
+        this(true);
+    }
+    /**
+     * constructor that can turn the prefix caching off, Benchmark uses it to show what the caching is worth
+     * @param midstate false to hash the whole message for every nonce
+     */
+    public JdkHashBackend(boolean midstate)
+    {
+        this.midstate = midstate;
+    }
+    @Override
+    public String getName()
+    {
+        return "jdk";
+    }
+    @Override
+    public int getLanes()
+    {
+        return 1;
+    }
+    @Override
+    public Digest digest(byte[] message) throws Exception
+    {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        return Digest.fromBytes(digest.digest(message));
+    }
+    @Override
+    public Search search(byte[] prefix, byte[] suffix, Digest target) throws Exception
+    {
+        return new JdkSearch(prefix, suffix, target, midstate);
+    }
+
+    /**
+     * This class hashes prefix + nonce + suffix for one nonce after another,
+     * starting each from a clone of the digest that took the prefix when the provider can clone
+     */
+    private static final class JdkSearch implements Search {
+        private final MessageDigest digest = MessageDigest.getInstance("SHA-256"); //whole messages, when there is no prefix state
+        private final MessageDigest prefixState; //has taken the prefix, cloned for every nonce; null to hash whole messages
+        private final byte[] suffix; //bytes hashed after the nonce
+        private final Digest target; //highest acceptable hash
+        private final byte[] message; //bytes hashed per nonce: prefix (unless cloning), room for the longest nonce, then suffix
+        private final int start; //where the nonce goes in message
+        private final byte[] hash = new byte[32]; //output of the latest attempt
+
+        JdkSearch(byte[] prefix, byte[] suffix, Digest target, boolean midstate) throws Exception
+        {
+            this.suffix = suffix;
+            this.target = target;
+            this.prefixState = midstate ? prefixState(prefix) : null;
+            //with the prefix state only the nonce and suffix are hashed per attempt
+            this.start = prefixState != null ? 0 : prefix.length;
+            this.message = new byte[start + HashBackends.MAX_NONCE_DIGITS + suffix.length];
+            System.arraycopy(prefix, 0, message, 0, start);
+        }
+        /**
+         * This method feeds the prefix to a digest that can be cloned
+         * return the digest, or null if this provider's SHA-256 can't be cloned
+         */
+        private static MessageDigest prefixState(byte[] prefix) throws Exception
+        {
+            MessageDigest state = MessageDigest.getInstance("SHA-256");
+            state.update(prefix);
+            try
+            {
+                state.clone();
+                return state;
+            }
+            catch(CloneNotSupportedException e)
+            {
+                return null;
+            }
+        }
+        @Override
+        public long next(long firstNonce, int count) throws Exception
+        {
+            for(long nonce = firstNonce; nonce < firstNonce + count; nonce++)
+            {
+                int length = start;
+                length += HashBackends.writeDecimal(nonce, message, length);
+                System.arraycopy(suffix, 0, message, length, suffix.length);
+                length += suffix.length;
+                //carry on from the prefix instead of hashing it again
+                MessageDigest attempt = prefixState != null ? (MessageDigest) prefixState.clone() : digest;
+                attempt.update(message, 0, length);
+                attempt.digest(hash, 0, hash.length);
+                if(HashBackends.meets(hash, target))
+                {
+                    return nonce;
+                }
+            }
+            return -1;
+        }
+    }
+}
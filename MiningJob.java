@@ -0,0 +1,135 @@
+/**
+ * This class is the search state of one proof of work.
+ * Block.proofOfWork(MiningJob) starts at the job's next nonce and, every CHECK_INTERVAL attempts, asks the job
+ * whether to stop: when it was cancelled, its deadline passed or the mining thread was interrupted.
+ * A stopped job remembers the next nonce to try, so calling resume and mining the same block again
+ * carries on where it left off instead of starting over at 0.
+ */
+import java.lang.Object;
+
+public class MiningJob extends Object{
+    //hashes tried between checks, a check costs about as much as one hash so this keeps it out of sight
+    public static final int CHECK_INTERVAL = 4096;
+    //where a job stands
+    public enum Status { RUNNING, FOUND, TIMED_OUT, CANCELLED }
+
+    private volatile boolean cancelled; //set by cancel from any thread
+    private long deadlineNanos; //System.nanoTime the job has to stop at, Long.MAX_VALUE for none
+    private long nextNonce; //first nonce not tried yet
+    private long attempts; //hashes tried over every run of the job
+    private volatile Status status = Status.RUNNING;
+    /**
+     * constructor for a job that runs until a proof of work is found, it is cancelled or its thread is interrupted
+     */
+    public MiningJob()
+    {
+        this.deadlineNanos = Long.MAX_VALUE;
+    }
+    /**
+     * constructor for a job that also stops once timeoutMillis have passed
+     * @param timeoutMillis how long the job may mine, 0 or less for no limit
+     */
+    public MiningJob(long timeoutMillis)
+    {
+        this.deadlineNanos = deadline(timeoutMillis);
+    }
+    /**
+     * This method asks the job to stop at its next check, it may be called from any thread
+     */
+    public void cancel()
+    {
+        cancelled = true;
+    }
+    /**
+     * This method lets a stopped job mine again from the nonce it stopped at
+     * @param timeoutMillis how long the job may mine this time, 0 or less for no limit
+     */
+    public void resume(long timeoutMillis)
+    {
+        cancelled = false;
+        deadlineNanos = deadline(timeoutMillis);
+        status = Status.RUNNING;
+    }
+    /**
+     * This method lets a job that found a proof of work mine another block, starting at nonce 0 again
+     * The deadline and the hashes tried so far carry over, so one job can bound the mining of several blocks
+     */
+    public void nextBlock()
+    {
+        nextNonce = 0;
+        status = Status.RUNNING;
+    }
+    /**
+     * This method will get the first nonce that hasn't been tried
+     * return the nonce mining starts or resumes at
+     */
+    public long getNextNonce()
+    {
+        return nextNonce;
+    }
+    /**
+     * This method will get the number of hashes tried
+     * return hashes tried over every run of the job
+     */
+    public long getAttempts()
+    {
+        return attempts;
+    }
+    /**
+     * This method will get where the job stands
+     * return RUNNING while mining or before it starts, otherwise how it ended
+     */
+    public Status getStatus()
+    {
+        return status;
+    }
+    /**
+     * This method is called by proofOfWork every CHECK_INTERVAL attempts
+     * @param startNonce the nonce this run started at
+     * @param nonce the next nonce this run would try
+     * return true if mining has to stop, the job then remembers nonce
+     */
+    boolean shouldStop(long startNonce, long nonce)
+    {
+        Status stop = null;
+        if(cancelled || Thread.currentThread().isInterrupted())
+        {
+            stop = Status.CANCELLED;
+        }
+        else if(deadlineNanos != Long.MAX_VALUE && System.nanoTime() - deadlineNanos >= 0)
+        {
+            stop = Status.TIMED_OUT;
+        }
+        if(stop == null)
+        {
+            return false;
+        }
+        finish(startNonce, nonce, stop);
+        return true;
+    }
+    /**
+     * This method is called by proofOfWork once a nonce meets the target
+     * @param startNonce the nonce this run started at
+     * @param nonce the winning nonce
+     */
+    void found(long startNonce, long nonce)
+    {
+        finish(startNonce, nonce + 1, Status.FOUND);
+    }
+    /**
+     * This method records how a run ended
+     */
+    private void finish(long startNonce, long next, Status end)
+    {
+        attempts += next - startNonce;
+        nextNonce = next;
+        status = end;
+    }
+    /**
+     * This method turns a timeout into a System.nanoTime deadline
+     */
+    private static long deadline(long timeoutMillis)
+    {
+        return timeoutMillis > 0 ? System.nanoTime() + timeoutMillis * 1000000L : Long.MAX_VALUE;
+    }
+}
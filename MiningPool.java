@@ -0,0 +1,690 @@
+/**
+ * This class hands proof of work to MiningWorker processes instead of mining on the server's own threads.
+ *
+ * Workers connect to the pool's port and keep the connection open. Every block the server mines becomes a job:
+ * the bytes hashed before and after the nonce, the target and a range of nonces, which is all a worker needs to
+ * search without knowing anything about blocks or chains. Messages use the same DataOutputStream encoding as
+ * PeerNode, one after the other on the connection:
+ *   pool to worker  JOB id prefix suffix target share first count  search nonces first up to first + count - 1
+ *                   CANCEL id                                       stop searching job id, it is over
+ *   worker to pool  FOUND id nonce                                  nonce meets the target
+ *                   DONE id share                                   the range holds no solution, share proves it was searched
+ *                   HEARTBEAT                                       the worker is still there, sent every few seconds
+ * Each worker has one range at a time and gets the next one as soon as it reports the last. Several jobs (one
+ * per chain mining at once) share the workers, a worker going to the job with the fewest ranges out. There is one
+ * pool per server, so N chains mining at once each get about 1/N of the workers rather than workers of their own.
+ *
+ * The pool checks a solution by hashing the block once with the nonce; a worker that sends a wrong one is
+ * dropped. A DONE has to carry a share: a nonce of the range whose hash is at or below the share target, which
+ * is set so that a range holds about SHARE_FACTOR such nonces. One hash checks it, and a worker that reports a
+ * range without a valid share is dropped, so a worker can't claim ranges without hashing at least about
+ * 1/SHARE_FACTOR of each. A share can't show that a worker kept back a solution it found, so the port should
+ * still only be reachable by the server's own workers. A worker that closes its connection, or sends nothing
+ * for timeoutMillis, is dropped as well, and its range goes back to the front of its job to be handed to the
+ * next worker that asks. While no worker is connected, the thread that asked for the block searches the job's
+ * ranges itself, CHECK_INTERVAL nonces at a time and without holding the pool's lock, and a worker that
+ * connects meanwhile joins in.
+ *
+ * Messages to a worker are queued under the pool's lock and written by the worker's own writer thread, so a
+ * worker that stops reading holds up nothing but itself until it times out.
+ *
+ * The MiningJob's deadline, cancellation and interrupts work as they do for local mining. When a job stops,
+ * its next nonce is the lowest one not yet searched, so resuming may search some ranges again.
+ */
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import com.google.gson.JsonObject;
+
+public class MiningPool {
+    //pool to worker messages
+    static final byte JOB = 1;
+    static final byte CANCEL = 2;
+    //worker to pool messages
+    static final byte FOUND = 1;
+    static final byte DONE = 2;
+    static final byte HEARTBEAT = 3;
+    //how often a worker says it is still there
+    static final int HEARTBEAT_MILLIS = 5000;
+    //how often a waiting job looks at its deadline
+    private static final long POLL_MILLIS = 100;
+    //nonces meeting the share target a range holds on average; an honest range has none with odds of e^-SHARE_FACTOR
+    static final int SHARE_FACTOR = 20;
+    //2^256, the number of possible hashes
+    private static final BigInteger HASH_SPACE = BigInteger.ONE.shiftLeft(256);
+    //queued to a worker's writer thread to stop it
+    private static final byte[] STOP = new byte[0];
+
+    private final int port; //port workers connect to
+    private final int rangeNonces; //nonces handed to a worker at once
+    private final int timeoutMillis; //silence after which a worker counts as gone
+    private final List<Worker> workers = new ArrayList<Worker>(); //connected workers, guarded by this
+    private final List<Work> active = new ArrayList<Work>(); //jobs being mined, guarded by this
+    private long nextJobId; //id of the next job, guarded by this
+    //jobs started with workers and without, ranges handed out and handed out again, solutions accepted and rejected,
+    //and ranges reported done without a valid share
+    private final AtomicLong jobs = new AtomicLong();
+    private final AtomicLong localJobs = new AtomicLong();
+    private final AtomicLong ranges = new AtomicLong();
+    private final AtomicLong reassigned = new AtomicLong();
+    private final AtomicLong solutions = new AtomicLong();
+    private final AtomicLong badSolutions = new AtomicLong();
+    private final AtomicLong badShares = new AtomicLong();
+    /**
+     * constructor for a pool, start has to be called before workers can connect
+     * @param port port workers connect to
+     * @param rangeNonces nonces handed to a worker at once
+     * @param timeoutMillis silence after which a worker counts as gone
+     */
+    public MiningPool(int port, int rangeNonces, int timeoutMillis)
+    {
+        this.port = port;
+        this.rangeNonces = rangeNonces;
+        this.timeoutMillis = timeoutMillis;
+    }
+    /**
+     * This method starts accepting workers
+     */
+    public void start() throws IOException
+    {
+        final ServerSocket listenSocket = new ServerSocket(port);
+        Thread listener = new Thread(new Runnable() {
+            public void run()
+            {
+                while(true)
+                {
+                    try
+                    {
+                        final Socket socket = listenSocket.accept();
+                        Thread reader = new Thread(new Runnable() {
+                            public void run()
+                            {
+                                serve(socket);
+                            }
+                        }, "mining-worker-" + socket.getRemoteSocketAddress());
+                        reader.setDaemon(true);
+                        reader.start();
+                    }
+                    catch(IOException e)
+                    {
+                        System.out.println("Mining pool listener IO Exception:" + e.getMessage());
+                    }
+                }
+            }
+        }, "mining-pool");
+        listener.setDaemon(true);
+        listener.start();
+    }
+    /**
+     * This method finds a proof of work for a block like Block.proofOfWork(MiningJob), on the workers when any are connected
+     * @param block the block, its nonce is set to the solution
+     * @param job search state bounding the mining
+     * return a Digest meeting the block's target, or null if the job stopped first
+     */
+    public Digest mine(Block block, MiningJob job) throws Exception
+    {
+        //a blockchain.ProofOfWork flight recorder event, committed only when a recording asks for it
+        ChainEvents.ProofOfWorkEvent event = new ChainEvents.ProofOfWorkEvent();
+        event.begin();
+        long start = job.getNextNonce();
+        Work work;
+        synchronized(this)
+        {
+            //a job is on the pool even while no worker is connected, so a worker connecting later joins in
+            work = new Work(nextJobId++, block, start, rangeNonces);
+            active.add(work);
+            (workers.isEmpty() ? localJobs : jobs).incrementAndGet();
+            dispatch();
+        }
+        HashBackend.Search search = null;
+        try
+        {
+            while(true)
+            {
+                Range range;
+                synchronized(this)
+                {
+                    if(work.winner < 0 && !job.shouldStop(start, work.lowest()))
+                    {
+                        if(!workers.isEmpty())
+                        {
+                            try
+                            {
+                                wait(POLL_MILLIS);
+                            }
+                            catch(InterruptedException e)
+                            {
+                                //the next check stops the job as cancelled, like an interrupted proofOfWork
+                                Thread.currentThread().interrupt();
+                            }
+                            continue;
+                        }
+                        //no worker is connected, search here in short ranges so the deadline is still looked at often
+                        range = work.take(MiningJob.CHECK_INTERVAL);
+                    }
+                    else
+                    {
+                        break;
+                    }
+                }
+                if(search == null)
+                {
+                    search = block.copy().nonceSearch(HashBackends.get());
+                }
+                searchLocally(work, range, search);
+            }
+        }
+        finally
+        {
+            synchronized(this)
+            {
+                finish(work);
+            }
+        }
+        boolean found = work.winner >= 0;
+        if(found)
+        {
+            block.setNonce(work.winner);
+            job.found(start, work.winner);
+        }
+        else
+        {
+            block.setNonce(job.getNextNonce());
+        }
+        if(event.shouldCommit())
+        {
+            event.index = block.getIndex();
+            event.difficulty = block.getDifficulty();
+            event.bits = block.getBits();
+            event.attempts = (found ? work.winner + 1 : job.getNextNonce()) - start;
+            event.found = found;
+            event.backend = "pool";
+            event.commit();
+        }
+        return found ? work.hash : null;
+    }
+    /**
+     * This method will report the pool's metrics
+     * return workers connected, jobs, ranges handed out and reassigned, solutions accepted and rejected, and rejected shares
+     */
+    public JsonObject metrics()
+    {
+        JsonObject jsonObj = new JsonObject();
+        synchronized(this)
+        {
+            jsonObj.addProperty("workers", workers.size());
+            jsonObj.addProperty("activeJobs", active.size());
+        }
+        jsonObj.addProperty("jobs", jobs.get());
+        jsonObj.addProperty("localJobs", localJobs.get());
+        jsonObj.addProperty("ranges", ranges.get());
+        jsonObj.addProperty("reassigned", reassigned.get());
+        jsonObj.addProperty("solutions", solutions.get());
+        jsonObj.addProperty("badSolutions", badSolutions.get());
+        jsonObj.addProperty("badShares", badShares.get());
+        return jsonObj;
+    }
+    /**
+     * This method searches one range on the waiting thread, while no worker is connected
+     */
+    private void searchLocally(Work work, Range range, HashBackend.Search search) throws Exception
+    {
+        long found = search.next(range.first, (int) (range.end - range.first));
+        synchronized(this)
+        {
+            if(found >= 0)
+            {
+                accept(work, range, found);
+            }
+            else
+            {
+                work.outstanding.remove(range);
+            }
+        }
+    }
+    /**
+     * This method keeps reading one worker's messages until it goes away
+     */
+    private void serve(Socket socket)
+    {
+        Worker worker = null;
+        try
+        {
+            socket.setSoTimeout(timeoutMillis);
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            final Worker connected = new Worker(socket);
+            worker = connected;
+            Thread writer = new Thread(new Runnable() {
+                public void run()
+                {
+                    write(connected, out);
+                }
+            }, "mining-writer-" + socket.getRemoteSocketAddress());
+            writer.setDaemon(true);
+            writer.start();
+            synchronized(this)
+            {
+                workers.add(worker);
+                dispatch();
+                //jobs mining locally hand their ranges over
+                notifyAll();
+            }
+            while(true)
+            {
+                byte type = in.readByte();
+                if(type == HEARTBEAT)
+                {
+                    continue;
+                }
+                long jobId = in.readLong();
+                long value = in.readLong();
+                synchronized(this)
+                {
+                    if(worker.work == null || worker.work.id != jobId)
+                    {
+                        //about a job that was already over when the worker sent it
+                        continue;
+                    }
+                    if(type == FOUND)
+                    {
+                        if(!accept(worker.work, worker.range, value))
+                        {
+                            badSolutions.incrementAndGet();
+                            throw new IOException("Worker " + socket.getRemoteSocketAddress() + " sent a nonce that doesn't meet the target");
+                        }
+                    }
+                    else if(type == DONE)
+                    {
+                        if(!isShare(worker.work, worker.range, value))
+                        {
+                            badShares.incrementAndGet();
+                            throw new IOException("Worker " + socket.getRemoteSocketAddress() + " reported a range done without a valid share");
+                        }
+                        worker.work.outstanding.remove(worker.range);
+                        worker.work = null;
+                        worker.range = null;
+                        dispatch();
+                        //the job may have run out of ranges to wait for
+                        notifyAll();
+                    }
+                    else
+                    {
+                        throw new IOException("Unexpected message " + type + " from worker " + socket.getRemoteSocketAddress());
+                    }
+                }
+            }
+        }
+        catch(EOFException e)
+        {
+            // the worker closed its connection
+        }
+        catch(IOException e)
+        {
+            System.out.println("Mining worker dropped: " + e.getMessage());
+        }
+        finally
+        {
+            if(worker != null)
+            {
+                synchronized(this)
+                {
+                    drop(worker);
+                }
+            }
+            try
+            {
+                socket.close();
+            }
+            catch(IOException e)
+            {
+                // ignore exception on close
+            }
+        }
+    }
+    /**
+     * This method checks a solution with one hash and ends the job when it holds, the caller holds the pool's lock
+     * return false if the nonce doesn't meet the block's target
+     */
+    private boolean accept(Work work, Range range, long nonce) throws IOException
+    {
+        if(work.winner >= 0)
+        {
+            return true;
+        }
+        if(nonce < range.first || nonce >= range.end)
+        {
+            return false;
+        }
+        Block candidate = work.block.copy();
+        candidate.setNonce(nonce);
+        Digest hash;
+        try
+        {
+            hash = candidate.calculateDigest();
+        }
+        catch(Exception e)
+        {
+            throw new IOException("Couldn't check a solution", e);
+        }
+        if(!candidate.meetsDifficulty(hash))
+        {
+            return false;
+        }
+        solutions.incrementAndGet();
+        work.winner = nonce;
+        work.hash = hash;
+        notifyAll();
+        return true;
+    }
+    /**
+     * This method checks the share of a range reported done with one hash, the caller holds the pool's lock
+     * return true if the nonce is in the range and its hash meets the job's share target
+     */
+    private boolean isShare(Work work, Range range, long nonce) throws IOException
+    {
+        if(nonce < range.first || nonce >= range.end)
+        {
+            return false;
+        }
+        Block candidate = work.block.copy();
+        candidate.setNonce(nonce);
+        try
+        {
+            return candidate.calculateDigest().compareTo(work.share) <= 0;
+        }
+        catch(Exception e)
+        {
+            throw new IOException("Couldn't check a share", e);
+        }
+    }
+    /**
+     * This method writes the messages queued for one worker until it is dropped
+     */
+    private void write(Worker worker, DataOutputStream out)
+    {
+        try
+        {
+            while(true)
+            {
+                byte[] message = worker.outbox.take();
+                if(message == STOP)
+                {
+                    return;
+                }
+                out.write(message);
+                //messages queued together go out together
+                if(worker.outbox.isEmpty())
+                {
+                    out.flush();
+                }
+            }
+        }
+        catch(IOException e)
+        {
+            synchronized(this)
+            {
+                drop(worker);
+            }
+        }
+        catch(InterruptedException e)
+        {
+            // the pool doesn't interrupt writers, nothing is left to write
+        }
+    }
+    /**
+     * This method takes a finished or stopped job off the pool and cancels it on its workers, the caller holds the pool's lock
+     */
+    private void finish(Work work)
+    {
+        active.remove(work);
+        for(Worker worker : new ArrayList<Worker>(workers))
+        {
+            if(worker.work == work)
+            {
+                worker.work = null;
+                worker.range = null;
+                worker.outbox.add(cancelMessage(work));
+            }
+        }
+        dispatch();
+    }
+    /**
+     * This method gives every idle worker a range of the job with the fewest ranges out, the caller holds the pool's lock
+     */
+    private void dispatch()
+    {
+        for(Worker worker : new ArrayList<Worker>(workers))
+        {
+            if(worker.work != null || worker.gone)
+            {
+                continue;
+            }
+            Work next = null;
+            for(Work work : active)
+            {
+                if(work.winner < 0 && (next == null || work.outstanding.size() < next.outstanding.size()))
+                {
+                    next = work;
+                }
+            }
+            if(next == null)
+            {
+                return;
+            }
+            Range range = next.take(rangeNonces);
+            worker.work = next;
+            worker.range = range;
+            ranges.incrementAndGet();
+            worker.outbox.add(jobMessage(next, range));
+        }
+    }
+    /**
+     * This method encodes a JOB message handing a range to a worker
+     */
+    private static byte[] jobMessage(Work work, Range range)
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + work.prefix.length + work.suffix.length);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try
+        {
+            out.writeByte(JOB);
+            out.writeLong(work.id);
+            out.writeInt(work.prefix.length);
+            out.write(work.prefix);
+            out.writeInt(work.suffix.length);
+            out.write(work.suffix);
+            Digest.write(out, work.target);
+            Digest.write(out, work.share);
+            out.writeLong(range.first);
+            out.writeInt((int) (range.end - range.first));
+        }
+        catch(IOException e)
+        {
+            //a ByteArrayOutputStream doesn't throw
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+    /**
+     * This method encodes a CANCEL message ending a job on a worker
+     */
+    private static byte[] cancelMessage(Work work)
+    {
+        byte[] message = new byte[9];
+        message[0] = CANCEL;
+        for(int i = 0; i < 8; i++)
+        {
+            message[1 + i] = (byte) (work.id >>> (56 - 8 * i));
+        }
+        return message;
+    }
+    /**
+     * This method will get the share target of a range: a range of count nonces holds about SHARE_FACTOR hashes at
+     * or below it, and it is never harder than the block's own target
+     * @param target the block's target
+     * @param count nonces in a range
+     * return the share target
+     */
+    static Digest shareTarget(Digest target, int count)
+    {
+        BigInteger share = HASH_SPACE.divide(BigInteger.valueOf(count)).multiply(BigInteger.valueOf(SHARE_FACTOR));
+        share = share.min(HASH_SPACE.subtract(BigInteger.ONE));
+        share = share.max(new BigInteger(1, target.toBytes()));
+        byte[] bytes = new byte[32];
+        byte[] magnitude = share.toByteArray();
+        //toByteArray is big-endian and may carry a leading sign byte
+        int copy = Math.min(magnitude.length, 32);
+        System.arraycopy(magnitude, magnitude.length - copy, bytes, 32 - copy, copy);
+        return Digest.fromBytes(bytes);
+    }
+    /**
+     * This method forgets a worker that went away and hands its range back to its job, the caller holds the pool's lock
+     */
+    private void drop(Worker worker)
+    {
+        if(worker.gone)
+        {
+            return;
+        }
+        worker.gone = true;
+        workers.remove(worker);
+        worker.outbox.add(STOP);
+        if(worker.work != null)
+        {
+            worker.work.giveBack(worker.range);
+            reassigned.incrementAndGet();
+            worker.work = null;
+            worker.range = null;
+        }
+        try
+        {
+            //the reader thread sees the socket closed and stops
+            worker.socket.close();
+        }
+        catch(IOException e)
+        {
+            // ignore exception on close
+        }
+        dispatch();
+        //jobs left without workers mine locally
+        notifyAll();
+    }
+
+    /**
+     * This class is a range of nonces
+     */
+    private static final class Range {
+        final long first; //first nonce of the range
+        final long end; //first nonce after the range
+
+        Range(long first, long end)
+        {
+            this.first = first;
+            this.end = end;
+        }
+    }
+
+    /**
+     * This class is one block being mined by the pool, guarded by the pool's lock
+     */
+    private static final class Work {
+        final long id; //id the workers know the job by
+        final Block block; //the block, its nonce is only set once the job is over
+        final byte[] prefix; //bytes hashed before the nonce
+        final byte[] suffix; //bytes hashed after the nonce
+        final Digest target; //highest acceptable hash
+        final Digest share; //highest hash a share of a range reported done may have
+        long next; //first nonce not handed out yet
+        final Deque<Range> returned = new ArrayDeque<Range>(); //ranges of workers that went away, handed out first
+        final List<Range> outstanding = new ArrayList<Range>(); //ranges being searched
+        long winner = -1; //the accepted nonce, -1 until one is found
+        Digest hash; //the block's hash with the accepted nonce
+
+        Work(long id, Block block, long start, int rangeNonces)
+        {
+            this.id = id;
+            this.block = block;
+            this.prefix = block.getHashPrefix();
+            this.suffix = block.getHashSuffix();
+            this.target = block.getTarget();
+            this.share = shareTarget(target, rangeNonces);
+            this.next = start;
+        }
+        /**
+         * This method hands out the next range of at most rangeNonces nonces, from one given back first
+         */
+        Range take(int rangeNonces)
+        {
+            Range range = returned.poll();
+            if(range != null && range.end - range.first > rangeNonces)
+            {
+                //hand out the front of a long range and keep the rest in line
+                returned.addFirst(new Range(range.first + rangeNonces, range.end));
+                range = new Range(range.first, range.first + rangeNonces);
+            }
+            if(range == null)
+            {
+                range = new Range(next, next + rangeNonces);
+                next += rangeNonces;
+            }
+            outstanding.add(range);
+            return range;
+        }
+        /**
+         * This method puts a range that wasn't searched to the end back in line
+         */
+        void giveBack(Range range)
+        {
+            outstanding.remove(range);
+            returned.addFirst(range);
+        }
+        /**
+         * This method will get the lowest nonce not yet searched, where a stopped job resumes
+         */
+        long lowest()
+        {
+            long lowest = next;
+            for(Range range : returned)
+            {
+                lowest = Math.min(lowest, range.first);
+            }
+            for(Range range : outstanding)
+            {
+                lowest = Math.min(lowest, range.first);
+            }
+            return lowest;
+        }
+    }
+
+    /**
+     * This class is one connected worker, guarded by the pool's lock
+     */
+    private static final class Worker {
+        final Socket socket;
+        //messages for the worker's writer thread, queued while holding the pool's lock
+        final LinkedBlockingQueue<byte[]> outbox = new LinkedBlockingQueue<byte[]>();
+        Work work; //job the worker is searching, null when idle
+        Range range; //range the worker is searching
+        boolean gone; //set once the worker has been dropped
+
+        Worker(Socket socket)
+        {
+            this.socket = socket;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/**
+ * This program searches nonces for a server's MiningPool, so proof of work runs outside the server's JVM.
+ *
+ *   java MiningWorker host:port
+ *
+ * connects -Dworker.threads connections (one per available processor by default) to the pool's port. Each
+ * connection is one worker searching one range at a time with the fastest HashBackend, and reports a nonce
+ * meeting the target (FOUND) or that its range holds none (DONE, with the first nonce of the range meeting the
+ * share target as proof that it was searched), then waits for the next range. A range the
+ * pool cancels is dropped at the next CHECK_INTERVAL nonces. A connection that breaks is opened again a second
+ * later, so workers may be started before the server and survive its restarts. Adding workers, on this machine
+ * or on others, adds mining capacity without any change to the server.
+ */
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class MiningWorker {
+    //wait before connecting again after the connection broke
+    private static final long RECONNECT_MILLIS = 1000;
+
+    private final String host; //host of the pool
+    private final int port; //port of the pool
+    private final String name; //name of the worker's threads
+    private volatile long cancelled = -1; //id of the latest job the pool cancelled
+    private volatile DataOutputStream out; //connection to the pool, null while disconnected
+    /**
+     * constructor for a worker of the pool at host:port
+     * @param host host of the pool
+     * @param port port of the pool
+     * @param name name of the worker's threads
+     */
+    public MiningWorker(String host, int port, String name)
+    {
+        this.host = host;
+        this.port = port;
+        this.name = name;
+    }
+    /**
+     * @param args host:port of the pool
+     */
+    public static void main(String[] args) throws Exception
+    {
+        String pool = args.length > 0 ? args[0] : "localhost:7900";
+        int colon = pool.lastIndexOf(':');
+        String host = pool.substring(0, colon);
+        int port = Integer.parseInt(pool.substring(colon + 1));
+        //pick the fastest hash backend in the background, ranges are searched with the JDK one meanwhile
+        HashBackends.startSelection();
+        int threads = Integer.getInteger("worker.threads", Runtime.getRuntime().availableProcessors());
+        for(int t = 0; t < threads; t++)
+        {
+            final MiningWorker worker = new MiningWorker(host, port, "mining-worker-" + t);
+            Thread thread = new Thread(new Runnable() {
+                public void run()
+                {
+                    worker.run();
+                }
+            }, worker.name);
+            thread.start();
+        }
+        System.out.println("Mining for " + pool + " with " + threads + " workers");
+    }
+    /**
+     * This method connects to the pool and searches the ranges it hands out, forever
+     */
+    public void run()
+    {
+        while(true)
+        {
+            try(Socket socket = new Socket(host, port))
+            {
+                socket.setTcpNoDelay(true);
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                work(new DataInputStream(new BufferedInputStream(socket.getInputStream())));
+            }
+            catch(IOException e)
+            {
+                System.out.println(name + ": " + e.getMessage() + ", connecting again");
+            }
+            catch(Exception e)
+            {
+                e.printStackTrace();
+            }
+            out = null;
+            try
+            {
+                Thread.sleep(RECONNECT_MILLIS);
+            }
+            catch(InterruptedException e)
+            {
+                return;
+            }
+        }
+    }
+    /**
+     * This method searches ranges until the connection breaks. A reader thread takes the pool's messages
+     * off the connection, so a cancel is seen while a range is being searched
+     */
+    private void work(final DataInputStream in) throws Exception
+    {
+        final LinkedBlockingQueue<Job> jobs = new LinkedBlockingQueue<Job>();
+        //a job that can't be a real one tells the search loop the connection broke
+        final Job closed = new Job();
+        Thread reader = new Thread(new Runnable() {
+            public void run()
+            {
+                try
+                {
+                    while(true)
+                    {
+                        byte type = in.readByte();
+                        if(type == MiningPool.CANCEL)
+                        {
+                            cancelled = in.readLong();
+                        }
+                        else if(type == MiningPool.JOB)
+                        {
+                            jobs.add(Job.read(in));
+                        }
+                        else
+                        {
+                            throw new IOException("Unexpected message " + type + " from the pool");
+                        }
+                    }
+                }
+                catch(IOException e)
+                {
+                    jobs.add(closed);
+                }
+            }
+        }, name + "-reader");
+        reader.setDaemon(true);
+        reader.start();
+        while(true)
+        {
+            //an idle worker still tells the pool it is there
+            Job job = jobs.poll(MiningPool.HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+            if(job == closed)
+            {
+                return;
+            }
+            if(job == null)
+            {
+                heartbeat();
+                continue;
+            }
+            search(job);
+        }
+    }
+    /**
+     * This method searches one range, reporting the first nonce that meets the target or that there is none
+     */
+    private void search(Job job) throws Exception
+    {
+        HashBackend backend = HashBackends.get();
+        //the range is searched for shares, and each share is checked against the block's own target
+        HashBackend.Search shares = backend.search(job.prefix, job.suffix, job.share);
+        HashBackend.Search solutions = backend.search(job.prefix, job.suffix, job.target);
+        long share = -1;
+        long nonce = job.first;
+        long end = job.first + job.count;
+        long lastHeartbeat = System.currentTimeMillis();
+        while(nonce < end)
+        {
+            if(cancelled == job.id)
+            {
+                return;
+            }
+            int count = (int) Math.min(MiningJob.CHECK_INTERVAL, end - nonce);
+            long found = shares.next(nonce, count);
+            if(found >= 0)
+            {
+                if(solutions.next(found, 1) >= 0)
+                {
+                    send(MiningPool.FOUND, job.id, found);
+                    return;
+                }
+                if(share < 0)
+                {
+                    share = found;
+                }
+                //carry on right after the share
+                nonce = found + 1;
+                continue;
+            }
+            nonce += count;
+            //a long range keeps the pool from counting the worker as gone
+            if(System.currentTimeMillis() - lastHeartbeat >= MiningPool.HEARTBEAT_MILLIS)
+            {
+                heartbeat();
+                lastHeartbeat = System.currentTimeMillis();
+            }
+        }
+        //a range without a share is reported all the same, the pool drops the connection and hands the range on
+        send(MiningPool.DONE, job.id, share);
+    }
+    /**
+     * This method sends a FOUND or DONE message
+     */
+    private void send(byte type, long jobId, long value) throws IOException
+    {
+        DataOutputStream connection = out;
+        if(connection == null)
+        {
+            throw new IOException("Not connected");
+        }
+        connection.writeByte(type);
+        connection.writeLong(jobId);
+        connection.writeLong(value);
+        connection.flush();
+    }
+    /**
+     * This method tells the pool the worker is still there
+     */
+    private void heartbeat() throws IOException
+    {
+        DataOutputStream connection = out;
+        if(connection == null)
+        {
+            throw new IOException("Not connected");
+        }
+        connection.writeByte(MiningPool.HEARTBEAT);
+        connection.flush();
+    }
+
+    /**
+     * This class is one range handed out by the pool
+     */
+    private static final class Job {
+        long id; //the pool's id of the job
+        byte[] prefix; //bytes hashed before the nonce
+        byte[] suffix; //bytes hashed after the nonce
+        Digest target; //highest acceptable hash
+        Digest share; //highest hash of a share
+        long first; //first nonce of the range
+        int count; //nonces in the range
+
+        /**
+         * This method reads a JOB message, its type already read
+         */
+        static Job read(DataInputStream in) throws IOException
+        {
+            Job job = new Job();
+            job.id = in.readLong();
+            job.prefix = new byte[in.readInt()];
+            in.readFully(job.prefix);
+            job.suffix = new byte[in.readInt()];
+            in.readFully(job.suffix);
+            job.target = Digest.read(in);
+            job.share = Digest.read(in);
+            job.first = in.readLong();
+            job.count = in.readInt();
+            return job;
+        }
+    }
+}
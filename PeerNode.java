@@ -0,0 +1,739 @@
+/**
+ * This class lets several VerifyingServerTCP instances replicate one BlockChain.
+ *
+ * Every peer listens on its own peer port. A connection carries one request and its reply, all in
+ * the compact binary block encoding (Block.writeTo followed by the block's hash):
+ *   GET_TIP                  -> chain size, chainHash
+ *   GET_BLOCKS from count    -> number of blocks, then each block and its hash
+ *   GET_HEADERS from         -> chunks of headers up to the tip, each chunk is its size then the
+ *                               headers (BlockHeader.writeTo), an empty chunk ends the stream
+ *   ANNOUNCE port block hash -> ACCEPTED, KNOWN, BEHIND or REJECTED
+ * Blocks mined locally are announced to every peer. A peer that is told about a block it can't attach
+ * yet pulls the missing range from the sender, whose peer port comes with the announcement. Every
+ * peer also polls the others on a timer, so a node that was down catches up on its own. Each incoming
+ * block is validated (parent, hash and proof of work) before it is used, and blocks on competing
+ * branches are handed to the chain's fork choice, which follows the branch with the most work.
+ *
+ * A new replica bootstraps headers first: it streams the headers from the peer with the longest chain,
+ * checks hash pointers and proof of work chunk by chunk on a pool of validators while more arrive, and
+ * publishes them so they can be queried. The bodies are then fetched over several connections in parallel
+ * ranges, each checked against its header off the lock, and appended in order.
+ */
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+public class PeerNode {
+    //request types
+    private static final byte GET_TIP = 1;
+    private static final byte GET_BLOCKS = 2;
+    private static final byte ANNOUNCE = 3;
+    private static final byte GET_HEADERS = 4;
+    //announce replies
+    private static final byte ACCEPTED = 1;
+    private static final byte KNOWN = 2;
+    private static final byte BEHIND = 3;
+    private static final byte REJECTED = 4;
+    //most blocks sent in one GET_BLOCKS reply
+    private static final int MAX_RANGE = 500;
+    //headers sent in one chunk of a GET_HEADERS stream
+    private static final int HEADER_CHUNK = 2000;
+    //connections fetching bodies at the same time while bootstrapping
+    private static final int BODY_STREAMS = 4;
+    //socket timeout for peer connections
+    private static final int TIMEOUT_MILLIS = 5000;
+
+    private final BlockChain bc; //the replicated chain, also the lock guarding it
+    private final int port; //port this peer listens on
+    private final List<InetSocketAddress> peers; //the other peers
+    private final ExecutorService workers; //handles incoming connections and outgoing announcements
+    private final ScheduledExecutorService timer; //polls the other peers' tips
+    private volatile boolean bootstrapping; //set while bootstrap is downloading bodies, polling waits for it
+    public volatile int lastSyncBlocks; //blocks appended by the latest bootstrap or sync
+    public volatile double lastSyncBlocksPerSecond; //throughput of the latest bootstrap or sync
+    /**
+     * constructor for a peer of the given chain
+     * @param bc the chain to replicate
+     * @param port port to listen on for other peers
+     * @param peers addresses of the other peers
+     */
+    public PeerNode(BlockChain bc, int port, List<InetSocketAddress> peers)
+    {
+        this.bc = bc;
+        this.port = port;
+        this.peers = peers;
+        this.workers = Executors.newCachedThreadPool(daemon("peer-worker"));
+        this.timer = Executors.newSingleThreadScheduledExecutor(daemon("peer-sync"));
+    }
+    /**
+     * This method parses a comma separated list of host:port peers
+     * @param list the list, may be empty
+     * return the peer addresses
+     */
+    public static List<InetSocketAddress> parsePeers(String list)
+    {
+        List<InetSocketAddress> peers = new ArrayList<InetSocketAddress>();
+        for(String peer : list.split(","))
+        {
+            peer = peer.trim();
+            if(!peer.isEmpty())
+            {
+                int colon = peer.lastIndexOf(':');
+                peers.add(new InetSocketAddress(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1))));
+            }
+        }
+        return peers;
+    }
+    /**
+     * This method starts listening for peers, announcing new blocks and polling the other peers
+     * @param syncIntervalMillis time between two polls of the other peers' tips
+     */
+    public void start(long syncIntervalMillis) throws IOException
+    {
+        final ServerSocket listenSocket = new ServerSocket(port);
+        Thread listener = new Thread(new Runnable() {
+            public void run()
+            {
+                while(true)
+                {
+                    try
+                    {
+                        final Socket socket = listenSocket.accept();
+                        workers.submit(new Runnable() {
+                            public void run()
+                            {
+                                serve(socket);
+                            }
+                        });
+                    }
+                    catch(IOException e)
+                    {
+                        System.out.println("Peer listener IO Exception:" + e.getMessage());
+                    }
+                }
+            }
+        }, "peer-listener");
+        listener.setDaemon(true);
+        listener.start();
+        //tell the other peers about every block that lands here
+        bc.addListener(new BlockChain.Listener() {
+            public void blockAppended(Block block, Digest hash) throws Exception
+            {
+                announce(encode(block, hash));
+            }
+        });
+        timer.scheduleWithFixedDelay(new Runnable() {
+            public void run()
+            {
+                syncAll();
+            }
+        }, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+    /**
+     * This method pulls missing blocks from every peer that is ahead of us
+     */
+    public void syncAll()
+    {
+        if(bootstrapping)
+        {
+            return;
+        }
+        for(InetSocketAddress peer : peers)
+        {
+            try
+            {
+                syncFrom(peer);
+            }
+            catch(Exception e)
+            {
+                //the peer may simply be down, the next poll tries again
+            }
+        }
+    }
+    /**
+     * This method pulls blocks from one peer until we know its tip.
+     * If the peer's blocks don't attach to anything we know, we are on a different branch and step
+     * back by a growing distance until we reach the fork point; fork choice then decides which branch wins
+     * @param peer the peer to pull from
+     * return number of blocks accepted
+     */
+    public int syncFrom(InetSocketAddress peer) throws Exception
+    {
+        long start = System.nanoTime();
+        Tip tip = getTip(peer);
+        int peerSize = tip.size;
+        Digest peerTip = tip.hash;
+        int from;
+        synchronized(bc)
+        {
+            if(peerTip == null || bc.knowsBlock(peerTip))
+            {
+                return 0;
+            }
+            from = Math.min(bc.getChainSize(), peerSize);
+        }
+        int accepted = 0;
+        int backoff = 1;
+        while(from < peerSize)
+        {
+            List<Block> range = new ArrayList<Block>();
+            List<Digest> hashes = new ArrayList<Digest>();
+            fetch(peer, from, MAX_RANGE, range, hashes);
+            if(range.isEmpty())
+            {
+                return accepted;
+            }
+            for(int i = 0; i < range.size(); i++)
+            {
+                BlockChain.Accept result;
+                synchronized(bc)
+                {
+                    //validated against what we know before it is used
+                    result = bc.acceptBlock(range.get(i), hashes.get(i));
+                    if(result == BlockChain.Accept.REORGANIZED)
+                    {
+                        System.out.println("Reorganized " + bc.lastReorgDepth + " blocks in " + bc.lastReorgNanos / 1000 + " us");
+                    }
+                }
+                if(result == BlockChain.Accept.ORPHAN && i == 0 && from > 0)
+                {
+                    //the first block doesn't attach, look further back for the fork point
+                    from = Math.max(from - backoff, 0);
+                    backoff *= 2;
+                    break;
+                }
+                if(result == BlockChain.Accept.ORPHAN || result == BlockChain.Accept.INVALID)
+                {
+                    return accepted;
+                }
+                if(result != BlockChain.Accept.KNOWN)
+                {
+                    accepted++;
+                }
+                if(i == range.size() - 1)
+                {
+                    from += range.size();
+                }
+            }
+        }
+        recordThroughput(accepted, start);
+        return accepted;
+    }
+    /**
+     * This method bootstraps this node from the peer with the longest chain, headers first.
+     * Headers are published as soon as they are checked, so they can be looked up while the bodies
+     * are still being fetched in the background
+     * return the background body download, or null if no peer is ahead of us
+     */
+    public Future<Integer> bootstrap() throws Exception
+    {
+        final long start = System.nanoTime();
+        //pick the peer with the longest chain
+        InetSocketAddress best = null;
+        int bestSize;
+        final int from;
+        Digest tipHash;
+        synchronized(bc)
+        {
+            bestSize = bc.getChainSize();
+            from = bc.getChainSize();
+            tipHash = bc.chainHash;
+        }
+        for(InetSocketAddress peer : peers)
+        {
+            try
+            {
+                Tip tip = getTip(peer);
+                if(tip.size > bestSize)
+                {
+                    best = peer;
+                    bestSize = tip.size;
+                }
+            }
+            catch(IOException e)
+            {
+                //the peer may simply be down
+            }
+        }
+        if(best == null)
+        {
+            return null;
+        }
+        final InetSocketAddress peer = best;
+        final List<BlockHeader> headers;
+        try
+        {
+            headers = fetchHeaders(peer, from, tipHash);
+        }
+        catch(IOException e)
+        {
+            //the peer went away mid-stream, polling takes over
+            System.out.println("Header download from " + peer + " failed: " + e.getMessage());
+            synchronized(bc)
+            {
+                bc.clearPendingHeaders();
+            }
+            return null;
+        }
+        if(headers.isEmpty())
+        {
+            //we are on another branch, the regular sync finds the fork point
+            return null;
+        }
+        System.out.println("Fetched " + headers.size() + " headers from " + peer + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+        bootstrapping = true;
+        return workers.submit(new Callable<Integer>() {
+            public Integer call() throws Exception
+            {
+                try
+                {
+                    int appended = fetchBodies(peer, from, headers);
+                    recordThroughput(appended, start);
+                    System.out.println("Bootstrapped " + appended + " blocks from " + peer + " at " + (long) lastSyncBlocksPerSecond + " blocks/s");
+                    return appended;
+                }
+                finally
+                {
+                    //whatever did not arrive is left to the regular sync
+                    synchronized(bc)
+                    {
+                        bc.clearPendingHeaders();
+                    }
+                    bootstrapping = false;
+                }
+            }
+        });
+    }
+    /**
+     * This method streams the headers above from from a peer. Each chunk is checked on the validator pool
+     * while the next one is read, and chunks are published to the chain in order once they pass
+     * @param peer the peer to stream from
+     * @param from first index to fetch
+     * @param tipHash our chainHash, which the first header has to point at
+     * return the checked headers, cut short at the first one that fails
+     */
+    private List<BlockHeader> fetchHeaders(InetSocketAddress peer, int from, Digest tipHash) throws Exception
+    {
+        List<BlockHeader> headers = new ArrayList<BlockHeader>();
+        ExecutorService validators = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), daemon("peer-validator"));
+        Deque<Future<List<BlockHeader>>> checking = new ArrayDeque<Future<List<BlockHeader>>>();
+        try(Socket socket = connect(peer))
+        {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out.writeByte(GET_HEADERS);
+            out.writeInt(from);
+            out.flush();
+            BlockHeader last = null;
+            while(true)
+            {
+                int count = in.readInt();
+                if(count <= 0)
+                {
+                    break;
+                }
+                final List<BlockHeader> chunk = new ArrayList<BlockHeader>(count);
+                for(int i = 0; i < count; i++)
+                {
+                    chunk.add(BlockHeader.readFrom(in));
+                }
+                //the first header has to sit on our tip, later chunks on the chunk before them
+                final BlockHeader parent = last;
+                final Digest parentHash = last == null ? tipHash : last.hash;
+                last = chunk.get(count - 1);
+                checking.add(validators.submit(new Callable<List<BlockHeader>>() {
+                    public List<BlockHeader> call()
+                    {
+                        BlockHeader previous = parent;
+                        for(BlockHeader header : chunk)
+                        {
+                            if(previous == null && (header.index != from || (parentHash == null ? header.previousHash != null : !parentHash.equals(header.previousHash))))
+                            {
+                                return null;
+                            }
+                            if(!header.isValid(previous))
+                            {
+                                return null;
+                            }
+                            previous = header;
+                        }
+                        return chunk;
+                    }
+                }));
+                //publish whatever has been checked so far without waiting for the rest
+                if(!publishHeaders(checking, headers, false))
+                {
+                    return headers;
+                }
+            }
+            publishHeaders(checking, headers, true);
+            return headers;
+        }
+        finally
+        {
+            validators.shutdownNow();
+        }
+    }
+    /**
+     * This method hands checked header chunks to the chain in arrival order
+     * @param checking chunks being checked, oldest first
+     * @param headers receives the published headers
+     * @param wait whether to wait for every chunk or stop at the first one still being checked
+     * return false once a chunk failed its checks
+     */
+    private boolean publishHeaders(Deque<Future<List<BlockHeader>>> checking, List<BlockHeader> headers, boolean wait) throws Exception
+    {
+        while(!checking.isEmpty() && (wait || checking.peek().isDone()))
+        {
+            List<BlockHeader> chunk = checking.poll().get();
+            if(chunk == null)
+            {
+                checking.clear();
+                return false;
+            }
+            synchronized(bc)
+            {
+                bc.addHeaders(chunk);
+            }
+            headers.addAll(chunk);
+        }
+        return true;
+    }
+    /**
+     * This method fetches the bodies for downloaded headers over several connections. Each range is checked
+     * against its headers by the thread that fetched it, the ranges are appended to the chain in order
+     * @param peer the peer to fetch from
+     * @param from index of the first header
+     * @param headers the checked headers
+     * return number of blocks appended
+     */
+    private int fetchBodies(final InetSocketAddress peer, final int from, final List<BlockHeader> headers) throws Exception
+    {
+        ExecutorService fetchers = Executors.newFixedThreadPool(BODY_STREAMS, daemon("peer-bodies"));
+        //a few ranges ahead of the one being appended are enough to keep every connection busy
+        Deque<Future<List<Block>>> window = new ArrayDeque<Future<List<Block>>>();
+        int end = from + headers.size();
+        int next = from;
+        int appended = 0;
+        try
+        {
+            while(next < end || !window.isEmpty())
+            {
+                while(next < end && window.size() < 2 * BODY_STREAMS)
+                {
+                    final int rangeFrom = next;
+                    final int rangeEnd = Math.min(next + MAX_RANGE, end);
+                    window.add(fetchers.submit(new Callable<List<Block>>() {
+                        public List<Block> call() throws Exception
+                        {
+                            List<Block> range = new ArrayList<Block>();
+                            fetch(peer, rangeFrom, rangeEnd - rangeFrom, range, new ArrayList<Digest>());
+                            if(range.size() != rangeEnd - rangeFrom)
+                            {
+                                return null;
+                            }
+                            for(Block block : range)
+                            {
+                                if(!headers.get(block.getIndex() - from).matches(block))
+                                {
+                                    return null;
+                                }
+                            }
+                            return range;
+                        }
+                    }));
+                    next = rangeEnd;
+                }
+                List<Block> range = window.poll().get();
+                if(range == null)
+                {
+                    //the peer changed branch or sent a bad body, polling picks up from here
+                    return appended;
+                }
+                synchronized(bc)
+                {
+                    for(Block block : range)
+                    {
+                        if(!bc.appendVerified(block, headers.get(block.getIndex() - from).hash))
+                        {
+                            return appended;
+                        }
+                        appended++;
+                    }
+                }
+            }
+            return appended;
+        }
+        finally
+        {
+            fetchers.shutdownNow();
+        }
+    }
+    /**
+     * This method keeps the throughput of the latest bootstrap or sync that appended blocks
+     */
+    private void recordThroughput(int blocks, long startNanos)
+    {
+        if(blocks > 0)
+        {
+            lastSyncBlocks = blocks;
+            lastSyncBlocksPerSecond = blocks * 1e9 / Math.max(System.nanoTime() - startNanos, 1);
+        }
+    }
+    /**
+     * This method asks a peer for its chain size and tip
+     */
+    private static Tip getTip(InetSocketAddress peer) throws IOException
+    {
+        try(Socket socket = connect(peer))
+        {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out.writeByte(GET_TIP);
+            out.flush();
+            Tip tip = new Tip();
+            tip.size = in.readInt();
+            tip.hash = Digest.read(in);
+            return tip;
+        }
+    }
+    /**
+     * This method fetches up to count blocks (at most MAX_RANGE) and their hashes from a peer
+     */
+    private static void fetch(InetSocketAddress peer, int from, int count, List<Block> range, List<Digest> hashes) throws IOException
+    {
+        try(Socket socket = connect(peer))
+        {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out.writeByte(GET_BLOCKS);
+            out.writeInt(from);
+            out.writeInt(count);
+            out.flush();
+            int sent = in.readInt();
+            for(int i = 0; i < sent; i++)
+            {
+                range.add(Block.readFrom(in));
+                hashes.add(Digest.read(in));
+            }
+        }
+    }
+    /**
+     * This method answers one request from another peer
+     */
+    private void serve(Socket socket)
+    {
+        try(Socket s = socket)
+        {
+            s.setSoTimeout(TIMEOUT_MILLIS);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            byte type = in.readByte();
+            if(type == GET_TIP)
+            {
+                synchronized(bc)
+                {
+                    out.writeInt(bc.getChainSize());
+                    Digest.write(out, bc.chainHash);
+                }
+            }
+            else if(type == GET_BLOCKS)
+            {
+                int from = in.readInt();
+                int count = in.readInt();
+                ByteArrayOutputStream range = new ByteArrayOutputStream();
+                int sent;
+                //copy the range out under the lock, send it after releasing it
+                synchronized(bc)
+                {
+                    int end = Math.min(bc.getChainSize(), from + Math.min(count, MAX_RANGE));
+                    sent = Math.max(end - from, 0);
+                    DataOutputStream rangeOut = new DataOutputStream(range);
+                    for(int i = from; i < end; i++)
+                    {
+                        bc.blocks.get(i).writeTo(rangeOut);
+                        Digest.write(rangeOut, bc.getBlockHash(i));
+                    }
+                }
+                out.writeInt(sent);
+                range.writeTo(out);
+            }
+            else if(type == GET_HEADERS)
+            {
+                //stream the headers chunk by chunk, taking the lock for one chunk at a time
+                int from = in.readInt();
+                while(true)
+                {
+                    ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+                    int sent;
+                    synchronized(bc)
+                    {
+                        int end = Math.min(bc.getChainSize(), from + HEADER_CHUNK);
+                        sent = Math.max(end - from, 0);
+                        DataOutputStream chunkOut = new DataOutputStream(chunk);
+                        for(int i = from; i < end; i++)
+                        {
+                            BlockHeader.of(bc.blocks.get(i), bc.getBlockHash(i)).writeTo(chunkOut);
+                        }
+                    }
+                    out.writeInt(sent);
+                    if(sent == 0)
+                    {
+                        break;
+                    }
+                    chunk.writeTo(out);
+                    //let the other side check this chunk while we build the next one
+                    out.flush();
+                    from += sent;
+                }
+            }
+            else if(type == ANNOUNCE)
+            {
+                final InetSocketAddress sender = new InetSocketAddress(s.getInetAddress(), in.readInt());
+                Block block = Block.readFrom(in);
+                Digest hash = Digest.read(in);
+                byte reply = receive(block, hash);
+                if(reply == BEHIND)
+                {
+                    //we are missing blocks below the announced one, fetch them from the sender
+                    workers.submit(new Runnable() {
+                        public void run()
+                        {
+                            try
+                            {
+                                syncFrom(sender);
+                            }
+                            catch(Exception e)
+                            {
+                                //the timer retries later
+                            }
+                        }
+                    });
+                }
+                out.writeByte(reply);
+            }
+            out.flush();
+        }
+        catch(Exception e)
+        {
+            System.out.println("Peer request failed: " + e.getMessage());
+        }
+    }
+    /**
+     * This method handles a block announced by another peer
+     * return ACCEPTED if it is now on our chain, KNOWN if we already had it or keep it on a side branch,
+     * BEHIND if we don't know its parent yet, or REJECTED if it is invalid
+     */
+    private byte receive(Block block, Digest hash) throws Exception
+    {
+        synchronized(bc)
+        {
+            BlockChain.Accept result = bc.acceptBlock(block, hash);
+            if(result == BlockChain.Accept.REORGANIZED)
+            {
+                System.out.println("Reorganized " + bc.lastReorgDepth + " blocks in " + bc.lastReorgNanos / 1000 + " us");
+            }
+            switch(result)
+            {
+                case APPENDED:
+                case REORGANIZED:
+                    return ACCEPTED;
+                case ORPHAN:
+                    return BEHIND;
+                case INVALID:
+                    return REJECTED;
+                default:
+                    return KNOWN;
+            }
+        }
+    }
+    /**
+     * This method sends an encoded block to every peer
+     * @param announcement block and hash in the compact binary encoding
+     */
+    private void announce(final byte[] announcement)
+    {
+        for(final InetSocketAddress peer : peers)
+        {
+            workers.submit(new Runnable() {
+                public void run()
+                {
+                    try(Socket socket = connect(peer))
+                    {
+                        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                        out.writeByte(ANNOUNCE);
+                        out.writeInt(port);
+                        out.write(announcement);
+                        out.flush();
+                        //wait for the peer to take the block before dropping the connection
+                        new DataInputStream(socket.getInputStream()).readByte();
+                    }
+                    catch(IOException e)
+                    {
+                        //unreachable peers catch up through their own polling
+                    }
+                }
+            });
+        }
+    }
+    /**
+     * This method opens a connection to a peer
+     */
+    private static Socket connect(InetSocketAddress peer) throws IOException
+    {
+        Socket socket = new Socket();
+        socket.connect(peer, TIMEOUT_MILLIS);
+        socket.setSoTimeout(TIMEOUT_MILLIS);
+        return socket;
+    }
+    /**
+     * This method encodes a block and its hash for the wire
+     */
+    private static byte[] encode(Block block, Digest hash) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        block.writeTo(out);
+        Digest.write(out, hash);
+        out.flush();
+        return bytes.toByteArray();
+    }
+    /**
+     * This class holds a peer's answer to GET_TIP
+     */
+    private static class Tip {
+        int size; //number of blocks on the peer's chain
+        Digest hash; //the peer's chainHash
+    }
+    /**
+     * This method builds a thread factory for daemon threads with the given name
+     */
+    private static ThreadFactory daemon(final String name)
+    {
+        return new ThreadFactory() {
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
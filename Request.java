@@ -0,0 +1,127 @@
+/**
+ * This class holds one client request.
+ * Every request has the same small schema, so the fields are kept as plain fields instead of a JSON tree:
+ * the server reads a request straight into one of these with RequestCodec and reuses it for the next one,
+ * and the client fills one in and sends toJson().
+ */
+import java.lang.Object;
+
+public class Request extends Object{
+    public String id; //last 20 bytes of the hash of the client's public key, as hex
+    public String keyComb; //public key as e;n
+    public String value; //operand the signature covers
+    public String signedVal; //RSA signature over id, keyComb, value, operation and chain
+    public String operation; //operation code
+    public String rsa; //public key to add, operation "1"
+    public int difficulty = -1; //difficulty asked for, operation "1", -1 when not sent
+    public int index = -1; //block to corrupt, operation "4", -1 when not sent
+    public String chain; //name of the chain the request is for, null for the server's default chain
+    /**
+     * This method empties the request so it can be read into again
+     */
+    public void clear()
+    {
+        id = null;
+        keyComb = null;
+        value = null;
+        signedVal = null;
+        operation = null;
+        rsa = null;
+        difficulty = -1;
+        index = -1;
+        chain = null;
+    }
+    /**
+     * This method checks the request carries every field its operation needs
+     * return true when nothing is missing
+     */
+    public boolean isComplete()
+    {
+        if(id == null || keyComb == null || value == null || signedVal == null || operation == null)
+        {
+            return false;
+        }
+        if(operation.equals("1"))
+        {
+            return rsa != null && difficulty >= 0;
+        }
+        if(operation.equals("4"))
+        {
+            return index >= 0;
+        }
+        return true;
+    }
+    /**
+     * This method will get what the signature covers besides id, keyComb and value: the operation, followed by
+     * "@" and the chain's name when the request names a chain, so a request for the default chain is signed as before
+     * return the operation part of the signed message
+     */
+    public String signedOperation()
+    {
+        return chain == null ? operation : operation + "@" + chain;
+    }
+    /**
+     * This method writes the request as a single line JSON object, leaving out fields that aren't set
+     * return the JSON text
+     */
+    public String toJson()
+    {
+        StringBuilder json = new StringBuilder(256);
+        json.append('{');
+        appendString(json, "id", id);
+        appendString(json, "keyComb", keyComb);
+        appendString(json, "value", value);
+        appendString(json, "signedVal", signedVal);
+        appendString(json, "operation", operation);
+        appendString(json, "rsa", rsa);
+        if(difficulty >= 0)
+        {
+            appendName(json, "difficulty").append(difficulty);
+        }
+        if(index >= 0)
+        {
+            appendName(json, "index").append(index);
+        }
+        appendString(json, "chain", chain);
+        return json.append('}').toString();
+    }
+    /**
+     * This method appends a string member, escaping what JSON needs escaped
+     */
+    private static void appendString(StringBuilder json, String name, String text)
+    {
+        if(text == null)
+        {
+            return;
+        }
+        appendName(json, name).append('"');
+        for(int i = 0; i < text.length(); i++)
+        {
+            char c = text.charAt(i);
+            if(c == '"' || c == '\\')
+            {
+                json.append('\\').append(c);
+            }
+            else if(c < 0x20)
+            {
+                json.append(String.format("\\u%04x", (int) c));
+            }
+            else
+            {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+    /**
+     * This method appends a member name, after a comma unless it is the first member
+     */
+    private static StringBuilder appendName(StringBuilder json, String name)
+    {
+        if(json.length() > 1)
+        {
+            json.append(',');
+        }
+        return json.append('"').append(name).append("\":");
+    }
+}
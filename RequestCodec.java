@@ -0,0 +1,528 @@
+/**
+ * This class reads one request line from a client's stream straight into a Request.
+ *
+ * The request is tokenized as it is read: member names are matched byte for byte against the known
+ * fields, known string and number values are decoded into the Request, and members it doesn't know
+ * (including nested objects and arrays) are skipped. No JSON tree is built. The stream is read in blocks
+ * into the codec's own buffer and plain runs of a string are copied in bulk, so a request costs a few
+ * reads rather than one stream call per byte. Each connection carries one request, so whatever the client
+ * sent after the request line is dropped. A codec keeps its buffers, so one codec per thread is reused
+ * across requests. The line may not be longer than maxFrameBytes.
+ */
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+public class RequestCodec {
+    //member names of the request schema, in the order of the FIELD_ constants
+    private static final byte[][] NAMES = {
+        bytes("id"), bytes("keyComb"), bytes("value"), bytes("signedVal"), bytes("operation"),
+        bytes("rsa"), bytes("difficulty"), bytes("index"), bytes("chain")
+    };
+    private static final int FIELD_ID = 0;
+    private static final int FIELD_KEY_COMB = 1;
+    private static final int FIELD_VALUE = 2;
+    private static final int FIELD_SIGNED_VAL = 3;
+    private static final int FIELD_OPERATION = 4;
+    private static final int FIELD_RSA = 5;
+    private static final int FIELD_DIFFICULTY = 6;
+    private static final int FIELD_INDEX = 7;
+    private static final int FIELD_CHAIN = 8;
+    private static final int FIELD_UNKNOWN = -1;
+    //deepest nesting skipped inside an unknown member
+    private static final int MAX_DEPTH = 32;
+    //bytes read from the stream at once
+    private static final int BUFFER_BYTES = 8192;
+
+    private final int maxFrameBytes; //longest request line accepted
+    private byte[] scratch = new byte[256]; //UTF-8 bytes of the string being decoded
+    private final byte[] buffer = new byte[BUFFER_BYTES]; //block read from the stream
+    private int pos; //next byte of buffer to parse
+    private int limit; //end of the bytes in buffer
+    private int frameBase; //bytes of the current line that came before buffer
+    private InputStream in; //stream of the request being read
+    /**
+     * constructor for a codec reading lines of at most maxFrameBytes
+     * @param maxFrameBytes longest request line accepted
+     */
+    public RequestCodec(int maxFrameBytes)
+    {
+        this.maxFrameBytes = maxFrameBytes;
+    }
+    /**
+     * This method reads one request line
+     * @param in the client's stream
+     * @param request cleared and filled with the request's fields
+     * return true if the line was a JSON object, false if it was malformed or the stream ended
+     * throws FrameTooLargeException when the line is longer than maxFrameBytes
+     */
+    public boolean read(InputStream in, Request request) throws IOException
+    {
+        this.in = in;
+        this.pos = 0;
+        this.limit = 0;
+        this.frameBase = 0;
+        request.clear();
+        try
+        {
+            if(!readObject(request))
+            {
+                return false;
+            }
+            //only whitespace may follow the object on its line
+            int c = next();
+            while(c == ' ' || c == '\t' || c == '\r')
+            {
+                c = next();
+            }
+            return c == '\n' || c < 0;
+        }
+        finally
+        {
+            this.in = null;
+        }
+    }
+    /**
+     * This method reads the top level object member by member
+     */
+    private boolean readObject(Request request) throws IOException
+    {
+        if(skipWhitespace() != '{')
+        {
+            return false;
+        }
+        next();
+        if(skipWhitespace() == '}')
+        {
+            next();
+            return true;
+        }
+        while(true)
+        {
+            if(skipWhitespace() != '"')
+            {
+                return false;
+            }
+            next();
+            int field = readName();
+            if(field == -2 || skipWhitespace() != ':')
+            {
+                return false;
+            }
+            next();
+            skipWhitespace();
+            if(!readMember(field, request))
+            {
+                return false;
+            }
+            int c = skipWhitespace();
+            next();
+            if(c == '}')
+            {
+                return true;
+            }
+            if(c != ',')
+            {
+                return false;
+            }
+        }
+    }
+    /**
+     * This method decodes the value of one member into the request, or skips it
+     */
+    private boolean readMember(int field, Request request) throws IOException
+    {
+        switch(field)
+        {
+            case FIELD_DIFFICULTY:
+                request.difficulty = readInt();
+                return request.difficulty != Integer.MIN_VALUE;
+            case FIELD_INDEX:
+                request.index = readInt();
+                return request.index != Integer.MIN_VALUE;
+            case FIELD_UNKNOWN:
+                return skipValue(0);
+            default:
+                if(peek() != '"')
+                {
+                    return false;
+                }
+                next();
+                String text = readString();
+                if(text == null)
+                {
+                    return false;
+                }
+                switch(field)
+                {
+                    case FIELD_ID: request.id = text; break;
+                    case FIELD_KEY_COMB: request.keyComb = text; break;
+                    case FIELD_VALUE: request.value = text; break;
+                    case FIELD_SIGNED_VAL: request.signedVal = text; break;
+                    case FIELD_OPERATION: request.operation = text; break;
+                    case FIELD_CHAIN: request.chain = text; break;
+                    default: request.rsa = text; break;
+                }
+                return true;
+        }
+    }
+    /**
+     * This method reads a member name (the opening quote already consumed) and matches it against the schema
+     * return the field, FIELD_UNKNOWN for a name outside the schema, -2 if the name is malformed
+     */
+    private int readName() throws IOException
+    {
+        int length = readStringBytes();
+        if(length < 0)
+        {
+            return -2;
+        }
+        for(int f = 0; f < NAMES.length; f++)
+        {
+            byte[] name = NAMES[f];
+            if(name.length == length)
+            {
+                int i = 0;
+                while(i < length && scratch[i] == name[i])
+                {
+                    i++;
+                }
+                if(i == length)
+                {
+                    return f;
+                }
+            }
+        }
+        return FIELD_UNKNOWN;
+    }
+    /**
+     * This method decodes a string value (the opening quote already consumed)
+     * return the string, or null if it is malformed
+     */
+    private String readString() throws IOException
+    {
+        int length = readStringBytes();
+        return length < 0 ? null : new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+    /**
+     * This method reads a string's contents as UTF-8 into scratch, resolving escapes, up to the closing quote
+     * return number of bytes in scratch, or -1 if the string is malformed
+     */
+    private int readStringBytes() throws IOException
+    {
+        int length = 0;
+        while(true)
+        {
+            //copy the run of bytes that need no decoding straight out of the buffer
+            int run = pos;
+            while(run < limit && buffer[run] != '"' && buffer[run] != '\\' && buffer[run] != '\n')
+            {
+                run++;
+            }
+            if(run > pos)
+            {
+                length = put(length, buffer, pos, run - pos);
+                pos = run;
+            }
+            int c = next();
+            if(c < 0 || c == '\n')
+            {
+                return -1;
+            }
+            if(c == '"')
+            {
+                return length;
+            }
+            if(c != '\\')
+            {
+                length = put(length, c);
+                continue;
+            }
+            c = next();
+            switch(c)
+            {
+                case '"': case '\\': case '/': length = put(length, c); break;
+                case 'b': length = put(length, '\b'); break;
+                case 'f': length = put(length, '\f'); break;
+                case 'n': length = put(length, '\n'); break;
+                case 'r': length = put(length, '\r'); break;
+                case 't': length = put(length, '\t'); break;
+                case 'u':
+                    int code = readHex4();
+                    if(code < 0)
+                    {
+                        return -1;
+                    }
+                    //a surrogate pair arrives as two escapes
+                    if(Character.isHighSurrogate((char) code) && next() == '\\' && next() == 'u')
+                    {
+                        int low = readHex4();
+                        if(low < 0 || !Character.isLowSurrogate((char) low))
+                        {
+                            return -1;
+                        }
+                        code = Character.toCodePoint((char) code, (char) low);
+                    }
+                    else if(Character.isSurrogate((char) code))
+                    {
+                        return -1;
+                    }
+                    length = putCodePoint(length, code);
+                    break;
+                default:
+                    return -1;
+            }
+        }
+    }
+    /**
+     * This method reads four hex digits
+     * return their value, or -1 if one isn't a hex digit
+     */
+    private int readHex4() throws IOException
+    {
+        int code = 0;
+        for(int i = 0; i < 4; i++)
+        {
+            int digit = Character.digit(next(), 16);
+            if(digit < 0)
+            {
+                return -1;
+            }
+            code = (code << 4) | digit;
+        }
+        return code;
+    }
+    /**
+     * This method reads an integer value, a quoted one is accepted as well
+     * return the integer, or Integer.MIN_VALUE if it is malformed or out of range
+     */
+    private int readInt() throws IOException
+    {
+        boolean quoted = peek() == '"';
+        if(quoted)
+        {
+            next();
+        }
+        boolean negative = peek() == '-';
+        if(negative)
+        {
+            next();
+        }
+        long value = 0;
+        int digits = 0;
+        while(peek() >= '0' && peek() <= '9')
+        {
+            value = value * 10 + (next() - '0');
+            if(++digits > 10)
+            {
+                return Integer.MIN_VALUE;
+            }
+        }
+        if(digits == 0 || (quoted && next() != '"'))
+        {
+            return Integer.MIN_VALUE;
+        }
+        value = negative ? -value : value;
+        return value > Integer.MAX_VALUE || value <= Integer.MIN_VALUE ? Integer.MIN_VALUE : (int) value;
+    }
+    /**
+     * This method skips a value of a member outside the schema, including nested objects and arrays
+     */
+    private boolean skipValue(int depth) throws IOException
+    {
+        if(depth > MAX_DEPTH)
+        {
+            return false;
+        }
+        int c = peek();
+        if(c == '"')
+        {
+            next();
+            return readStringBytes() >= 0;
+        }
+        if(c == '{' || c == '[')
+        {
+            int close = c == '{' ? '}' : ']';
+            next();
+            if(skipWhitespace() == close)
+            {
+                next();
+                return true;
+            }
+            while(true)
+            {
+                if(c == '{')
+                {
+                    if(skipWhitespace() != '"')
+                    {
+                        return false;
+                    }
+                    next();
+                    if(readStringBytes() < 0 || skipWhitespace() != ':')
+                    {
+                        return false;
+                    }
+                    next();
+                    skipWhitespace();
+                }
+                if(!skipValue(depth + 1))
+                {
+                    return false;
+                }
+                int separator = skipWhitespace();
+                next();
+                if(separator == close)
+                {
+                    return true;
+                }
+                if(separator != ',')
+                {
+                    return false;
+                }
+                skipWhitespace();
+            }
+        }
+        //numbers, true, false and null run until a delimiter
+        int length = 0;
+        while((c = peek()) >= 0 && c != ',' && c != '}' && c != ']' && c != ' ' && c != '\n' && c != '\r' && c != '\t')
+        {
+            next();
+            length++;
+        }
+        return length > 0;
+    }
+    /**
+     * This method skips spaces and tabs
+     * return the next byte, which is left unread
+     */
+    private int skipWhitespace() throws IOException
+    {
+        int c = peek();
+        while(c == ' ' || c == '\t' || c == '\r')
+        {
+            next();
+            c = peek();
+        }
+        return c;
+    }
+    /**
+     * This method looks at the next byte without consuming it
+     */
+    private int peek() throws IOException
+    {
+        if(pos == limit && !fill())
+        {
+            return -1;
+        }
+        return buffer[pos] & 0xff;
+    }
+    /**
+     * This method consumes the next byte
+     */
+    private int next() throws IOException
+    {
+        if(pos == limit && !fill())
+        {
+            return -1;
+        }
+        return buffer[pos++] & 0xff;
+    }
+    /**
+     * This method reads the next block of the line from the stream, never past maxFrameBytes
+     * return false if the stream ended
+     * throws FrameTooLargeException when the parser needs more than maxFrameBytes
+     */
+    private boolean fill() throws IOException
+    {
+        frameBase += limit;
+        pos = 0;
+        limit = 0;
+        int allowed = maxFrameBytes - frameBase;
+        if(allowed <= 0)
+        {
+            throw new FrameTooLargeException();
+        }
+        int n = in.read(buffer, 0, Math.min(buffer.length, allowed));
+        if(n <= 0)
+        {
+            return false;
+        }
+        limit = n;
+        return true;
+    }
+    /**
+     * This method appends bytes to scratch, growing it when full
+     * return the new length
+     */
+    private int put(int length, byte[] bytes, int offset, int count)
+    {
+        if(length + count > scratch.length)
+        {
+            byte[] grown = new byte[Math.max(scratch.length * 2, length + count)];
+            System.arraycopy(scratch, 0, grown, 0, length);
+            scratch = grown;
+        }
+        System.arraycopy(bytes, offset, scratch, length, count);
+        return length + count;
+    }
+    /**
+     * This method appends one byte to scratch, growing it when full
+     * return the new length
+     */
+    private int put(int length, int b)
+    {
+        if(length == scratch.length)
+        {
+            byte[] grown = new byte[scratch.length * 2];
+            System.arraycopy(scratch, 0, grown, 0, length);
+            scratch = grown;
+        }
+        scratch[length] = (byte) b;
+        return length + 1;
+    }
+    /**
+     * This method appends a code point from a \\u escape as UTF-8
+     * return the new length
+     */
+    private int putCodePoint(int length, int code)
+    {
+        if(code < 0x80)
+        {
+            return put(length, code);
+        }
+        if(code < 0x800)
+        {
+            length = put(length, 0xc0 | (code >> 6));
+            return put(length, 0x80 | (code & 0x3f));
+        }
+        if(code < 0x10000)
+        {
+            length = put(length, 0xe0 | (code >> 12));
+            length = put(length, 0x80 | ((code >> 6) & 0x3f));
+            return put(length, 0x80 | (code & 0x3f));
+        }
+        length = put(length, 0xf0 | (code >> 18));
+        length = put(length, 0x80 | ((code >> 12) & 0x3f));
+        length = put(length, 0x80 | ((code >> 6) & 0x3f));
+        return put(length, 0x80 | (code & 0x3f));
+    }
+    /**
+     * This method gets the UTF-8 bytes of a member name
+     */
+    private static byte[] bytes(String name)
+    {
+        return name.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * This class is thrown by read for a request line that is longer than maxFrameBytes
+     */
+    public static class FrameTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        FrameTooLargeException()
+        {
+            super("Request too large");
+        }
+    }
+}
@@ -11,15 +11,22 @@
  * The program illustrates separate concerns and "proxy design"
  */
 import com.google.gson.JsonObject;
-import org.json.JSONObject;
+import com.google.gson.JsonParser;
 import javax.xml.bind.DatatypeConverter;
 import java.math.BigInteger;
 import java.net.*;
 import java.io.*;
 import java.security.MessageDigest;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class SigningClientTCP {
+    //servers we talk to, -Dblockchain.servers=host:port,... spreads read operations across replicas
+    public static String[] servers = System.getProperty("blockchain.servers", "localhost:7777").split(",");
+    //round robin position for read operations
+    private static AtomicInteger nextServer = new AtomicInteger();
+    //-Dblockchain.chain names the chain to work on when the server hosts several, unset for its default chain
+    public static String chain = System.getProperty("blockchain.chain");
     /**
      * No command line arguments needed.
      */
@@ -39,6 +46,8 @@ public class SigningClientTCP {
                 System.out.println("3. View the blockchain.");
                 System.out.println("4. Corrupt the chain.");
                 System.out.println("5. Hide the curruption by recomputing hashes.");
+                System.out.println("7. Look up a block by its hash.");
+                System.out.println("8. Watch new blocks as they are added.");
                 System.out.println("6. Exit");
                 //get user input
                 operation = typed.readLine();
@@ -57,42 +66,48 @@ public class SigningClientTCP {
                     String keyComb = ned[1].toString() + ";" + ned[0].toString();
                     //Sign the message which include user ID, public keys(n, e), operand (user input value)
                     // operation user choose and n,e,d
-                    String signedVal = sign(id + keyComb + "value" + operation, ned);
+                    String signedVal = sign(id + keyComb + "value" + signedOperation(operation), ned);
                     //compose command will send to server with signed value
                     //https://stackoverflow.com/questions/4683856/creating-gson-object
                     //prepare things need to send to server in json format
-                    JsonObject jsonObj = new JsonObject(); // create a new JsonObject
-                    jsonObj.addProperty("id",id);
-                    jsonObj.addProperty("keyComb",keyComb);
-                    jsonObj.addProperty("value","value");
-                    jsonObj.addProperty("signedVal",signedVal);
-                    jsonObj.addProperty("operation",operation);
+                    Request jsonObj = new Request(); // create a new Request
+                    jsonObj.id = id;
+                    jsonObj.keyComb = keyComb;
+                    jsonObj.value = "value";
+                    jsonObj.signedVal = signedVal;
+                    jsonObj.operation = operation;
+                    jsonObj.chain = chain; //null for the server\'s default chain
                     // assign return value from server to result
                     String result = operation(jsonObj);
                     //Show the result to the client
-                    JSONObject jsonObject = new JSONObject(result); // create a new JSONObject
+                    JsonObject jsonObject = JsonParser.parseString(result).getAsJsonObject(); // parse the reply into a JsonObject
                     //Check server return result whether it contains error or not
                     if(jsonObject.has("error"))
                     {
-                        System.out.println(jsonObject.get("error")); // print error message
+                        System.out.println(text(jsonObject, "error")); // print error message
                     }
                     //No error, print out data get from server
                     else
                     {
                         //prompt chainsize, hashPerSecond, difficulty, nonce and chianHash
                         System.out.println("Blockchain status");
-                        System.out.println("Current size of chain: " + jsonObject.get("chainSize")); // print blockchain size
-                        System.out.println("Current hashes per second by this machine: " + jsonObject.get("hashPerSecond")); //print current hash speed
-                        System.out.println("Difficulty of most recent block: " + jsonObject.get("difficulty")); // print most recent block's difficulty
-                        System.out.println("Nonce for most recent block: " + jsonObject.get("nonce")); //print most recent block's nonce
-                        System.out.println("Chain hash: " + jsonObject.getString("chainHash")); //print chainHash value
+                        System.out.println("Current size of chain: " + text(jsonObject, "chainSize")); // print blockchain size
+                        System.out.println("Headers known: " + text(jsonObject, "headerHeight")); // print height reached by downloaded headers
+                        System.out.println("Current hashes per second by this machine: " + text(jsonObject, "hashPerSecond")); //print current hash speed
+                        System.out.println("Difficulty of most recent block: " + text(jsonObject, "difficulty")); // print most recent block's difficulty
+                        System.out.println("Nonce for most recent block: " + text(jsonObject, "nonce")); //print most recent block's nonce
+                        if(jsonObject.has("syncBlocksPerSecond"))
+                        {
+                            System.out.println("Latest sync throughput (blocks/s): " + text(jsonObject, "syncBlocksPerSecond")); //print replica sync speed
+                        }
+                        System.out.println("Chain hash: " + text(jsonObject, "chainHash")); //print chainHash value
                     }
                 }
                 //if user wants to perform add block
                 else if(operation.equals("1")) {
                     //prompt asking user to input difficulty
                     System.out.println("Add public key and decentralized identifier to the chain");
-                    System.out.println("Enter difficulty > 0 of this block");
+                    System.out.println("Enter difficulty > 0 of this block (a server that retargets picks its own)");
                     int diff = Integer.valueOf(typed.readLine()); // get difficulty user provided
                     //prompt asking user to input rsa public key
                     System.out.println("Enter RSA modulus (public key) in base 10");
@@ -105,35 +120,41 @@ public class SigningClientTCP {
                     String keyComb = ned[1].toString() + ";" + ned[0].toString();
                     //Sign the message which include user ID, public keys(n, e), operand (user input value)
                     // operation user choose and n,e,d
-                    String signedVal = sign(id + keyComb + rsa + operation, ned);
+                    String signedVal = sign(id + keyComb + rsa + signedOperation(operation), ned);
                     //compose command will send to server with signed value
                     //https://stackoverflow.com/questions/4683856/creating-gson-object
                     //prepare things need to send to server in json format
-                    JsonObject jsonObj = new JsonObject(); // create a new JsonObject
-                    jsonObj.addProperty("id",id);
-                    jsonObj.addProperty("keyComb",keyComb);
-                    jsonObj.addProperty("value",rsa);
-                    jsonObj.addProperty("signedVal",signedVal);
-                    jsonObj.addProperty("operation",operation);
-                    jsonObj.addProperty("rsa",rsa);
-                    jsonObj.addProperty("difficulty",diff);
+                    Request jsonObj = new Request(); // create a new Request
+                    jsonObj.id = id;
+                    jsonObj.keyComb = keyComb;
+                    jsonObj.value = rsa;
+                    jsonObj.signedVal = signedVal;
+                    jsonObj.operation = operation;
+                    jsonObj.chain = chain; //null for the server\'s default chain
+                    jsonObj.rsa = rsa;
+                    jsonObj.difficulty = diff;
 
                     // assign return value from server to result
                     String result = operation(jsonObj);
-                    JSONObject jsonObject = new JSONObject(result); // create a new JSONObject
+                    JsonObject jsonObject = JsonParser.parseString(result).getAsJsonObject(); // parse the reply into a JsonObject
                     //Check server return result whether it contains error or not
                     // if not print data send back from server
                     if(!jsonObject.has("error"))
                     {
                         //prompt computed DID, new data and total operation time
-                        System.out.println("This is the computed decentralized identifier(DID): " + jsonObject.getString("did"));
-                        System.out.println("Adding " + jsonObject.getString("data"));
-                        System.out.println("Total execution time to add this block was " + jsonObject.get("totalTime") + " milliseconds");
+                        System.out.println("This is the computed decentralized identifier(DID): " + text(jsonObject, "did"));
+                        System.out.println("Adding " + text(jsonObject, "data"));
+                        if(jsonObject.has("target"))
+                        {
+                            //the server retargeted the block
+                            System.out.println("Mined at difficulty " + text(jsonObject, "difficulty") + ", target " + text(jsonObject, "target"));
+                        }
+                        System.out.println("Total execution time to add this block was " + text(jsonObject, "totalTime") + " milliseconds");
                     }
                     //If server return result contains error
                     else
                     {
-                        System.out.println(jsonObject.get("error")); // print error message
+                        System.out.println(text(jsonObject, "error")); // print error message
                     }
                 }
                 //if user wants to perform verify operation
@@ -146,30 +167,31 @@ public class SigningClientTCP {
                     String keyComb = ned[1].toString() + ";" + ned[0].toString();
                     //Sign the message which include user ID, public keys(n, e), operand (user input value)
                     // operation user choose and n,e,d
-                    String signedVal = sign(id + keyComb + "value" + operation, ned);
+                    String signedVal = sign(id + keyComb + "value" + signedOperation(operation), ned);
                     //compose command will send to server with signed value
                     //https://stackoverflow.com/questions/4683856/creating-gson-object
                     //prepare things need to send to server in json format
-                    JsonObject jsonObj = new JsonObject(); // create a new JsonObject
-                    jsonObj.addProperty("id",id);
-                    jsonObj.addProperty("keyComb",keyComb);
-                    jsonObj.addProperty("value","value");
-                    jsonObj.addProperty("signedVal",signedVal);
-                    jsonObj.addProperty("operation",operation);
+                    Request jsonObj = new Request(); // create a new Request
+                    jsonObj.id = id;
+                    jsonObj.keyComb = keyComb;
+                    jsonObj.value = "value";
+                    jsonObj.signedVal = signedVal;
+                    jsonObj.operation = operation;
+                    jsonObj.chain = chain; //null for the server\'s default chain
                     // assign return value from server to result
                     String result = operation(jsonObj);
-                    JSONObject jsonObject = new JSONObject(result); // create a new JSONObject
+                    JsonObject jsonObject = JsonParser.parseString(result).getAsJsonObject(); // parse the reply into a JsonObject
                     //Check server return result whether it contains error or not
                     if(jsonObject.has("error"))
                     {
-                        System.out.println(jsonObject.get("error")); // print error message
+                        System.out.println(text(jsonObject, "error")); // print error message
                     }
                     //No error, print out data get from server
                     else
                     {
                         //prompt verification result and operation time
-                        System.out.println("Chain verification: " + jsonObject.getBoolean("result"));
-                        System.out.println("Total execution time required to verify the chain was " + jsonObject.get("totalTime") + " milliseconds");
+                        System.out.println("Chain verification: " + jsonObject.get("result").getAsBoolean());
+                        System.out.println("Total execution time required to verify the chain was " + text(jsonObject, "totalTime") + " milliseconds");
                     }
                 }
                 //if user wants to view the blockchain
@@ -181,30 +203,31 @@ public class SigningClientTCP {
                     String keyComb = ned[1].toString() + ";" + ned[0].toString();
                     //Sign the message which include user ID, public keys(n, e), operand (user input value)
                     // operation user choose and n,e,d
-                    String signedVal = sign(id + keyComb + "value" + operation, ned);
+                    String signedVal = sign(id + keyComb + "value" + signedOperation(operation), ned);
                     //compose command will send to server with signed value
                     //https://stackoverflow.com/questions/4683856/creating-gson-object
                     //prepare things need to send to server in json format
-                    JsonObject jsonObj = new JsonObject(); // create a new JsonObject
-                    jsonObj.addProperty("id",id);
-                    jsonObj.addProperty("keyComb",keyComb);
-                    jsonObj.addProperty("value","value");
-                    jsonObj.addProperty("signedVal",signedVal);
-                    jsonObj.addProperty("operation",operation);
+                    Request jsonObj = new Request(); // create a new Request
+                    jsonObj.id = id;
+                    jsonObj.keyComb = keyComb;
+                    jsonObj.value = "value";
+                    jsonObj.signedVal = signedVal;
+                    jsonObj.operation = operation;
+                    jsonObj.chain = chain; //null for the server\'s default chain
                     // assign return value from server to result
                     String result = operation(jsonObj);
-                    JSONObject jsonObject = new JSONObject(result); // create a new JSONObject
+                    JsonObject jsonObject = JsonParser.parseString(result).getAsJsonObject(); // parse the reply into a JsonObject
                     //Check server return result whether it contains error or not
                     // if not print data send back from server
                     if(!jsonObject.has("error"))
                     {
                         //prompt entire chain as String
-                        System.out.println(jsonObject.getString("blockchain"));
+                        System.out.println(text(jsonObject, "blockchain"));
                     }
                     //If server return result contains error
                     else
                     {
-                        System.out.println(jsonObject.get("error")); // print error message
+                        System.out.println(text(jsonObject, "error")); // print error message
                     }
                 }
                 //if user wants to corrupt the chain
@@ -225,31 +248,32 @@ public class SigningClientTCP {
                     String keyComb = ned[1].toString() + ";" + ned[0].toString();
                     //Sign the message which include user ID, public keys(n, e), operand (user input value)
                     // operation user choose and n,e,d
-                    String signedVal = sign(id + keyComb + newData + operation, ned);
+                    String signedVal = sign(id + keyComb + newData + signedOperation(operation), ned);
                     //compose command will send to server with signed value
                     //https://stackoverflow.com/questions/4683856/creating-gson-object
                     //prepare things need to send to server in json format
-                    JsonObject jsonObj = new JsonObject(); // create a new JsonObject
-                    jsonObj.addProperty("id",id);
-                    jsonObj.addProperty("keyComb",keyComb);
-                    jsonObj.addProperty("value",newData);
-                    jsonObj.addProperty("signedVal",signedVal);
-                    jsonObj.addProperty("operation",operation);
-                    jsonObj.addProperty("index",index);
+                    Request jsonObj = new Request(); // create a new Request
+                    jsonObj.id = id;
+                    jsonObj.keyComb = keyComb;
+                    jsonObj.value = newData;
+                    jsonObj.signedVal = signedVal;
+                    jsonObj.operation = operation;
+                    jsonObj.chain = chain; //null for the server\'s default chain
+                    jsonObj.index = index;
                     // assign return value from server to result
                     String result = operation(jsonObj);
-                    JSONObject jsonObject = new JSONObject(result); // create a new JSONObject
+                    JsonObject jsonObject = JsonParser.parseString(result).getAsJsonObject(); // parse the reply into a JsonObject
                     //Check server return result whether it contains error or not
                     // if not print data send back from server
                     if(!jsonObject.has("error"))
                     {
                         //prompt new data returned from server
-                        System.out.println("Block "+ index + "now holds " + jsonObject.getString("newData"));
+                        System.out.println("Block "+ index + "now holds " + text(jsonObject, "newData"));
                     }
                     //If server return result contains error
                     else
                     {
-                        System.out.println(jsonObject.get("error")); // print error message
+                        System.out.println(text(jsonObject, "error")); // print error message
                     }
                 }
                 //if user wants to repair the chain
@@ -261,32 +285,105 @@ public class SigningClientTCP {
                     String keyComb = ned[1].toString() + ";" + ned[0].toString();
                     //Sign the message which include user ID, public keys(n, e), operand (user input value)
                     // operation user choose and n,e,d
-                    String signedVal = sign(id + keyComb + "value" + operation, ned);
+                    String signedVal = sign(id + keyComb + "value" + signedOperation(operation), ned);
                     //compose command will send to server with signed value
                     //https://stackoverflow.com/questions/4683856/creating-gson-object
                     //prepare things need to send to server in json format
-                    JsonObject jsonObj = new JsonObject(); // create a new JsonObject
-                    jsonObj.addProperty("id",id);
-                    jsonObj.addProperty("keyComb",keyComb);
-                    jsonObj.addProperty("value","value");
-                    jsonObj.addProperty("signedVal",signedVal);
-                    jsonObj.addProperty("operation",operation);
+                    Request jsonObj = new Request(); // create a new Request
+                    jsonObj.id = id;
+                    jsonObj.keyComb = keyComb;
+                    jsonObj.value = "value";
+                    jsonObj.signedVal = signedVal;
+                    jsonObj.operation = operation;
+                    jsonObj.chain = chain; //null for the server\'s default chain
                     // assign return value from server to result
                     String result = operation(jsonObj);
-                    JSONObject jsonObject = new JSONObject(result); // create a new JSONObject
+                    JsonObject jsonObject = JsonParser.parseString(result).getAsJsonObject(); // parse the reply into a JsonObject
                     //Check server return result whether it contains error or not
                     // if not print data send back from server
                     if(!jsonObject.has("error"))
                     {
                         //prompt total time spend to fix the entire chain
-                        System.out.println("Total execution time required to repair the chain was " + jsonObject.get("totalTime") + " milliseconds");
+                        System.out.println("Total execution time required to repair the chain was " + text(jsonObject, "totalTime") + " milliseconds");
                     }
                     //If server return result contains error
                     else
                     {
-                        System.out.println(jsonObject.get("error")); // print error message
+                        System.out.println(text(jsonObject, "error")); // print error message
                     }
                 }
+                //if user wants to look up a block by hash
+                else if(operation.equals("7")) {
+                    //prompt asking user which hash they want to resolve
+                    System.out.println("Look up a block by hash");
+                    System.out.println("Enter the block hash");
+                    String hash = typed.readLine(); // get hash provided by user
+
+                    //Convert last 20 byte of client's public key into string
+                    String id = DatatypeConverter.printHexBinary(last20(ned)).toLowerCase();
+                    //Prepare public keys need for decryption, separate e and n with ;
+                    String keyComb = ned[1].toString() + ";" + ned[0].toString();
+                    //Sign the message which include user ID, public keys(n, e), operand (user input value)
+                    // operation user choose and n,e,d
+                    String signedVal = sign(id + keyComb + hash + signedOperation(operation), ned);
+                    //prepare things need to send to server in json format
+                    Request jsonObj = new Request(); // create a new Request
+                    jsonObj.id = id;
+                    jsonObj.keyComb = keyComb;
+                    jsonObj.value = hash;
+                    jsonObj.signedVal = signedVal;
+                    jsonObj.operation = operation;
+                    jsonObj.chain = chain; //null for the server\'s default chain
+                    // assign return value from server to result
+                    String result = operation(jsonObj);
+                    JsonObject jsonObject = JsonParser.parseString(result).getAsJsonObject(); // parse the reply into a JsonObject
+                    //Check server return result whether it contains error or not
+                    // if not print data send back from server
+                    if(!jsonObject.has("error"))
+                    {
+                        //prompt the block and the hash pointer to its parent
+                        if(jsonObject.has("header"))
+                        {
+                            //the server only has the block's header so far
+                            System.out.println(text(jsonObject, "header") + " (body still downloading)");
+                        }
+                        else
+                        {
+                            System.out.println(text(jsonObject, "block"));
+                        }
+                        System.out.println("Parent hash: " + text(jsonObject, "previousHash"));
+                    }
+                    //If server return result contains error
+                    else
+                    {
+                        System.out.println(text(jsonObject, "error")); // print error message
+                    }
+                }
+                //if user wants to watch new blocks
+                else if(operation.equals("8")) {
+                    //prompt asking user whether to receive whole blocks
+                    System.out.println("Watch new blocks until the connection closes");
+                    System.out.println("Show whole blocks? (y/n)");
+                    String value = typed.readLine().trim().equalsIgnoreCase("y") ? "blocks" : "headers"; // get choice provided by user
+
+                    //Convert last 20 byte of client's public key into string
+                    String id = DatatypeConverter.printHexBinary(last20(ned)).toLowerCase();
+                    //Prepare public keys need for decryption, separate e and n with ;
+                    String keyComb = ned[1].toString() + ";" + ned[0].toString();
+                    //Sign the message which include user ID, public keys(n, e), operand (user input value)
+                    // operation user choose and n,e,d
+                    String signedVal = sign(id + keyComb + value + signedOperation(operation), ned);
+                    //prepare things need to send to server in json format
+                    Request jsonObj = new Request(); // create a new Request
+                    jsonObj.id = id;
+                    jsonObj.keyComb = keyComb;
+                    jsonObj.value = value;
+                    jsonObj.signedVal = signedVal;
+                    jsonObj.operation = operation;
+                    jsonObj.chain = chain; //null for the server\'s default chain
+                    //print every event the server pushes until it closes the connection
+                    subscribe(jsonObj);
+                }
 
             }
             // handle IOException
@@ -299,10 +396,10 @@ public class SigningClientTCP {
     }
 
     /**
-     * @param jsonObject, a map which contains all user input
+     * @param request, the request holding all user input
      *  return the result received from server
      */
-    public static String operation(JsonObject jsonObject) throws IOException {
+    public static String operation(Request request) throws IOException {
         // define a TCP style socket
         Socket clientSocket = null;
         // Set up "in" to read data send back from server
@@ -311,15 +408,14 @@ public class SigningClientTCP {
         PrintWriter out;
         String fromServer;
         try {
-            int serverPort = 7777;
             // build the socket holding the destination address and port
-            clientSocket = new Socket("localhost", serverPort);
+            clientSocket = connect(request.operation);
             // build inputStream
             in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
             //build outputStreamWriter
             out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(clientSocket.getOutputStream())));
             //send user command to server
-            out.println(jsonObject.toString());
+            out.println(request.toJson());
             out.flush();
             // read a line of data send back from server
             fromServer = in.readLine();
@@ -337,6 +433,72 @@ public class SigningClientTCP {
         return fromServer;
     }
 
+    /**
+     * @param request, a signed subscribe request
+     * prints the server's reply and then every event it pushes, until the server closes the connection
+     */
+    public static void subscribe(Request request) throws IOException {
+        // the socket stays open for as long as the server sends events
+        try (Socket clientSocket = connect(request.operation)) {
+            // build inputStream
+            BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+            //build outputStreamWriter
+            PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(clientSocket.getOutputStream())));
+            //send user command to server
+            out.println(request.toJson());
+            out.flush();
+            JsonObject reply = JsonParser.parseString(in.readLine()).getAsJsonObject(); // parse the reply into a JsonObject
+            if(reply.has("error"))
+            {
+                System.out.println(text(reply, "error")); // print error message
+                return;
+            }
+            System.out.println("Subscribed, waiting for new blocks");
+            // one line per event: block, corrupt, repair, rollback or dropped
+            String event;
+            while((event = in.readLine()) != null)
+            {
+                System.out.println(event);
+            }
+            System.out.println("Server closed the subscription");
+        }
+    }
+
+    /**
+     * @param operation, the operation about to be signed
+     *  return the operation as the signature covers it, with the chain's name when one is set
+     */
+    private static String signedOperation(String operation) {
+        return chain == null ? operation : operation + "@" + chain;
+    }
+
+    /**
+     * @param operation, the operation about to be sent
+     *  return a socket to the server that should get it
+     */
+    private static Socket connect(String operation) throws IOException {
+        // operations that change the chain go to the first server, reads rotate through all of them
+        boolean read = operation.equals("0") || operation.equals("2") || operation.equals("3") || operation.equals("7") || operation.equals("8");
+        String server = read ? servers[Math.floorMod(nextServer.getAndIncrement(), servers.length)] : servers[0];
+        String host = server.substring(0, server.lastIndexOf(':'));
+        int serverPort = Integer.parseInt(server.substring(server.lastIndexOf(':') + 1));
+        return new Socket(host, serverPort);
+    }
+
+    /**
+     * @param jsonObject, a reply from the server
+     * @param key, the field to show
+     *  return the field as text, null when the reply doesn't carry it
+     */
+    private static String text(JsonObject jsonObject, String key) {
+        if(!jsonObject.has(key) || jsonObject.get(key).isJsonNull())
+        {
+            return null;
+        }
+        //strings without their quotes, numbers and booleans as written
+        return jsonObject.get(key).isJsonPrimitive() ? jsonObject.get(key).getAsString() : jsonObject.get(key).toString();
+    }
+
     /**
      * Below code is separated from Professor's RSAExample
      *  return value for n
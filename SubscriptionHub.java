@@ -0,0 +1,463 @@
+/**
+ * This class pushes chain events to subscribed clients instead of having them poll view.
+ *
+ * A subscriber is a connection that sent operation "8". Once its request is admitted the server hands the
+ * connection over here and the hub writes one JSON line per event to it for as long as it stays open:
+ *   {"event":"block","hash":...,"header":{...}}            a block was appended, "block":{...} as well with bodies
+ *   {"event":"corrupt","index":...,"data":...}             a block's data was replaced
+ *   {"event":"repair","index":...,"nonce":...,"hash":...}   a block was mined again by repair
+ *   {"event":"rollback","height":...}                      blocks from height on left the chain for a heavier branch
+ *   {"event":"dropped","count":...}                         this many events were dropped because the subscriber fell behind
+ *
+ * The chain only renders each event once and puts it on a queue, so appending costs the same however many
+ * clients subscribe. A single thread with a Selector copies events to every subscriber's queue and writes
+ * whatever each socket takes without blocking. A subscriber's queue holds at most bufferEvents events; when a
+ * slow subscriber's queue is full the hub either drops events for it (and tells it how many later) or
+ * disconnects it, depending on the overflow policy.
+ */
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import com.google.gson.JsonObject;
+
+public class SubscriptionHub implements BlockChain.Listener {
+    //what happens to a subscriber whose queue is full
+    public enum Overflow { DROP, DISCONNECT }
+
+    private final int bufferEvents; //events queued per subscriber
+    private final Overflow overflow; //policy for a full queue
+    private final int maxSubscribers; //subscribers allowed at once
+    private final Selector selector;
+    //events rendered by the chain, waiting to be copied to the subscribers
+    private final ConcurrentLinkedQueue<Event> published = new ConcurrentLinkedQueue<Event>();
+    //connections handed over by the server, waiting to be registered with the selector
+    private final ConcurrentLinkedQueue<Subscriber> joining = new ConcurrentLinkedQueue<Subscriber>();
+    //subscribers registered with the selector, only touched by the hub thread
+    private final List<Subscriber> subscribers = new ArrayList<Subscriber>();
+    private final AtomicInteger subscriberCount = new AtomicInteger();
+    private final AtomicInteger bodySubscriberCount = new AtomicInteger(); //subscribers that want whole blocks
+    //events published, events dropped for slow subscribers and subscribers disconnected for falling behind
+    private final AtomicLong events = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong disconnected = new AtomicLong();
+    private volatile boolean closed; //set by close, the hub thread then lets every subscriber go
+    /**
+     * constructor for the hub, start has to be called before anyone subscribes
+     * @param bufferEvents events queued per subscriber before overflow applies
+     * @param overflow what to do with a subscriber whose queue is full
+     * @param maxSubscribers subscribers allowed at once
+     */
+    public SubscriptionHub(int bufferEvents, Overflow overflow, int maxSubscribers) throws IOException
+    {
+        this.bufferEvents = bufferEvents;
+        this.overflow = overflow;
+        this.maxSubscribers = maxSubscribers;
+        this.selector = Selector.open();
+    }
+    /**
+     * This method starts the thread writing to the subscribers
+     */
+    public void start()
+    {
+        Thread hub = new Thread(new Runnable() {
+            public void run()
+            {
+                while(!closed)
+                {
+                    try
+                    {
+                        selector.select();
+                        register();
+                        fanOut();
+                        writeReady();
+                    }
+                    catch(Exception e)
+                    {
+                        System.out.println("Subscription hub: " + e);
+                    }
+                }
+                shutDown();
+            }
+        }, "subscription-hub");
+        hub.setDaemon(true);
+        hub.start();
+    }
+    /**
+     * This method stops the hub, closing every subscriber's connection
+     */
+    public void close()
+    {
+        closed = true;
+        selector.wakeup();
+    }
+    /**
+     * This method will get the number of subscribers
+     */
+    public int getSubscribers()
+    {
+        return subscriberCount.get();
+    }
+    /**
+     * This method will tell whether another subscriber fits
+     * return true if the hub is full
+     */
+    public boolean isFull()
+    {
+        return subscriberCount.get() >= maxSubscribers;
+    }
+    /**
+     * This method takes over a connection whose subscribe request was admitted and answered
+     * @param channel the connection, the server doesn't use or close it afterwards
+     * @param bodies true to send whole blocks, false for headers only
+     * return false if the hub is full or closed, the connection is then closed
+     */
+    public boolean subscribe(SocketChannel channel, boolean bodies) throws IOException
+    {
+        if(closed)
+        {
+            channel.close();
+            return false;
+        }
+        if(subscriberCount.incrementAndGet() > maxSubscribers)
+        {
+            subscriberCount.decrementAndGet();
+            channel.close();
+            return false;
+        }
+        if(bodies)
+        {
+            bodySubscriberCount.incrementAndGet();
+        }
+        channel.configureBlocking(false);
+        joining.add(new Subscriber(channel, bodies));
+        selector.wakeup();
+        return true;
+    }
+    /**
+     * This method will get the hub's metrics
+     * return subscribers, events published, events dropped and subscribers disconnected
+     */
+    public JsonObject metrics()
+    {
+        JsonObject jsonObj = new JsonObject();
+        jsonObj.addProperty("subscribers", subscriberCount.get());
+        jsonObj.addProperty("events", events.get());
+        jsonObj.addProperty("dropped", dropped.get());
+        jsonObj.addProperty("disconnected", disconnected.get());
+        return jsonObj;
+    }
+    @Override
+    public void blockAppended(Block block, Digest hash) throws Exception
+    {
+        if(subscriberCount.get() == 0)
+        {
+            return;
+        }
+        //rendered now, a header store may reuse the block's row once the chain moves on
+        String header = "{\"event\":\"block\",\"hash\":\"" + hash + "\",\"header\":" + BlockHeader.of(block, hash);
+        //the body is most of the work, so it is only rendered when someone wants it
+        String full = bodySubscriberCount.get() > 0 ? header + ",\"block\":" + block : header;
+        publish(new Event(header + "}", full + "}"));
+    }
+    @Override
+    public void rolledBack(int height)
+    {
+        JsonObject jsonObj = new JsonObject();
+        jsonObj.addProperty("event", "rollback");
+        jsonObj.addProperty("height", height);
+        publish(jsonObj);
+    }
+    @Override
+    public void blockCorrupted(int index, String data)
+    {
+        JsonObject jsonObj = new JsonObject();
+        jsonObj.addProperty("event", "corrupt");
+        jsonObj.addProperty("index", index);
+        jsonObj.addProperty("data", data);
+        publish(jsonObj);
+    }
+    @Override
+    public void blockRepaired(int index, long nonce, Digest hash)
+    {
+        JsonObject jsonObj = new JsonObject();
+        jsonObj.addProperty("event", "repair");
+        jsonObj.addProperty("index", index);
+        jsonObj.addProperty("nonce", nonce);
+        jsonObj.addProperty("hash", hash.toString());
+        publish(jsonObj);
+    }
+    /**
+     * This method publishes an event that looks the same with or without bodies
+     */
+    private void publish(JsonObject event)
+    {
+        if(subscriberCount.get() > 0)
+        {
+            String line = event.toString();
+            publish(new Event(line, line));
+        }
+    }
+    /**
+     * This method queues an event for the hub thread, it is all the chain's thread does
+     */
+    private void publish(Event event)
+    {
+        events.incrementAndGet();
+        published.add(event);
+        selector.wakeup();
+    }
+    /**
+     * This method registers the connections handed over since the last round
+     */
+    private void register() throws IOException
+    {
+        Subscriber subscriber;
+        while((subscriber = joining.poll()) != null)
+        {
+            try
+            {
+                //reads only tell us when the client goes away
+                subscriber.key = subscriber.channel.register(selector, SelectionKey.OP_READ, subscriber);
+                subscribers.add(subscriber);
+            }
+            catch(IOException e)
+            {
+                close(subscriber);
+            }
+        }
+    }
+    /**
+     * This method copies every published event to every subscriber's queue and writes what the sockets take
+     */
+    private void fanOut() throws IOException
+    {
+        Event event;
+        boolean any = false;
+        while((event = published.poll()) != null)
+        {
+            any = true;
+            for(Subscriber subscriber : subscribers)
+            {
+                if(subscriber.open)
+                {
+                    offer(subscriber, event);
+                }
+            }
+        }
+        if(!any)
+        {
+            return;
+        }
+        for(Iterator<Subscriber> it = subscribers.iterator(); it.hasNext();)
+        {
+            Subscriber subscriber = it.next();
+            if(subscriber.open)
+            {
+                write(subscriber);
+            }
+            if(!subscriber.open)
+            {
+                it.remove();
+            }
+        }
+    }
+    /**
+     * This method puts an event on a subscriber's queue, applying the overflow policy when it is full
+     */
+    private void offer(Subscriber subscriber, Event event)
+    {
+        //a subscriber that fell behind first hears how much it missed
+        if(subscriber.missed > 0 && subscriber.queue.size() < bufferEvents)
+        {
+            subscriber.queue.add(ByteBuffer.wrap(("{\"event\":\"dropped\",\"count\":" + subscriber.missed + "}\n").getBytes(StandardCharsets.UTF_8)));
+            subscriber.missed = 0;
+        }
+        if(subscriber.queue.size() < bufferEvents)
+        {
+            subscriber.queue.add((subscriber.bodies ? event.full : event.header).duplicate());
+            return;
+        }
+        if(overflow == Overflow.DISCONNECT)
+        {
+            disconnected.incrementAndGet();
+            close(subscriber);
+        }
+        else
+        {
+            dropped.incrementAndGet();
+            subscriber.missed++;
+        }
+    }
+    /**
+     * This method handles the sockets the selector found ready: writable ones get more of their queue,
+     * readable ones are checked for the client having gone away
+     */
+    private void writeReady() throws IOException
+    {
+        for(Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext();)
+        {
+            SelectionKey key = it.next();
+            it.remove();
+            Subscriber subscriber = (Subscriber) key.attachment();
+            if(!key.isValid() || !subscriber.open)
+            {
+                continue;
+            }
+            if(key.isReadable() && !drain(subscriber))
+            {
+                close(subscriber);
+                continue;
+            }
+            if(key.isWritable())
+            {
+                write(subscriber);
+            }
+        }
+        //closed subscribers are removed here when no event came in this round
+        for(Iterator<Subscriber> it = subscribers.iterator(); it.hasNext();)
+        {
+            if(!it.next().open)
+            {
+                it.remove();
+            }
+        }
+    }
+    /**
+     * This method writes as much of a subscriber's queue as its socket takes without blocking
+     */
+    private void write(Subscriber subscriber)
+    {
+        try
+        {
+            while(!subscriber.queue.isEmpty())
+            {
+                ByteBuffer next = subscriber.queue.peek();
+                subscriber.channel.write(next);
+                if(next.hasRemaining())
+                {
+                    //the socket is full, carry on when it drains
+                    subscriber.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                subscriber.queue.poll();
+            }
+            subscriber.key.interestOps(SelectionKey.OP_READ);
+        }
+        catch(IOException e)
+        {
+            close(subscriber);
+        }
+    }
+    /**
+     * This method reads and ignores whatever a subscriber sends
+     * return false once the client has closed the connection
+     */
+    private boolean drain(Subscriber subscriber)
+    {
+        ByteBuffer ignored = ByteBuffer.allocate(256);
+        try
+        {
+            int n;
+            while((n = subscriber.channel.read(ignored)) > 0)
+            {
+                ignored.clear();
+            }
+            return n == 0;
+        }
+        catch(IOException e)
+        {
+            return false;
+        }
+    }
+    /**
+     * This method closes every connection and the selector once the hub has been closed
+     */
+    private void shutDown()
+    {
+        for(Subscriber subscriber : subscribers)
+        {
+            close(subscriber);
+        }
+        subscribers.clear();
+        Subscriber subscriber;
+        while((subscriber = joining.poll()) != null)
+        {
+            close(subscriber);
+        }
+        try
+        {
+            selector.close();
+        }
+        catch(IOException e)
+        {
+            // ignore exception on close
+        }
+    }
+    /**
+     * This method closes a subscriber's connection, it leaves the subscriber list on the next pass
+     */
+    private void close(Subscriber subscriber)
+    {
+        if(!subscriber.open)
+        {
+            return;
+        }
+        subscriber.open = false;
+        subscriber.queue.clear();
+        subscriberCount.decrementAndGet();
+        if(subscriber.bodies)
+        {
+            bodySubscriberCount.decrementAndGet();
+        }
+        try
+        {
+            subscriber.channel.close();
+        }
+        catch(IOException e)
+        {
+            // ignore exception on close
+        }
+    }
+
+    /**
+     * This class is one event rendered for both kinds of subscriber, shared read only between all of them
+     */
+    private static final class Event {
+        final ByteBuffer header; //line sent to subscribers without bodies
+        final ByteBuffer full; //line sent to subscribers with bodies
+
+        Event(String header, String full)
+        {
+            this.header = ByteBuffer.wrap((header + "\n").getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+            this.full = full.equals(header) ? this.header : ByteBuffer.wrap((full + "\n").getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+        }
+    }
+
+    /**
+     * This class is one subscribed connection and the events waiting to be written to it
+     */
+    private static final class Subscriber {
+        final SocketChannel channel;
+        final boolean bodies; //whole blocks rather than headers
+        final ArrayDeque<ByteBuffer> queue = new ArrayDeque<ByteBuffer>(); //events not written yet, the first may be part written
+        SelectionKey key; //registration with the hub's selector
+        long missed; //events dropped since the subscriber last heard about it
+        boolean open = true;
+
+        Subscriber(SocketChannel channel, boolean bodies)
+        {
+            this.channel = channel;
+            this.bodies = bodies;
+        }
+    }
+}
@@ -0,0 +1,322 @@
+/**
+ * This class hashes 4, 8 or 16 nonces at once with the Vector API, one nonce per lane.
+ *
+ * SHA-256 works through the message 64 bytes at a time, and everything before the nonce is the same for every
+ * nonce tried on a block. So the state after the prefix's whole 64 byte blocks (the midstate) is computed once
+ * per block, in plain Java, and only the last one or two blocks, which hold the rest of the prefix, the nonce,
+ * the suffix and the padding, are compressed for each nonce, all lanes in step.
+ * Lanes in one step need nonces with the same number of digits so their messages have the same length; the few
+ * steps that cross a power of ten are hashed one nonce at a time by the JDK backend instead.
+ *
+ * The lane count is the widest vector the machine has (4, 8 or 16 ints), -Dblockchain.vectorLanes picks another.
+ * It is fixed when the class loads because the JIT only turns Vector API calls into SIMD instructions
+ * when the species is a constant.
+ *
+ * Needs the jdk.incubator.vector module, HashBackends loads this class by name.
+ */
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.util.Arrays;
+
+public class VectorSha256Backend implements HashBackend {
+    //SHA-256 round constants
+    private static final int[] K = {
+        0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+        0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+        0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+        0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+        0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+        0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+        0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+        0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+    };
+    //SHA-256 initial state
+    private static final int[] INITIAL = {
+        0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19
+    };
+
+    //vector shape, its length is the number of lanes
+    private static final VectorSpecies<Integer> SPECIES = species(Integer.getInteger("blockchain.vectorLanes", 0));
+    private static final int LANES = SPECIES.length();
+
+    private final JdkHashBackend jdk = new JdkHashBackend(); //single messages and steps that cross a power of ten
+    /**
+     * This method will get the species for a lane count
+     * @param lanes 4, 8 or 16, 0 for the machine's widest
+     */
+    private static VectorSpecies<Integer> species(int lanes)
+    {
+        return lanes == 0 ? IntVector.SPECIES_PREFERRED : VectorSpecies.of(int.class, VectorShape.forBitSize(lanes * 32));
+    }
+    @Override
+    public String getName()
+    {
+        return "vector";
+    }
+    @Override
+    public int getLanes()
+    {
+        return LANES;
+    }
+    @Override
+    public Digest digest(byte[] message) throws Exception
+    {
+        //one message gains nothing from lanes
+        return jdk.digest(message);
+    }
+    @Override
+    public Search search(byte[] prefix, byte[] suffix, Digest target) throws Exception
+    {
+        return new VectorSearch(prefix, suffix, target);
+    }
+    /**
+     * This method compresses one 64 byte block into a state, in plain Java
+     * @param state the eight state words, updated
+     * @param block message bytes
+     * @param offset where the block starts
+     */
+    static void compress(int[] state, byte[] block, int offset)
+    {
+        int[] w = new int[64];
+        for(int i = 0; i < 16; i++)
+        {
+            w[i] = word(block, offset + i * 4);
+        }
+        for(int i = 16; i < 64; i++)
+        {
+            int s0 = Integer.rotateRight(w[i - 15], 7) ^ Integer.rotateRight(w[i - 15], 18) ^ (w[i - 15] >>> 3);
+            int s1 = Integer.rotateRight(w[i - 2], 17) ^ Integer.rotateRight(w[i - 2], 19) ^ (w[i - 2] >>> 10);
+            w[i] = w[i - 16] + s0 + w[i - 7] + s1;
+        }
+        int a = state[0], b = state[1], c = state[2], d = state[3], e = state[4], f = state[5], g = state[6], h = state[7];
+        for(int i = 0; i < 64; i++)
+        {
+            int t1 = h + (Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25)) + ((e & f) ^ (~e & g)) + K[i] + w[i];
+            int t2 = (Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22)) + ((a & b) ^ (a & c) ^ (b & c));
+            h = g;
+            g = f;
+            f = e;
+            e = d + t1;
+            d = c;
+            c = b;
+            b = a;
+            a = t1 + t2;
+        }
+        state[0] += a;
+        state[1] += b;
+        state[2] += c;
+        state[3] += d;
+        state[4] += e;
+        state[5] += f;
+        state[6] += g;
+        state[7] += h;
+    }
+    /**
+     * This method reads a big-endian word
+     */
+    private static int word(byte[] bytes, int offset)
+    {
+        return ((bytes[offset] & 0xff) << 24) | ((bytes[offset + 1] & 0xff) << 16) | ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
+    }
+
+    /**
+     * This class is one block's search: the midstate after the prefix's whole blocks, and the tail blocks
+     * laid out word by word with one int per lane, ready to load as vectors
+     */
+    private final class VectorSearch implements Search {
+        private final int[] midstate = INITIAL.clone(); //state after the prefix's whole blocks
+        private final byte[] rest; //prefix bytes after its whole blocks
+        private final byte[] suffix; //bytes hashed after the nonce
+        private final long prefixLength; //bytes of the whole prefix
+        private final long[] target = new long[4]; //target words
+        private final Search single; //nonces of mixed digit counts
+        private int digits; //digit count the tail is laid out for, 0 before the first step
+        private int blocks; //tail blocks for that digit count
+        private byte[][] tails; //tail bytes with padding, one copy per lane
+        private int[] words; //tail words, words[w * LANES + lane]
+        private final int[][] state = new int[8][]; //digest words per lane after a step
+        private final int[] schedule = new int[64 * LANES]; //message schedule, schedule[i * LANES + lane]
+
+        VectorSearch(byte[] prefix, byte[] suffix, Digest target) throws Exception
+        {
+            int whole = prefix.length / 64;
+            for(int i = 0; i < whole; i++)
+            {
+                compress(midstate, prefix, i * 64);
+            }
+            this.rest = Arrays.copyOfRange(prefix, whole * 64, prefix.length);
+            this.suffix = suffix;
+            this.prefixLength = prefix.length;
+            for(int i = 0; i < 4; i++)
+            {
+                this.target[i] = target.getWord(i);
+            }
+            this.single = jdk.search(prefix, suffix, target);
+            for(int i = 0; i < 8; i++)
+            {
+                state[i] = new int[LANES];
+            }
+        }
+        @Override
+        public long next(long firstNonce, int count) throws Exception
+        {
+            long end = firstNonce + count;
+            long nonce = firstNonce;
+            while(nonce < end)
+            {
+                int n = (int) Math.min(LANES, end - nonce);
+                long last = nonce + LANES - 1;
+                if(nonce < 0 || last < 0 || HashBackends.decimalLength(nonce) != HashBackends.decimalLength(last))
+                {
+                    long found = single.next(nonce, n);
+                    if(found >= 0)
+                    {
+                        return found;
+                    }
+                }
+                else
+                {
+                    hashLanes(nonce);
+                    for(int lane = 0; lane < n; lane++)
+                    {
+                        if(meets(lane))
+                        {
+                            return nonce + lane;
+                        }
+                    }
+                }
+                nonce += n;
+            }
+            return -1;
+        }
+        /**
+         * This method hashes nonce up to nonce + lanes - 1, which all have the same number of digits
+         */
+        private void hashLanes(long nonce)
+        {
+            int length = HashBackends.decimalLength(nonce);
+            if(length != digits)
+            {
+                layOut(length);
+            }
+            //only the words holding digits differ from one step to the next
+            int firstWord = rest.length / 4;
+            int lastWord = (rest.length + digits - 1) / 4;
+            for(int lane = 0; lane < LANES; lane++)
+            {
+                byte[] tail = tails[lane];
+                HashBackends.writeDecimal(nonce + lane, tail, rest.length);
+                for(int i = firstWord; i <= lastWord; i++)
+                {
+                    words[i * LANES + lane] = word(tail, i * 4);
+                }
+            }
+            IntVector a = IntVector.broadcast(SPECIES, midstate[0]);
+            IntVector b = IntVector.broadcast(SPECIES, midstate[1]);
+            IntVector c = IntVector.broadcast(SPECIES, midstate[2]);
+            IntVector d = IntVector.broadcast(SPECIES, midstate[3]);
+            IntVector e = IntVector.broadcast(SPECIES, midstate[4]);
+            IntVector f = IntVector.broadcast(SPECIES, midstate[5]);
+            IntVector g = IntVector.broadcast(SPECIES, midstate[6]);
+            IntVector h = IntVector.broadcast(SPECIES, midstate[7]);
+            for(int block = 0; block < blocks; block++)
+            {
+                System.arraycopy(words, block * 16 * LANES, schedule, 0, 16 * LANES);
+                for(int i = 16; i < 64; i++)
+                {
+                    IntVector w15 = IntVector.fromArray(SPECIES, schedule, (i - 15) * LANES);
+                    IntVector w2 = IntVector.fromArray(SPECIES, schedule, (i - 2) * LANES);
+                    IntVector s0 = w15.lanewise(VectorOperators.ROR, 7).lanewise(VectorOperators.XOR, w15.lanewise(VectorOperators.ROR, 18))
+                            .lanewise(VectorOperators.XOR, w15.lanewise(VectorOperators.LSHR, 3));
+                    IntVector s1 = w2.lanewise(VectorOperators.ROR, 17).lanewise(VectorOperators.XOR, w2.lanewise(VectorOperators.ROR, 19))
+                            .lanewise(VectorOperators.XOR, w2.lanewise(VectorOperators.LSHR, 10));
+                    IntVector.fromArray(SPECIES, schedule, (i - 16) * LANES).add(s0).add(IntVector.fromArray(SPECIES, schedule, (i - 7) * LANES)).add(s1)
+                            .intoArray(schedule, i * LANES);
+                }
+                IntVector a0 = a, b0 = b, c0 = c, d0 = d, e0 = e, f0 = f, g0 = g, h0 = h;
+                for(int i = 0; i < 64; i++)
+                {
+                    IntVector s1 = e.lanewise(VectorOperators.ROR, 6).lanewise(VectorOperators.XOR, e.lanewise(VectorOperators.ROR, 11))
+                            .lanewise(VectorOperators.XOR, e.lanewise(VectorOperators.ROR, 25));
+                    IntVector ch = e.and(f).lanewise(VectorOperators.XOR, e.not().and(g));
+                    IntVector t1 = h.add(s1).add(ch).add(K[i]).add(IntVector.fromArray(SPECIES, schedule, i * LANES));
+                    IntVector s0 = a.lanewise(VectorOperators.ROR, 2).lanewise(VectorOperators.XOR, a.lanewise(VectorOperators.ROR, 13))
+                            .lanewise(VectorOperators.XOR, a.lanewise(VectorOperators.ROR, 22));
+                    IntVector maj = a.and(b).lanewise(VectorOperators.XOR, a.and(c)).lanewise(VectorOperators.XOR, b.and(c));
+                    h = g;
+                    g = f;
+                    f = e;
+                    e = d.add(t1);
+                    d = c;
+                    c = b;
+                    b = a;
+                    a = t1.add(s0).add(maj);
+                }
+                a = a.add(a0);
+                b = b.add(b0);
+                c = c.add(c0);
+                d = d.add(d0);
+                e = e.add(e0);
+                f = f.add(f0);
+                g = g.add(g0);
+                h = h.add(h0);
+            }
+            a.intoArray(state[0], 0);
+            b.intoArray(state[1], 0);
+            c.intoArray(state[2], 0);
+            d.intoArray(state[3], 0);
+            e.intoArray(state[4], 0);
+            f.intoArray(state[5], 0);
+            g.intoArray(state[6], 0);
+            h.intoArray(state[7], 0);
+        }
+        /**
+         * This method lays the tail out for nonces of length digits: rest of the prefix, room for the digits,
+         * suffix, then the 0x80 byte, zeroes and the message length in bits
+         */
+        private void layOut(int length)
+        {
+            digits = length;
+            int tailLength = rest.length + digits + suffix.length;
+            blocks = (tailLength + 9 + 63) / 64;
+            byte[] template = new byte[blocks * 64];
+            System.arraycopy(rest, 0, template, 0, rest.length);
+            System.arraycopy(suffix, 0, template, rest.length + digits, suffix.length);
+            template[tailLength] = (byte) 0x80;
+            long bits = (prefixLength + digits + suffix.length) * 8;
+            for(int i = 0; i < 8; i++)
+            {
+                template[template.length - 1 - i] = (byte) (bits >>> (8 * i));
+            }
+            tails = new byte[LANES][];
+            words = new int[blocks * 16 * LANES];
+            for(int lane = 0; lane < LANES; lane++)
+            {
+                tails[lane] = template.clone();
+                for(int i = 0; i < blocks * 16; i++)
+                {
+                    words[i * LANES + lane] = word(template, i * 4);
+                }
+            }
+        }
+        /**
+         * This method compares one lane's digest with the target as unsigned 256 bit numbers
+         */
+        private boolean meets(int lane)
+        {
+            for(int i = 0; i < 4; i++)
+            {
+                long word = ((long) state[2 * i][lane] << 32) | (state[2 * i + 1][lane] & 0xffffffffL);
+                int c = Long.compareUnsigned(word, target[i]);
+                if(c != 0)
+                {
+                    return c < 0;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -8,41 +8,155 @@
  * and send the result back to client
  */
 import com.google.gson.JsonObject;
-import org.json.JSONObject;
 import javax.xml.bind.DatatypeConverter;
 import java.math.BigInteger;
 import java.net.*;
 import java.io.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Map;
-import java.util.Scanner;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class VerifyingServerTCP {
 
     public static Map<String, String> users = new TreeMap<>();
+    //how long a connection may take to send its request
+    private static final int REQUEST_TIMEOUT_MILLIS = 10000;
+    //retry hint sent with a BUSY rejection
+    private static final long EXPENSIVE_RETRY_MILLIS = 1000;
+    //how long one addBlock may mine before it gives up, set by -Dblockchain.miningTimeoutMillis, 0 for no limit
+    public static long miningTimeoutMillis = 30000;
+    //cheap checks and rate limits applied to every request, each chain caps its own expensive operations
+    public static AdmissionControl admission;
+    //request object per handler thread, read into again for every request
+    private static final ThreadLocal<Request> requests = new ThreadLocal<Request>() {
+        @Override
+        protected Request initialValue()
+        {
+            return new Request();
+        }
+    };
+    //replicates the chain with other servers, null when running alone
+    public static PeerNode peerNode;
+    //pushes new blocks of the default chain to subscribed connections, null when subscriptions are off
+    public static SubscriptionHub hub;
+    //the default chain and the named chains hosted next to it
+    public static ChainRegistry chains;
+    //hands proof of work to MiningWorker processes, null when the server mines itself
+    public static MiningPool miningPool;
+    //hashes per second of this machine, measured once in the background, 0 until then
+    private static volatile int hashPerSecond;
     /**
      * No command line arguments needed.
      */
     public static void main(String args[]) {
-        // define a TCP style socket
-        Socket clientSocket = null;
         try {
-            // the server port we are using
-            int serverPort = 7777;
-            // Create a new server socket
-            ServerSocket listenSocket = new ServerSocket(serverPort);
+            // the server port we are using, -Dblockchain.port lets several replicas run on one host
+            int serverPort = Integer.getInteger("blockchain.port", 7777);
+            // Create a new server socket, as a channel so subscribed connections can be handed to the hub
+            ServerSocketChannel listenSocket = ServerSocketChannel.open();
+            listenSocket.bind(new InetSocketAddress(serverPort));
+            //-Dblockchain.* limits for admission control, rates are requests per second per id
+            admission = new AdmissionControl(Integer.getInteger("blockchain.maxRequestBytes", 64 * 1024),
+                    Integer.getInteger("blockchain.maxBadSignatures", 5), Long.getLong("blockchain.denyMillis", 60000),
+                    new double[] {doubleProperty("blockchain.readRate", 20), doubleProperty("blockchain.writeRate", 1), doubleProperty("blockchain.expensiveRate", 0.2)},
+                    new double[] {doubleProperty("blockchain.readBurst", 40), doubleProperty("blockchain.writeBurst", 5), doubleProperty("blockchain.expensiveBurst", 2)});
+
+            //check and time the hash backends in the background, blocks are hashed with the JDK one meanwhile
+            HashBackends.startSelection();
+            //measuring the hash rate takes a second, so view reports a rate taken once instead of holding the chain that long
+            Thread hashRate = new Thread(new Runnable() {
+                public void run()
+                {
+                    try
+                    {
+                        hashPerSecond = new BlockChain().hashesPerSecond();
+                    }
+                    catch(Exception e)
+                    {
+                        System.out.println("Hash rate measurement failed: " + e.getMessage());
+                    }
+                }
+            }, "hash-rate");
+            hashRate.setDaemon(true);
+            hashRate.start();
 
-            //Create a BlockChain instance so we can access method inside
-            BlockChain bc = new BlockChain();
-            //Add genesis block
-            bc.addBlock(new Block(0, bc.getTime(), "Genesis", 2));
+            //-Dblockchain.minerPort has MiningWorker processes mine every chain's blocks, -Dblockchain.minerRangeNonces at a time,
+            //a worker silent for -Dblockchain.minerTimeoutMillis is dropped and its range goes to another
+            String minerPort = System.getProperty("blockchain.minerPort");
+            if(minerPort != null)
+            {
+                miningPool = new MiningPool(Integer.parseInt(minerPort), Integer.getInteger("blockchain.minerRangeNonces", 1 << 22),
+                        Integer.getInteger("blockchain.minerTimeoutMillis", 20000));
+                miningPool.start();
+            }
+            //Load the default chain kept on disk
+            File dataDir = new File(System.getProperty("blockchain.dir", "blockchain-data"));
+            BlockChain bc = openChain(dataDir);
+            //-Dblockchain.peerPort and -Dblockchain.peers=host:port,... replicate the chain with other servers
+            String peerPort = System.getProperty("blockchain.peerPort");
+            if(peerPort != null)
+            {
+                peerNode = new PeerNode(bc, Integer.parseInt(peerPort), PeerNode.parsePeers(System.getProperty("blockchain.peers", "")));
+                //a new replica fetches headers first and can be queried while the bodies download in the background
+                peerNode.bootstrap();
+                //catch up with the other replicas before serving, so we share their genesis block
+                peerNode.syncAll();
+                peerNode.start(Long.getLong("blockchain.syncMillis", 2000));
+            }
+            hub = createHub();
+            if(hub != null)
+            {
+                bc.addListener(hub);
+            }
+            //Add genesis block when there is no stored chain
+            addGenesis(bc);
+            //-Dblockchain.chains=name,... limits the named chains hosted next to this one. When it is unset any name is hosted,
+            //but only -Dblockchain.maxCreatedChains named chains may exist, counting those already on disk
+            String names = System.getProperty("blockchain.chains");
+            Set<String> allowed = names == null ? null : new HashSet<String>(Arrays.asList(names.split(",")));
+            //named chains get a directory each under chains, at most -Dblockchain.maxChains are loaded at once and
+            //one unused for -Dblockchain.chainIdleMillis is closed, each queues -Dblockchain.chainQueue requests
+            //and runs -Dblockchain.maxExpensive verify, export or repair operations at once
+            chains = new ChainRegistry(new ChainRegistry.Loader() {
+                public BlockChain load(File directory) throws Exception
+                {
+                    BlockChain chain = openChain(directory);
+                    addGenesis(chain);
+                    return chain;
+                }
+                public SubscriptionHub hub() throws IOException
+                {
+                    return createHub();
+                }
+            }, bc, hub, new File(dataDir, "chains"), allowed, Integer.getInteger("blockchain.maxCreatedChains", 16), Integer.getInteger("blockchain.maxChains", 64),
+                    Long.getLong("blockchain.chainIdleMillis", 600000), Integer.getInteger("blockchain.chainQueue", 16),
+                    Integer.getInteger("blockchain.maxExpensive", 1));
+            chains.start();
 
+            //-Dblockchain.serverThreads requests are handled at once, each connection carries one request
+            final ExecutorService handlers = Executors.newFixedThreadPool(Integer.getInteger("blockchain.serverThreads", 8));
+            miningTimeoutMillis = Long.getLong("blockchain.miningTimeoutMillis", miningTimeoutMillis);
+            //interrupting the chains' writer threads on shutdown stops any block still being mined
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                public void run()
+                {
+                    handlers.shutdownNow();
+                    chains.shutdownNow();
+                }
+            });
             /*
              * Forever,
-             *   read a line from the socket
-             *   print it to the console
-             *   echo it (i.e. write it) back to the client
+             *   accept a connection
+             *   hand it to a handler which reads the request and admits it,
+             *   then performs it or queues it for its chain's writer thread,
+             *   and the result is written back to the client
              */
             while (true) {
                 /*
@@ -52,97 +166,389 @@ public class VerifyingServerTCP {
                  * the socket ready for reading and writing.
                  */
                 // Connect to a client.
-                clientSocket = listenSocket.accept();
-
-                // Set up "in" to read from the client socket
-                Scanner in;
-                in = new Scanner(clientSocket.getInputStream());
-
-                // Set up "out" to write to the client socket
-                PrintWriter out;
-                out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(clientSocket.getOutputStream())));
-                // read data coming from client side
-                String command = in.nextLine();
-                //precheck public key hash to the ID and signature matches
-                if(!(checkID(command) && checkSign(command)))
-                {
-                    //if failed send "Error in request!"
-                    JsonObject jsonObj = new JsonObject();
-                    jsonObj.addProperty("error","Error in request!");
-                    out.println(jsonObj.toString());
-                    out.flush();
-                }
-                //otherwise proceed to perform user required operation
-                else
-                {
-                    JSONObject jsonObject = new JSONObject(command); // create a new JSONObject
-                    //accessing the operation user provided by "operation" key
-                    String operation = jsonObject.getString("operation");
-                    //this JsonObject will hold result after each operation
-                    JsonObject jsonObj = new JsonObject();
-                    //Check if the operation is view
-                    if(operation.equals("0"))
-                    {
-                        //call view method
-                        jsonObj = view(bc);
-                    }
-                    else if(operation.equals("1"))
-                    {
-                        //get parameters need for addBlock method which is provided by user
-                        String rsa = jsonObject.getString("rsa");
-                        int diff = jsonObject.getInt("difficulty");
-                        //call addBlock method
-                        jsonObj = addBlock(bc, rsa, diff);
-                    }
-                    //Check if the operation is subtraction
-                    else if(operation.equals("2"))
+                final SocketChannel clientSocket = listenSocket.accept();
+                handlers.submit(new Runnable() {
+                    public void run()
                     {
-                        //call isValid method
-                        jsonObj = isValid(bc);
+                        handle(clientSocket);
                     }
-                    //Check if the operation is view
-                    else if(operation.equals("3"))
+                });
+            }
+
+            // Handle IOExceptions
+        } catch (IOException e) {
+            System.out.println("IO Exception:" + e.getMessage());
+
+            // If quitting (typically by you sending quit signal) clean up sockets
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+    /**
+     * @param dataDir, directory the chain is kept in
+     * return the chain loaded with the server's settings, only blocks added after the latest checkpoint are verified again
+     */
+    public static BlockChain openChain(File dataDir) throws Exception {
+        //Create a BlockChain instance so we can access method inside
+        //-Dblockchain.offheap=true keeps the headers in off-heap columns for very large chains
+        BlockChain bc = Boolean.getBoolean("blockchain.offheap") ? new BlockChain(new HeaderStore()) : new BlockChain();
+        //blocks are mined by the workers when there is a pool, until then by the chain's writer thread
+        bc.setMiningPool(miningPool);
+        //-Dblockchain.hotBodies keeps only the data of that many recent blocks uncompressed, 0 keeps all of it
+        bc.setRetention(Integer.getInteger("blockchain.hotBodies", 0), Integer.getInteger("blockchain.coldCacheSegments", 8));
+        int checkpointInterval = Integer.getInteger("blockchain.checkpointInterval", 100);
+        long startLoad = System.currentTimeMillis();
+        //-Dblockchain.durability picks PER_APPEND, GROUPED or ASYNC log flushing
+        WriteAheadLog.Durability durability = WriteAheadLog.Durability.valueOf(System.getProperty("blockchain.durability", "GROUPED"));
+        long groupCommitMicros = Long.getLong("blockchain.groupCommitMicros", 0);
+        int verified = bc.open(new ChainStore(dataDir, checkpointInterval, durability, groupCommitMicros));
+        //-Dblockchain.targetBlockMillis has the server pick each block's target to hold that block time, 0 lets clients pick
+        //every replica of a chain has to use the same settings. Blocks below -Dblockchain.retargetHeight may come without
+        //a target, by default the blocks this chain already has without one
+        long targetBlockMillis = Long.getLong("blockchain.targetBlockMillis", 5000);
+        if(targetBlockMillis > 0)
+        {
+            bc.setRetarget(new DifficultyTarget(targetBlockMillis, Integer.getInteger("blockchain.retargetWindow", 16),
+                    Integer.getInteger("blockchain.retargetMaxFactor", 4), Integer.getInteger("blockchain.retargetHeight", bc.getLegacyHeight())));
+        }
+        System.out.println("Loaded " + bc.getChainSize() + " blocks from " + dataDir + ", verified " + verified + " in " + (System.currentTimeMillis() - startLoad) + " ms");
+        return bc;
+    }
+    /**
+     * @param bc, a loaded chain
+     * adds the genesis block when there is no stored chain
+     */
+    public static void addGenesis(BlockChain bc) throws Exception {
+        synchronized(bc)
+        {
+            if(bc.getHeaderHeight() == 0)
+            {
+                bc.addBlock(new Block(0, bc.getTime(), "Genesis", 2));
+            }
+        }
+    }
+    /**
+     * return a started hub for one chain's subscribers, null when subscriptions are off
+     */
+    public static SubscriptionHub createHub() throws IOException {
+        //-Dblockchain.maxSubscribers connections may subscribe to each chain at once, 0 turns subscriptions off
+        int maxSubscribers = Integer.getInteger("blockchain.maxSubscribers", 10000);
+        if(maxSubscribers <= 0)
+        {
+            return null;
+        }
+        //each subscriber gets -Dblockchain.subscriberBuffer events of slack, then -Dblockchain.subscriberOverflow applies
+        SubscriptionHub created = new SubscriptionHub(Integer.getInteger("blockchain.subscriberBuffer", 1024),
+                SubscriptionHub.Overflow.valueOf(System.getProperty("blockchain.subscriberOverflow", "DROP")), maxSubscribers);
+        created.start();
+        return created;
+    }
+    /**
+     * @param clientSocket, connection carrying one request, or a subscription that stays open
+     */
+    public static void handle(final SocketChannel clientSocket) {
+        //whether the connection was passed on to a chain's writer thread, which answers and closes it
+        boolean queued = false;
+        //whether the connection went to a hub, which closes it when the subscriber goes away
+        boolean subscribed = false;
+        Socket socket = clientSocket.socket();
+        //a blockchain.Request flight recorder event, only timed when a recording asks for it
+        final ChainEvents.RequestEvent event = new ChainEvents.RequestEvent();
+        event.start();
+        try {
+            //a client that stops sending can't hold a handler for long
+            socket.setSoTimeout(REQUEST_TIMEOUT_MILLIS);
+            // Set up "in" to read from the client socket
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            final Request request = requests.get();
+            JsonObject result = admit(in, socket.getInetAddress().getHostAddress(), request, event);
+            final ChainRegistry.Chain chain = result == null ? chains.acquire(request.chain) : null;
+            if(result == null && chain == null)
+            {
+                result = admission.reject(AdmissionControl.BUSY, "Too many chains in use, try again later", EXPENSIVE_RETRY_MILLIS);
+            }
+            else if(result == null)
+            {
+                String operation = request.operation;
+                try {
+                    //verify and export read a snapshot of the chain, so they run right here without the lock,
+                    //unless the chain still has to be loaded, which only its writer thread does
+                    if((operation.equals("2") || operation.equals("3")) && chain.isLoaded())
                     {
-                        //call toString method
-                        jsonObj = toString(bc);
+                        result = execute(chain, request, event);
                     }
-                    //Check if the operation is view
-                    else if(operation.equals("4"))
+                    else
                     {
-                        //get parameters need for corrupt method which is provided by user
-                        String newData = jsonObject.getString("value");
-                        int index = jsonObject.getInt("index");
-                        //call corrupt method
-                        jsonObj = corrupt(bc, newData, index);
+                        //the request now belongs to the writer thread, this handler reads the next one into a new one
+                        requests.set(new Request());
+                        queued = chain.submit(new Runnable() {
+                            public void run()
+                            {
+                                finish(chain, request, clientSocket, event);
+                            }
+                        });
+                        if(!queued)
+                        {
+                            result = admission.reject(AdmissionControl.BUSY, "Chain busy with other requests, try again later", EXPENSIVE_RETRY_MILLIS);
+                        }
                     }
-                    //Check if the operation is view
-                    else if(operation.equals("5"))
+                } finally {
+                    if(!queued)
                     {
-                        //call repair method
-                        jsonObj = repair(bc);
+                        chains.release(chain);
                     }
-                    //send result back to client
-                    out.println(jsonObj.toString());
-                    out.flush();
                 }
             }
-
-            // Handle IOExceptions
+            if(!queued)
+            {
+                subscribed = reply(clientSocket, null, result, event);
+            }
         } catch (IOException e) {
             System.out.println("IO Exception:" + e.getMessage());
-
-            // If quitting (typically by you sending quit signal) clean up sockets
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
-            try {
-                if (clientSocket != null) {
-                    clientSocket.close();
+            if(!queued && !subscribed)
+            {
+                close(clientSocket);
+            }
+        }
+    }
+    /**
+     * @param chain, the chain the request is for
+     * @param request, an admitted request that takes the chain's lock, or any admitted request for a chain not loaded yet
+     * @param clientSocket, the request's connection
+     * @param event, request event the time of each stage is added to
+     * runs the request on the chain's writer thread, then answers it and closes the connection unless it subscribed
+     * once the log records it wrote are on disk
+     */
+    private static void finish(final ChainRegistry.Chain chain, Request request, final SocketChannel clientSocket, final ChainEvents.RequestEvent event) {
+        JsonObject executed = null;
+        try {
+            executed = execute(chain, request, event);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        final JsonObject result = executed;
+        //the reply waits for the disk with the other operations the writer runs meanwhile, a failed one only closes
+        chain.hold(new ChainRegistry.Reply() {
+            public void send()
+            {
+                boolean subscribed = false;
+                try {
+                    if(result != null)
+                    {
+                        subscribed = reply(clientSocket, result.has("subscribed") ? chain.hub() : null, result, event);
+                    }
+                } catch (IOException e) {
+                    System.out.println("IO Exception:" + e.getMessage());
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    chains.release(chain);
+                    if(!subscribed)
+                    {
+                        close(clientSocket);
+                    }
+                }
+            }
+            public void fail(Exception e)
+            {
+                System.out.println("Log flush failed: " + e.getMessage());
+                chains.release(chain);
+                close(clientSocket);
+            }
+        });
+    }
+    /**
+     * @param clientSocket, the request's connection
+     * @param hub, hub the connection goes to when the result accepts a subscription, null otherwise
+     * @param result, the result to send
+     * @param event, request event, committed here
+     * return true if the connection went to the hub
+     */
+    private static boolean reply(SocketChannel clientSocket, SubscriptionHub hub, JsonObject result, ChainEvents.RequestEvent event) throws IOException {
+        if(event.shouldCommit())
+        {
+            event.outcome = result.has("code") ? result.get("code").getAsString() : "OK";
+            event.commit();
+        }
+        // Set up "out" to write to the client socket
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(clientSocket.socket().getOutputStream())));
+        //send result back to client
+        out.println(result.toString());
+        out.flush();
+        //an accepted subscribe keeps the connection, the hub writes every event after the reply to it
+        if(hub != null && result.has("subscribed"))
+        {
+            return hub.subscribe(clientSocket, result.get("bodies").getAsBoolean());
+        }
+        return false;
+    }
+    /**
+     * @param clientSocket, a connection that is done with
+     */
+    private static void close(SocketChannel clientSocket) {
+        try {
+            clientSocket.close();
+        } catch (IOException e) {
+            // ignore exception on close
+        }
+    }
+    /**
+     * @param in, the client's stream
+     * @param client, address the request came from
+     * @param request, filled with the request
+     * @param event, request event the time of each stage is added to
+     * return null once the request is admitted, or a structured error if it was not
+     */
+    private static JsonObject admit(InputStream in, String client, Request request, ChainEvents.RequestEvent event) throws Exception {
+        // read data coming from client side straight into the request, never more than the frame limit
+        JsonObject rejection = admission.readRequest(in, request);
+        event.parse = event.lap();
+        if(rejection != null)
+        {
+            return rejection;
+        }
+        event.operation = request.operation;
+        event.did = request.id;
+        event.chain = request.chain;
+        //cheap checks first: an id that isn't denied
+        String id = request.id;
+        //ids are public, so bad signatures only lock out the address that sent them
+        String sender = id + "@" + client;
+        rejection = admission.checkDenied(sender);
+        if(rejection != null)
+        {
+            return rejection;
+        }
+        //precheck public key hash to the ID and signature matches
+        boolean signed;
+        try {
+            signed = checkID(request) && checkSign(request);
+        } catch (RuntimeException e) {
+            //keys or signature that aren't numbers
+            signed = false;
+        }
+        event.verify = event.lap();
+        if(!signed)
+        {
+            //if failed send "Error in request!"
+            return admission.badSignature(sender);
+        }
+        //the chain is only looked at once the signature covering its name checks out
+        if(!chains.hosts(request.chain))
+        {
+            return admission.reject(AdmissionControl.UNKNOWN_CHAIN, "No chain named " + request.chain + " on this server", 0);
+        }
+        //then the id's rate for this kind of operation
+        return admission.checkRate(id, request.operation);
+    }
+    /**
+     * @param chain, the chain the request is for
+     * @param request, an admitted request
+     * @param event, request event the time of each stage is added to
+     * return the operation's result, or BUSY if the operation is expensive and none of the chain's slots is free
+     */
+    private static JsonObject execute(ChainRegistry.Chain chain, Request request, ChainEvents.RequestEvent event) throws Exception {
+        String operation = request.operation;
+        if(!chain.acquireSlot(operation))
+        {
+            return admission.reject(AdmissionControl.BUSY, "Chain busy with other expensive requests, try again later", EXPENSIVE_RETRY_MILLIS);
+        }
+        try {
+            admission.admitted();
+            //a named chain is loaded by its first request, on the chain's writer thread
+            BlockChain bc = chain.blockChain();
+            JsonObject result;
+            //verify and export read a snapshot of the chain, so they run without the lock and never hold up mining
+            if(operation.equals("2") || operation.equals("3"))
+            {
+                result = perform(chain, bc, request);
+            }
+            else
+            {
+                //peers append to the default chain from their own threads, so other operations take the chain's lock
+                synchronized(bc)
+                {
+                    result = perform(chain, bc, request);
                 }
-            } catch (IOException e) {
-                // ignore exception on close
             }
+            event.execute = event.lap();
+            return result;
+        } finally {
+            chain.releaseSlot(operation);
+        }
+    }
+    /**
+     * @param chain, the chain the request is for
+     * @param bc, current Blockchain
+     * @param request, the verified request
+     * return the jsonObj holding the operation's result
+     */
+    public static JsonObject perform(ChainRegistry.Chain chain, BlockChain bc, Request request) throws Exception {
+        //accessing the operation user provided
+        String operation = request.operation;
+        //this JsonObject will hold result after each operation
+        JsonObject jsonObj = new JsonObject();
+        //Check if the operation is view
+        if(operation.equals("0"))
+        {
+            //call view method
+            jsonObj = view(chain, bc);
         }
+        else if(operation.equals("1"))
+        {
+            //get parameters need for addBlock method which is provided by user
+            String rsa = request.rsa;
+            int diff = request.difficulty;
+            //call addBlock method
+            jsonObj = addBlock(bc, rsa, diff);
+        }
+        //Check if the operation is subtraction
+        else if(operation.equals("2"))
+        {
+            //call isValid method
+            jsonObj = isValid(bc);
+        }
+        //Check if the operation is view
+        else if(operation.equals("3"))
+        {
+            //call toString method
+            jsonObj = toString(bc);
+        }
+        //Check if the operation is view
+        else if(operation.equals("4"))
+        {
+            //get parameters need for corrupt method which is provided by user
+            String newData = request.value;
+            int index = request.index;
+            //call corrupt method
+            jsonObj = corrupt(bc, newData, index);
+        }
+        //Check if the operation is view
+        else if(operation.equals("5"))
+        {
+            //call repair method
+            jsonObj = repair(bc);
+        }
+        //Check if the operation is lookup
+        else if(operation.equals("7"))
+        {
+            //the hash user wants to resolve is the signed value
+            String hash = request.value;
+            //call lookup method
+            jsonObj = lookup(bc, hash);
+        }
+        //Check if the operation is subscribe
+        else if(operation.equals("8"))
+        {
+            //"blocks" asks for whole blocks, anything else for headers only
+            boolean bodies = "blocks".equals(request.value);
+            //call subscribe method
+            jsonObj = subscribe(chain.hub(), bodies);
+        }
+        return jsonObj;
     }
     /**
      * @param bc, current Blockchain
@@ -152,8 +558,12 @@ public class VerifyingServerTCP {
         JsonObject jsonObj = new JsonObject(); //create a JsonObject will hold return result
         //start the clock
         long startRepair = System.currentTimeMillis();
-        // call repairChain() to repair corrupted blocks if any
-        bc.repairChain();
+        // call repairChain() to repair corrupted blocks if any, it runs on the chain's writer thread like addBlock so it gets the same time limit
+        MiningJob job = new MiningJob(miningTimeoutMillis);
+        if(!bc.repairChain(job))
+        {
+            return stopped("Repair", job, startRepair);
+        }
         //stop the clock
         long finishRepairing = System.currentTimeMillis();
         // calculate the time
@@ -170,6 +580,12 @@ public class VerifyingServerTCP {
      */
     public static JsonObject addBlock(BlockChain bc, String rsa, int diff) throws Exception {
         JsonObject jsonObj = new JsonObject(); //create a JsonObject will hold return result
+        //a block mined now would land below blocks that are still being downloaded
+        if(bc.getHeaderHeight() > bc.getChainSize())
+        {
+            jsonObj.addProperty("error","Chain is still syncing, " + bc.getChainSize() + " of " + bc.getHeaderHeight() + " blocks");
+            return jsonObj;
+        }
         //Convert last 20 byte of client's public key into string
         String did = DatatypeConverter.printHexBinary(bc.generateDID(rsa)).toLowerCase();
         jsonObj.addProperty("did", did);
@@ -177,8 +593,19 @@ public class VerifyingServerTCP {
         jsonObj.addProperty("data", data);
 
         long start = System.currentTimeMillis(); // get current time
-        //add user specified block into chain
-        bc.addBlock(new Block(bc.getLatestBlock().getIndex() + 1, bc.getTime(), data, diff));
+        //add user specified block into chain, with retargeting on the chain replaces the requested difficulty
+        Block block = new Block(bc.getLatestBlock().getIndex() + 1, bc.getTime(), data, diff);
+        //mining holds the chain's lock, so it may not take longer than the timeout
+        MiningJob job = new MiningJob(miningTimeoutMillis);
+        if(!bc.addBlock(block, job))
+        {
+            return stopped("Mining at difficulty " + block.getDifficulty(), job, start);
+        }
+        jsonObj.addProperty("difficulty", block.getDifficulty());
+        if(block.getBits() != 0)
+        {
+            jsonObj.addProperty("target", Integer.toHexString(block.getBits()));
+        }
         //end clock
         long end = System.currentTimeMillis();
         //calculate the time
@@ -187,13 +614,27 @@ public class VerifyingServerTCP {
         jsonObj.addProperty("totalTime", totalAddTime);
         return jsonObj;
     }
+    /**
+     * @param what, the mining that stopped
+     * @param job, the stopped job
+     * @param start, when the request started
+     * return the error reply telling why the job stopped
+     */
+    private static JsonObject stopped(String what, MiningJob job, long start) {
+        JsonObject timeout = new JsonObject();
+        String reason = job.getStatus() == MiningJob.Status.TIMED_OUT ? "timed out after " + miningTimeoutMillis + " ms" : "was cancelled";
+        timeout.addProperty("error",what + " " + reason + ", " + job.getAttempts() + " hashes tried");
+        timeout.addProperty("code",job.getStatus().toString());
+        timeout.addProperty("totalTime",System.currentTimeMillis() - start);
+        return timeout;
+    }
     /**
      * @param bc, current Blockchain
      * return the jsonObj
      */
     public static JsonObject corrupt(BlockChain bc, String data, int index) throws Exception {
         JsonObject jsonObj = new JsonObject(); //create a JsonObject will hold return result
-        bc.blocks.get(index).setData(data); // modify corresponding block
+        bc.corruptBlock(index, data); // modify corresponding block
         //add new data that we get from corresponding block to JsonObject that we created
         jsonObj.addProperty("newData", bc.blocks.get(index).getData());
         return jsonObj;
@@ -204,23 +645,125 @@ public class VerifyingServerTCP {
      */
     public static JsonObject toString(BlockChain bc) throws Exception {
         JsonObject jsonObj = new JsonObject(); //create a JsonObject will hold return result
-        //add string value of entire chain to JsonObject that we created
-        jsonObj.addProperty("blockchain",bc.toString());
+        //add string value of entire chain, as of the latest snapshot, to JsonObject that we created
+        jsonObj.addProperty("blockchain",bc.snapshot().toString());
         return jsonObj;
     }
     /**
      * @param bc, current Blockchain
      * return the jsonObj
      */
-    public static JsonObject view(BlockChain bc) throws Exception {
+    public static JsonObject view(ChainRegistry.Chain chain, BlockChain bc) throws Exception {
         JsonObject jsonObj = new JsonObject(); //create a JsonObject will hold return result
         jsonObj.addProperty("chainSize",bc.getChainSize()); //add chainSize to JsonObject that we created
-        jsonObj.addProperty("hashPerSecond",bc.hashesPerSecond()); //add hashPerSecond to JsonObject that we created
-        jsonObj.addProperty("difficulty",bc.getLatestBlock().getDifficulty()); //add difficulty to JsonObject that we created
-        jsonObj.addProperty("nonce",bc.getLatestBlock().getNonce()); //add nonce to JsonObject that we created
-        jsonObj.addProperty("chainHash",bc.chainHash); //add chainHash to JsonObject that we created
+        jsonObj.addProperty("headerHeight",bc.getHeaderHeight()); //add height of the known headers to JsonObject that we created
+        jsonObj.addProperty("hashPerSecond",hashPerSecond); //add hashPerSecond, measured at startup, to JsonObject that we created
+        //a bootstrapping replica may not have its first block yet
+        if(bc.getChainSize() > 0)
+        {
+            jsonObj.addProperty("difficulty",bc.getLatestBlock().getDifficulty()); //add difficulty to JsonObject that we created
+            jsonObj.addProperty("nonce",bc.getLatestBlock().getNonce()); //add nonce to JsonObject that we created
+        }
+        jsonObj.addProperty("chainHash",bc.getChainHash()); //add chainHash to JsonObject that we created
+        //only the default chain is replicated
+        if(peerNode != null && chain.getName() == null)
+        {
+            jsonObj.addProperty("syncBlocksPerSecond",peerNode.lastSyncBlocksPerSecond); //add throughput of the latest sync to JsonObject that we created
+        }
+        if(admission != null)
+        {
+            jsonObj.add("admission",admission.metrics()); //add admitted and rejected request counts to JsonObject that we created
+        }
+        SubscriptionHub chainHub = chain.getHub();
+        if(chainHub != null)
+        {
+            jsonObj.add("subscriptions",chainHub.metrics()); //add subscriber and dropped event counts to JsonObject that we created
+        }
+        if(bc.getArchive() != null)
+        {
+            jsonObj.add("archive",bc.getArchive().metrics()); //add archived bodies, their compressed size and cache hits to JsonObject that we created
+        }
+        if(miningPool != null)
+        {
+            jsonObj.add("miners",miningPool.metrics()); //add connected workers, ranges handed out and solutions to JsonObject that we created
+        }
+        jsonObj.add("chain",chain.metrics()); //add this chain's requests, queue and rejections to JsonObject that we created
+        if(chain.getName() == null)
+        {
+            jsonObj.add("chains",chains.metrics()); //add the named chains loaded next to the default one to JsonObject that we created
+        }
+        return jsonObj;
+    }
+    /**
+     * @param hub, the hub of the chain subscribed to, null when subscriptions are off
+     * @param bodies, whether the subscriber wants whole blocks rather than headers
+     * return the jsonObj acknowledging the subscription, the connection is then passed to the hub
+     */
+    public static JsonObject subscribe(SubscriptionHub hub, boolean bodies) {
+        JsonObject jsonObj = new JsonObject(); //create a JsonObject will hold return result
+        if(hub == null)
+        {
+            jsonObj.addProperty("error","Subscriptions are turned off on this server");
+            return jsonObj;
+        }
+        if(hub.isFull())
+        {
+            return admission.reject(AdmissionControl.BUSY, "Too many subscribers, try again later", EXPENSIVE_RETRY_MILLIS);
+        }
+        jsonObj.addProperty("subscribed", true);
+        jsonObj.addProperty("bodies", bodies);
+        return jsonObj;
+    }
+    /**
+     * @param bc, current Blockchain
+     * @param hash, hash pointer of the block to look up
+     * return the jsonObj
+     */
+    public static JsonObject lookup(BlockChain bc, String hash) throws Exception {
+        JsonObject jsonObj = new JsonObject(); //create a JsonObject will hold return result
+        //resolve the hash through the chain's hash index
+        Block block = bc.getBlockByHash(hash);
+        //blocks still being downloaded can already be found by their header
+        BlockHeader header = block == null ? bc.getPendingHeader(parseHash(hash)) : null;
+        if(header != null)
+        {
+            jsonObj.addProperty("header",header.toString());
+            jsonObj.addProperty("previousHash",Digest.toHex(header.previousHash));
+            jsonObj.addProperty("body","pending");
+        }
+        else if(block == null)
+        {
+            //no block carries this hash
+            jsonObj.addProperty("error","No block with hash " + hash);
+        }
+        else
+        {
+            //add the block and its parent pointer to JsonObject that we created
+            jsonObj.addProperty("block",block.toString());
+            jsonObj.addProperty("previousHash",block.getPreviousHash());
+        }
         return jsonObj;
     }
+    /**
+     * @param name, system property holding a number
+     * @param def, value used when the property isn't set
+     * return the property's value
+     */
+    private static double doubleProperty(String name, double def) {
+        String value = System.getProperty(name);
+        return value == null ? def : Double.parseDouble(value);
+    }
+    /**
+     * @param hash, hex string from the client
+     * return the digest, or null if it isn't a SHA-256 hex string
+     */
+    private static Digest parseHash(String hash) {
+        try {
+            return Digest.fromHex(hash);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
     /**
      * @param bc, current Blockchain
      * return the jsonObj
@@ -228,8 +771,9 @@ public class VerifyingServerTCP {
     public static JsonObject isValid(BlockChain bc) throws Exception {
         // start the clock
         long currentTime = System.currentTimeMillis();
-        //call isChinaValid method to validate current chain
-        boolean result = bc.isChainValid();
+        //validate the latest snapshot, appends carry on meanwhile
+        ChainSnapshot snapshot = bc.snapshot();
+        boolean result = snapshot.isValid();
         // end clock
         long endTime = System.currentTimeMillis();
         // calculate the time
@@ -246,28 +790,28 @@ public class VerifyingServerTCP {
             //else we add FALSE to JsonObject that we created
             jsonObj.addProperty("result", Boolean.FALSE);
         }
-        //add operation time to JsonObject that we created
+        //add operation time and the height that was checked to JsonObject that we created
         jsonObj.addProperty("totalTime",totalTime);
+        jsonObj.addProperty("height",snapshot.getHeight());
         return jsonObj;
     }
 
-    public static boolean checkSign(String message)throws Exception
+    public static boolean checkSign(Request request)throws Exception
     {
-        JSONObject jsonObject = new JSONObject(message); //create a JSONObject which contains the message value
         //Split n and e using ; we inserted
-        String[] keys = jsonObject.getString("keyComb").split(";");
+        String[] keys = request.keyComb.split(";");
         //Assign corresponding values to e and n
         BigInteger e = new BigInteger(keys[0]);
         BigInteger n = new BigInteger(keys[1]);
-        //get user ID by finding the key "id" in JSONObject that we created
-        String id = jsonObject.getString("id");
-        //get user provided value by finding the key "value" in JSONObject that we created
-        String value = jsonObject.getString("value");
-        //get user provided operation by finding the key "operation" in JSONObject that we created
-        String operation = jsonObject.getString("operation");
+        //get user ID from the request
+        String id = request.id;
+        //get user provided value from the request
+        String value = request.value;
+        //get user provided operation from the request, with the chain it is for
+        String operation = request.signedOperation();
 
         // Take the encrypted string and make it a big integer
-        BigInteger encryptedHash = new BigInteger(jsonObject.getString("signedVal"));
+        BigInteger encryptedHash = new BigInteger(request.signedVal);
 
         // Decrypt it
         BigInteger decryptedHash = encryptedHash.modPow(e, n);
@@ -307,16 +851,15 @@ public class VerifyingServerTCP {
     }
 
 
-    public static boolean checkID(String message)throws Exception {
-        JSONObject jsonObject = new JSONObject(message); //create a JSONObject which contains the message value
+    public static boolean checkID(Request request)throws Exception {
         //Split n and e using ; we inserted
-        String[] keys = jsonObject.getString("keyComb").split(";");
+        String[] keys = request.keyComb.split(";");
         //Assign corresponding values to e and n
         BigInteger e = new BigInteger(keys[0]);
         BigInteger n = new BigInteger(keys[1]);
 
-        //get user ID by finding the key "id" in JSONObject that we created
-        String id = jsonObject.getString("id");
+        //get user ID from the request
+        String id = request.id;
 
         //generate composite keys with e and n
         String input = e.toString() + n.toString();
@@ -0,0 +1,345 @@
+/**
+ * This class is an append-only write-ahead log for chain mutations.
+ *
+ * Each record is laid out as
+ *   int length of the payload, byte record type, payload bytes, int CRC32 of type and payload
+ * so a record cut short by a crash, or damaged on disk, is detected on replay and cut off.
+ *
+ * How hard a record waits for the disk depends on the durability mode:
+ *   PER_APPEND - every append forces the file before returning
+ *   GROUPED    - appends return once written and awaitForced waits for a background flusher that forces
+ *                once for every record written within maxLatency. A writer can therefore append several
+ *                records, let go of whatever it holds, and wait for all of them with a single FileChannel.force
+ *   ASYNC      - appends return once written, the flusher forces at most maxLatency later
+ */
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+public class WriteAheadLog {
+    //how long an append waits for its record to reach the disk
+    public enum Durability { PER_APPEND, GROUPED, ASYNC }
+
+    //record types
+    public static final byte APPEND = 1;
+    public static final byte CORRUPT = 2;
+    public static final byte REPAIR = 3;
+    public static final byte ROLLBACK = 4;
+    public static final byte FREEZE = 5;
+    public static final byte COLD = 6;
+    //a length larger than this can only come from a damaged record, a chain image's rows are framed the same way
+    static final int MAX_RECORD_BYTES = 64 << 20;
+
+    /**
+     * This interface receives the records read back by replay
+     */
+    public interface Replayer {
+        void apply(long offset, byte type, DataInputStream payload) throws Exception;
+    }
+
+    private final File file; //the log file
+    private final FileChannel channel; //open channel on the log file
+    private final Durability durability; //how appends wait for the disk
+    private final long maxLatencyNanos; //longest a record waits before the flusher forces it
+    private final Object lock = new Object(); //guards written, forced, closed and failure
+    private long written; //end of the last record written to the channel
+    private long forced; //end of the last record known to be on disk
+    private boolean closed; //set once close starts
+    private IOException failure; //error hit by the flusher, handed to whoever waits for it
+    private Thread flusher; //background thread forcing the file in GROUPED and ASYNC mode
+    /**
+     * constructor which opens (or creates) the log file
+     * @param file the log file
+     * @param durability how appends wait for the disk
+     * @param maxLatencyMicros how long the flusher lets appends gather before forcing them
+     */
+    public WriteAheadLog(File file, Durability durability, long maxLatencyMicros) throws IOException
+    {
+        this.file = file;
+        this.durability = durability;
+        this.maxLatencyNanos = maxLatencyMicros * 1000;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+    /**
+     * This method reads every intact record from the start of the log and hands it to the replayer.
+     * The log is truncated after the last intact record and further appends go after it
+     * @param replayer receives each record in log order
+     * return the end offset of the last intact record
+     */
+    public long replay(Replayer replayer) throws Exception
+    {
+        return replay(0, replayer);
+    }
+    /**
+     * This method reads every intact record from an offset on, like replay(Replayer)
+     * @param from offset of the first record to read, the end of an earlier record
+     * @param replayer receives each record in log order
+     * return the end offset of the last intact record
+     */
+    public long replay(long from, Replayer replayer) throws Exception
+    {
+        long offset = from;
+        channel.position(from);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        try
+        {
+            while(true)
+            {
+                int length = in.readInt();
+                if(length < 0 || length > MAX_RECORD_BYTES)
+                {
+                    break;
+                }
+                byte type = in.readByte();
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                int checksum = in.readInt();
+                if(checksum != checksum(type, payload))
+                {
+                    break;
+                }
+                replayer.apply(offset, type, new DataInputStream(new ByteArrayInputStream(payload)));
+                offset += 9 + length;
+            }
+        }
+        catch(EOFException e)
+        {
+            //end of log, possibly in the middle of a torn record
+        }
+        if(offset < channel.size())
+        {
+            System.out.println("Truncating " + (channel.size() - offset) + " bytes of torn log tail in " + file);
+            channel.truncate(offset);
+            channel.force(true);
+        }
+        channel.position(offset);
+        synchronized(lock)
+        {
+            written = offset;
+            forced = offset;
+        }
+        startFlusher();
+        return offset;
+    }
+    /**
+     * This method appends one record. In PER_APPEND mode it is on disk when this returns, in GROUPED mode
+     * awaitForced with the returned offset waits until it is
+     * @param type record type
+     * @param payload record payload
+     * return the end offset of the record
+     */
+    public long append(byte type, byte[] payload) throws IOException
+    {
+        ByteBuffer record = ByteBuffer.allocate(9 + payload.length);
+        record.putInt(payload.length);
+        record.put(type);
+        record.put(payload);
+        record.putInt(checksum(type, payload));
+        record.flip();
+        long end;
+        //records are written one at a time so they never interleave
+        synchronized(this)
+        {
+            while(record.hasRemaining())
+            {
+                channel.write(record);
+            }
+            end = channel.position();
+        }
+        if(durability == Durability.PER_APPEND)
+        {
+            force(record.capacity());
+            synchronized(lock)
+            {
+                forced = Math.max(forced, end);
+                written = Math.max(written, end);
+            }
+            return end;
+        }
+        synchronized(lock)
+        {
+            written = Math.max(written, end);
+            lock.notifyAll();
+        }
+        return end;
+    }
+    /**
+     * This method waits in GROUPED mode until the flusher has forced every record up to end, it returns
+     * straight away in the other modes
+     * @param end offset an append returned
+     */
+    public void awaitForced(long end) throws IOException
+    {
+        if(durability != Durability.GROUPED)
+        {
+            return;
+        }
+        synchronized(lock)
+        {
+            //the flusher forces whatever is written, a close included, so every record gets there
+            while(forced < end)
+            {
+                if(failure != null)
+                {
+                    throw failure;
+                }
+                try
+                {
+                    lock.wait();
+                }
+                catch(InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for log flush", e);
+                }
+            }
+        }
+    }
+    /**
+     * This method will get the end of the log
+     * return offset just past the last record written
+     */
+    public long position()
+    {
+        synchronized(lock)
+        {
+            return written;
+        }
+    }
+    /**
+     * This method forces whatever is still pending, stops the flusher and closes the file
+     */
+    public void close() throws IOException
+    {
+        synchronized(lock)
+        {
+            closed = true;
+            lock.notifyAll();
+        }
+        if(flusher != null)
+        {
+            try
+            {
+                flusher.join();
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+        channel.force(false);
+        channel.close();
+    }
+    /**
+     * This method starts the background flusher for the GROUPED and ASYNC modes
+     */
+    private void startFlusher()
+    {
+        if(durability == Durability.PER_APPEND || flusher != null)
+        {
+            return;
+        }
+        flusher = new Thread(this::flushLoop, "wal-flusher-" + file.getName());
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+    /**
+     * This method is the flusher: it waits for unforced records, lets more appends join the batch
+     * for up to maxLatency and then forces them all with one call
+     */
+    private void flushLoop()
+    {
+        while(true)
+        {
+            long target;
+            long pending;
+            try
+            {
+                synchronized(lock)
+                {
+                    while(!closed && written <= forced)
+                    {
+                        lock.wait();
+                    }
+                    if(closed && written <= forced)
+                    {
+                        return;
+                    }
+                }
+                //gather the appends that arrive while we wait into the same force
+                if(maxLatencyNanos > 0 && !isClosed())
+                {
+                    Thread.sleep(maxLatencyNanos / 1000000, (int) (maxLatencyNanos % 1000000));
+                }
+                synchronized(lock)
+                {
+                    target = written;
+                    pending = target - forced;
+                }
+                force(pending);
+                synchronized(lock)
+                {
+                    forced = Math.max(forced, target);
+                    lock.notifyAll();
+                }
+            }
+            catch(IOException e)
+            {
+                synchronized(lock)
+                {
+                    failure = e;
+                    lock.notifyAll();
+                }
+                return;
+            }
+            catch(InterruptedException e)
+            {
+                return;
+            }
+        }
+    }
+    /**
+     * This method forces the file, recording a blockchain.LogFlush flight recorder event when a recording asks for it
+     * @param bytes bytes written since the previous force
+     */
+    private void force(long bytes) throws IOException
+    {
+        ChainEvents.LogFlushEvent event = new ChainEvents.LogFlushEvent();
+        event.begin();
+        channel.force(false);
+        if(event.shouldCommit())
+        {
+            event.durability = durability.name();
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+    /**
+     * This method checks whether close has started
+     */
+    private boolean isClosed()
+    {
+        synchronized(lock)
+        {
+            return closed;
+        }
+    }
+    /**
+     * This method computes the CRC32 stored after each record
+     */
+    static int checksum(byte type, byte[] payload)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+}